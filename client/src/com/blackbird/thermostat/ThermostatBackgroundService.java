@@ -1,7 +1,9 @@
 package com.blackbird.thermostat;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.blackbird.thermostat.protocol.ThermostatClientProtocol;
 import com.blackbird.thermostat.receiver.AlarmReceiver;
@@ -39,6 +41,12 @@ public class ThermostatBackgroundService extends Service {
 	// Heartbeat period 
 	public static final long HEARTBEAT_PERIOD_MS = 1000*60*2;
 
+	// Period of keepalive messages on idle sessions
+	private static final long KEEPALIVE_PERIOD_MS = 1000*60;
+
+	// Maximum time to wait for replies of the thermostats
+	private static final long REPLY_TIMEOUT_MS = 3000;
+
 	// Jitter to avoid potential issues from synchronized heartbeats and give the system flexibility to schedule alarms (from API level 19)  
 	private static final double JITTER_RATIO = 0.5;
 
@@ -55,6 +63,9 @@ public class ThermostatBackgroundService extends Service {
 	private ThermostatClientSecurityManager securityManager;
 	
 	private ThermostatProfileStore thermostats = new ThermostatProfileStore();
+	
+	// Thermostat ID -> open session with the thermostat
+	private Map<String, ThermostatClientProtocol> sessions = new HashMap<String, ThermostatClientProtocol>();
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
@@ -97,6 +108,12 @@ public class ThermostatBackgroundService extends Service {
 
 	@Override
 	public void onDestroy() {
+		synchronized (sessions) {
+			for (ThermostatClientProtocol session : sessions.values()) {
+				session.getProtocol().close();
+			}
+			sessions.clear();
+		}
 		technologySelector.onDestroy();
 		super.onDestroy();
 	}
@@ -120,40 +137,50 @@ public class ThermostatBackgroundService extends Service {
 	}
 
 	/**
-	 * Wait until all protocol instances are closed or a timeout period elapses
+	 * Get the open session with a thermostat or open a new one if the thermostat is available
 	 * 
-	 * @param protocols
-	 * @param timeoutMs
+	 * @return the session or null if the thermostat is not available
 	 */
-	private void waitForClosure(List<ThermostatProtocol> protocols, long timeoutMs) {
-		long period = 200;
-		for (long time = 0; time < timeoutMs; time += period) {
-			boolean pending = false;
-			for (ThermostatProtocol protocol : protocols) {
-				if (!protocol.isClosed()) {
-					pending = true;
-					break;
-				}
+	private ThermostatClientProtocol getSession(String id, ThermostatProfile thermostat) {
+		synchronized (sessions) {
+			ThermostatClientProtocol session = sessions.get(id);
+			if (session != null && !session.getProtocol().isClosing()) {
+				return session;
 			}
-			if (!pending) {
-				return;
+			ThermostatSocket socket = technologySelector.getThermostatSocket(thermostat);
+			if (socket == null) {
+				sessions.remove(id);
+				return null;
 			}
+			ThermostatProtocol protocol = new ThermostatProtocol(socket);
+			protocol.startSession(KEEPALIVE_PERIOD_MS);
+			session = new ThermostatClientProtocol(this, protocol, securityManager);
+			sessions.put(id, session);
+			return session;
+		}
+	}
+
+	/**
+	 * Wait until all sessions received the replies to their requests or a timeout period elapses.
+	 * Sessions not replying in time are closed.
+	 * 
+	 * @param protocols
+	 * @param timeoutMs
+	 */
+	private void waitForReplies(List<ThermostatProtocol> protocols, long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for (ThermostatProtocol protocol : protocols) {
 			try {
-				Thread.sleep(period);
+				if (!protocol.waitForReplies(Math.max(0, deadline - System.currentTimeMillis()))) {
+					protocol.close();
+					Log.w(TAG, "Timeout for " + protocol + ", force close");
+				}
 			} catch (InterruptedException e) {
-				Log.e(TAG, "Interrupted while waiting for protocol instances to close", e);
+				Log.e(TAG, "Interrupted while waiting for replies", e);
 				Crittercism.logHandledException(e);
 				break;
 			}
 		}
-		
-		for (ThermostatProtocol protocol : protocols) {
-			if (!protocol.isClosed()) {
-				protocol.close();
-				Log.w(TAG, "Timeout for " + protocol + ", force close");
-			}
-		}
-		
 	}
 
 	private ResidentStatusInfo getStatusInfo() {
@@ -202,16 +229,14 @@ public class ThermostatBackgroundService extends Service {
         		for (String id : thermostats.getThermostatIds()) {
     	    		// Send state update message to the given thermostat
         			ThermostatProfile thermostat = thermostats.getThermostatProfile(id);
-        			ThermostatSocket socket = technologySelector.getThermostatSocket(thermostat);
         			String fingerprint = thermostat.getFingerprint();
-        			if (socket == null) {
-        				Log.d(TAG, "Thermostat " + fingerprint + " is not avaialable");
-        				continue;
-        			}
         			try {
-        				ThermostatProtocol protocol = new ThermostatProtocol(socket);
-        				protocols.add(protocol);
-    					ThermostatClientProtocol clientProtocol = new ThermostatClientProtocol(ThermostatBackgroundService.this, protocol, securityManager);
+        				ThermostatClientProtocol clientProtocol = getSession(id, thermostat);
+        				if (clientProtocol == null) {
+        					Log.d(TAG, "Thermostat " + fingerprint + " is not avaialable");
+        					continue;
+        				}
+        				protocols.add(clientProtocol.getProtocol());
     					clientProtocol.sendStateUpdate(state, status);
     					Log.d(TAG, "State update message sent to " + fingerprint + ", current state: " + state.getName());
     				} catch (Exception e) {
@@ -220,8 +245,8 @@ public class ThermostatBackgroundService extends Service {
     				}
         		}
 
-        		// Wait max 3 seconds until all protocol instances are closed
-        		waitForClosure(protocols, 3000);
+        		// Wait max 3 seconds until all thermostats replied
+        		waitForReplies(protocols, REPLY_TIMEOUT_MS);
     		}
     		
     		// Schedule wake up for next heartbeat (even if device is sleeping)
@@ -274,16 +299,14 @@ public class ThermostatBackgroundService extends Service {
     		for (String id : thermostats.getThermostatIds()) {
 	    		// Send state update message to the given thermostat
     			ThermostatProfile thermostat = thermostats.getThermostatProfile(id);
-    			ThermostatSocket socket = technologySelector.getThermostatSocket(thermostat);
     			String fingerprint = thermostat.getFingerprint();
-    			if (socket == null) {
-    				Log.d(TAG, "Thermostat " + fingerprint + " is not avaialable");
-    				continue;
-    			}
     			try {
-    				ThermostatProtocol protocol = new ThermostatProtocol(socket);
-    				protocols.add(protocol);
-					ThermostatClientProtocol clientProtocol = new ThermostatClientProtocol(ThermostatBackgroundService.this, protocol, securityManager);
+    				ThermostatClientProtocol clientProtocol = getSession(id, thermostat);
+    				if (clientProtocol == null) {
+    					Log.d(TAG, "Thermostat " + fingerprint + " is not avaialable");
+    					continue;
+    				}
+    				protocols.add(clientProtocol.getProtocol());
 					clientProtocol.sendZoneAction(zoneData);
 					Log.i(TAG, "Zone action message sent to " + fingerprint);
 				} catch (Exception e) {
@@ -292,8 +315,8 @@ public class ThermostatBackgroundService extends Service {
 				}
     		}
 
-    		// Wait max 3 seconds until all protocol instances are closed
-    		waitForClosure(protocols, 3000);
+    		// Wait max 3 seconds until all thermostats replied
+    		waitForReplies(protocols, REPLY_TIMEOUT_MS);
 		}
 	}
 }
@@ -17,7 +17,6 @@ import com.thermostat.protocol.ThermostatProtocol;
 import com.thermostat.protocol.data.ResidentState;
 import com.thermostat.protocol.data.ResidentStatusInfo;
 import com.thermostat.protocol.data.ZoneData;
-import com.thermostat.protocol.message.CloseMessage;
 import com.thermostat.protocol.message.StateUpdateMessage;
 import com.thermostat.protocol.message.ZoneActionMessage;
 import com.thermostat.protocol.message.ZoneDataMessage;
@@ -45,9 +44,6 @@ public class ThermostatClientProtocol extends ThermostatMessageListener {
 	protected void receiveMessage(ThermostatMessage reply, ThermostatMessage request) {
 		Log.d(TAG, "Received message " + reply);
 		switch (reply.getType()) {
-		case CLOSE:
-			getProtocol().close();
-			break;
 		case ZONE_INFO:
 			handleZoneInfo((ZoneDataMessage)reply);
 			break;
@@ -67,26 +63,26 @@ public class ThermostatClientProtocol extends ThermostatMessageListener {
 		localIntent.putExtra(Constants.EXTENDED_ZONE_DATA, zoneDataMessage.getZones());
 		LocalBroadcastManager.getInstance(context).sendBroadcast(localIntent);
 
-		// Initiate closing this message sequence
-		try {
-			getProtocol().send(new CloseMessage());
-		} catch (IOException e) {
-			Log.e(TAG, "Error when sending close message", e);
+		// Sessions stay open for further exchanges and pushed zone information
+		if (getProtocol().isSession()) {
+			return;
 		}
+		
+		// Initiate closing this message sequence
 		getProtocol().close();
 	}
 	
 	public void sendStateUpdate(ResidentState state, ResidentStatusInfo status) throws GeneralSecurityException, IOException {
 		String fingerprint = securityManager.getPublicKeyFingerprint();
 		StateUpdateMessage message = new StateUpdateMessage(fingerprint, state, status);
-		getProtocol().send(message);
+		getProtocol().request(message);
 	}
 	
 	public void sendZoneAction(ZoneData zone) {
 		try {
 			String fingerprint = securityManager.getPublicKeyFingerprint();
 			ZoneActionMessage actionMessage = new ZoneActionMessage(fingerprint, zone);
-			getProtocol().send(actionMessage);
+			getProtocol().request(actionMessage);
 		} catch (Exception e) {
 			Log.e(TAG, "Exception when sending zone action message", e);
 		}
@@ -0,0 +1,136 @@
+package com.thermostat.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects metrics of all ThermostatProtocol instances: 
+ * latency of request - reply exchanges, lifetime of connections and how connections were closed.
+ */
+public class ProtocolMetrics {
+
+	private static ProtocolMetrics instance = null;
+	
+	private AtomicLong exchangeCount = new AtomicLong();
+	
+	private AtomicLong exchangeTimeMs = new AtomicLong();
+	
+	private AtomicLong maxExchangeTimeMs = new AtomicLong();
+	
+	private AtomicLong connectionCount = new AtomicLong();
+	
+	private AtomicLong connectionTimeMs = new AtomicLong();
+	
+	private AtomicLong maxConnectionTimeMs = new AtomicLong();
+	
+	/** Number of connections closed after the peer acknowledged closing */
+	private AtomicLong acknowledgedCloseCount = new AtomicLong();
+	
+	/** Number of connections closed after the peer did not acknowledge closing in time */
+	private AtomicLong closeTimeoutCount = new AtomicLong();
+	
+	/** Number of connections closed due to an error */
+	private AtomicLong failureCount = new AtomicLong();
+	
+	public static synchronized ProtocolMetrics getInstance() {
+		if (instance == null) {
+			instance = new ProtocolMetrics();
+		}
+		return instance;
+	}
+	
+	private ProtocolMetrics() {
+	}
+	
+	/**
+	 * Record an exchange: the time between sending a request and receiving the reply (initiator)
+	 * or between receiving a request and sending the reply (responder).
+	 */
+	void recordExchange(long timeMs) {
+		exchangeCount.incrementAndGet();
+		exchangeTimeMs.addAndGet(timeMs);
+		updateMax(maxExchangeTimeMs, timeMs);
+	}
+	
+	/**
+	 * Record the time between opening and releasing a connection.
+	 */
+	void recordConnection(long timeMs) {
+		connectionCount.incrementAndGet();
+		connectionTimeMs.addAndGet(timeMs);
+		updateMax(maxConnectionTimeMs, timeMs);
+	}
+	
+	void recordAcknowledgedClose() {
+		acknowledgedCloseCount.incrementAndGet();
+	}
+	
+	void recordCloseTimeout() {
+		closeTimeoutCount.incrementAndGet();
+	}
+	
+	void recordFailure() {
+		failureCount.incrementAndGet();
+	}
+	
+	public long getExchangeCount() {
+		return exchangeCount.get();
+	}
+	
+	/**
+	 * @return the average exchange latency in milliseconds or 0 if there were no exchanges
+	 */
+	public long getAverageExchangeTimeMs() {
+		long count = exchangeCount.get();
+		return count == 0 ? 0 : exchangeTimeMs.get() / count;
+	}
+	
+	public long getMaxExchangeTimeMs() {
+		return maxExchangeTimeMs.get();
+	}
+	
+	public long getConnectionCount() {
+		return connectionCount.get();
+	}
+	
+	/**
+	 * @return the average connection lifetime in milliseconds or 0 if no connections were closed
+	 */
+	public long getAverageConnectionTimeMs() {
+		long count = connectionCount.get();
+		return count == 0 ? 0 : connectionTimeMs.get() / count;
+	}
+	
+	public long getMaxConnectionTimeMs() {
+		return maxConnectionTimeMs.get();
+	}
+	
+	public long getAcknowledgedCloseCount() {
+		return acknowledgedCloseCount.get();
+	}
+	
+	public long getCloseTimeoutCount() {
+		return closeTimeoutCount.get();
+	}
+	
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+	
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "exchanges=" + getExchangeCount() + ", average exchange ms=" + getAverageExchangeTimeMs() + 
+				", max exchange ms=" + getMaxExchangeTimeMs() + ", connections=" + getConnectionCount() + 
+				", average connection ms=" + getAverageConnectionTimeMs() + ", max connection ms=" + getMaxConnectionTimeMs() + 
+				", acknowledged closes=" + getAcknowledgedCloseCount() + ", close timeouts=" + getCloseTimeoutCount() + 
+				", failures=" + getFailureCount();
+	}
+}
@@ -8,6 +8,9 @@ public abstract class ThermostatMessage implements Serializable {
 	
 	private ThermostatMessageType type;
 	
+	/** Identifies the exchange this message belongs to within a session or 0 if it is not part of an exchange */
+	private int requestId = 0;
+	
 	protected ThermostatMessage() {
 		// required for serialization
 	}
@@ -19,9 +22,17 @@ public abstract class ThermostatMessage implements Serializable {
 	public ThermostatMessageType getType() {
 		return type;
 	}
+	
+	public int getRequestId() {
+		return requestId;
+	}
+	
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
 
 	@Override
 	public String toString() {
-		return "type=" + type;
+		return "type=" + type + (requestId != 0 ? ", requestId=" + requestId : "");
 	}
 }
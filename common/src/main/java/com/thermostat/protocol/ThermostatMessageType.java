@@ -38,8 +38,15 @@ public enum ThermostatMessageType {
 	PREFERENCES_UPDATE,
 	PREFERENCES_INFO,
 	
+	/**
+	 * Empty message keeping an idle session alive. 
+	 * Sent by the initiator of a session when no other message was exchanged for a while and echoed by the peer.
+	 */
+	KEEPALIVE,
+	
 	/**
 	 * Empty message sent to close the communication sequence.
+	 * The peer acknowledges it with a close message of its own before releasing the connection.
 	 */
 	CLOSE;
 }
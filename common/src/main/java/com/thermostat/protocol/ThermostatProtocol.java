@@ -1,13 +1,34 @@
 package com.thermostat.protocol;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
+import com.thermostat.protocol.codec.NegotiatingCodec;
+import com.thermostat.protocol.codec.ThermostatCodec;
+import com.thermostat.protocol.message.CloseMessage;
+import com.thermostat.protocol.message.KeepaliveMessage;
 
 /**
  * Provides a generic asynchronous request - reply message sequence protocol implementation.
  * Message sequence is closed automatically whenever an exception occurs during the communication. 
+ * A message sequence completed normally is closed by a handshake: the side closing the sequence sends a CloseMessage,
+ * the peer acknowledges it with a CloseMessage of its own and both sides release the connection. 
+ * The connection is released anyway if the acknowledgement does not arrive within CLOSE_TIMEOUT_MS.
+ * Exchange latencies and connection lifetimes are recorded in ProtocolMetrics.
+ * Messages are encoded in the compact binary format unless the initiating peer only supports Java serialization
+ * (see NegotiatingCodec).
+ * 
+ * A message sequence can be turned into a long-lived session (see startSession()), which carries several
+ * exchanges over the same connection. Requests of a session carry a request ID which is copied into the reply,
+ * so replies are matched to their requests. Idle sessions are kept alive by keepalive messages
+ * sent by the initiator, and closed by the responder when the initiator is not heard from for a while.
+ * The peer may also send unsolicited messages (request ID 0) at any time during a session.
  * 
  * TODO: manage authentication and encryption here in a way transparent to upper layers.
  * On option is to have ThermostatSecurityMessage objects exchanged transparently in this superclass. 
@@ -17,42 +38,194 @@ public class ThermostatProtocol {
 
 	private static final int DEFAULT_BUFFER_SIZE = 2048;
 	
+	/** Maximum time to wait for the peer to acknowledge closing the message sequence */
+	public static final long CLOSE_TIMEOUT_MS = 2000;
+	
+	/** Time after which the responder closes a session not receiving any message */
+	public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+	
+	/** Period of checking sessions for sending keepalive messages and for timeouts */
+	private static final long SESSION_CHECK_PERIOD_MS = 10 * 1000;
+	
+	/** 
+	 * Timer checking all sessions and close timeouts, created when first needed.
+	 * Timer tasks only hand work over to runTask(), as writing to a stalled peer would block the timer for all connections.
+	 */
+	private static Timer timer = null;
+	
+	/** Executor running input loops or null to start a new thread for each input loop */
+	private static Executor inputExecutor = null;
+	
 	private ThermostatSocket socket;
 	
-	private ObjectInputStream input = null;
+	/** true if this side sends the first message of the sequence */
+	private boolean initiator;
+	
+	private ThermostatCodec codec = null;
 	
-	private ObjectOutputStream output = null;
+	/** true if received messages are passed to receive() instead of being read by an input thread */
+	private boolean pushMode = false;
 	
 	private ThermostatMessageListener listener = null;
 	
 	/** Last request message that had been sent successfully */
 	private ThermostatMessage lastRequest = null;
 	
-	private boolean closing = false;
+	private volatile boolean closing = false;
+	
+	private volatile boolean closed = false;
+	
+	/** true if a CloseMessage has been sent to the peer */
+	private boolean closeSent = false;
+	
+	/** true if a CloseMessage has been received from the peer */
+	private boolean closeReceived = false;
+	
+	private TimerTask closeTimeoutTask = null;
+	
+	private long createdMs = System.currentTimeMillis();
+	
+	/** Start of the exchange in progress (request sent by the initiator or received by the responder) or 0 */
+	private long exchangeStartMs = 0;
+	
+	/** true if this message sequence is a session carrying several exchanges */
+	private volatile boolean session = false;
+	
+	/** Period of sending keepalive messages by the initiator of a session */
+	private long keepaliveMs;
+	
+	private long idleTimeoutMs = DEFAULT_SESSION_IDLE_TIMEOUT_MS;
+	
+	private int nextRequestId = 1;
+	
+	/** Request ID -> request message sent in this session and not replied yet */
+	private Map<Integer, ThermostatMessage> pendingRequests = new HashMap<Integer, ThermostatMessage>();
+	
+	/** Time of sending or receiving the last message */
+	private volatile long lastActivityMs = System.currentTimeMillis();
+	
+	/** Keepalive message waiting for a reply or null */
+	private KeepaliveMessage pendingKeepalive = null;
 	
-	private boolean closed = false;
+	private long keepaliveSentMs;
+	
+	private TimerTask sessionTask = null;
+	
+	/** true while checkSession() is running or waiting to be run */
+	private boolean sessionCheckPending = false;
 	
 	/**
-	 * Creates a new protocol instance
+	 * Creates a new protocol instance for initiating a message sequence
 	 * 
 	 * @param socket the ThermostatSocket containing Java input and output streams for bi-directional communication
 	 */
 	public ThermostatProtocol(ThermostatSocket socket) {
+		this(socket, true);
+	}
+	
+	/**
+	 * Creates a new protocol instance
+	 * 
+	 * @param socket the ThermostatSocket containing Java input and output streams for bi-directional communication
+	 * @param initiator true if this side sends the first message, false if it responds to messages of the peer
+	 */
+	public ThermostatProtocol(ThermostatSocket socket, boolean initiator) {
 		this.socket = socket;
+		this.initiator = initiator;
+	}
+	
+	/**
+	 * Creates a new protocol instance for responding to a peer whose messages are read and decoded by the caller
+	 * (e.g., a non-blocking I/O loop) and passed to receive(). No input thread is started.
+	 * 
+	 * @param socket the ThermostatSocket used for sending messages
+	 * @param codec the codec used for sending messages
+	 */
+	public ThermostatProtocol(ThermostatSocket socket, ThermostatCodec codec) {
+		this.socket = socket;
+		this.codec = codec;
+		this.initiator = false;
+		this.pushMode = true;
+	}
+	
+	/**
+	 * Set the executor running the input loops of protocol instances created afterwards.
+	 * 
+	 * @param executor the executor or null to start a new thread for each input loop
+	 */
+	public static void setInputExecutor(Executor executor) {
+		inputExecutor = executor;
 	}
 	
-	private ObjectInputStream getInput() throws IOException {
-		if (input == null) {
-			input = new ObjectInputStream(socket.getInputStream());
+	/**
+	 * Turn this message sequence into a session carrying several exchanges (initiator only).
+	 * Subsequent requests sent with request() carry request IDs, which makes the peer keep the connection open.
+	 * A keepalive message is sent when no message was exchanged in the given period, 
+	 * and the session is closed with a failure if it is not replied within the same period.
+	 * 
+	 * @param keepaliveMs the period of sending keepalive messages
+	 */
+	public void startSession(long keepaliveMs) {
+		if (!initiator) {
+			throw new IllegalStateException("Sessions are started by the initiator");
+		}
+		this.keepaliveMs = keepaliveMs;
+		startSession();
+	}
+	
+	/**
+	 * Set the time after which the responder closes the session if no message is received.
+	 */
+	public void setIdleTimeout(long idleTimeoutMs) {
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+	
+	private synchronized void startSession() {
+		if (session || closing) {
+			return;
+		}
+		session = true;
+		sessionTask = new TimerTask() {
+			@Override
+			public void run() {
+				requestSessionCheck();
+			}
+		};
+		getTimer().schedule(sessionTask, SESSION_CHECK_PERIOD_MS, SESSION_CHECK_PERIOD_MS);
+	}
+	
+	/**
+	 * Run a task which may block on the connection on the input executor or on a new thread if no executor is set.
+	 */
+	private static void runTask(Runnable task) {
+		Executor executor = inputExecutor;
+		if (executor == null) {
+			new Thread(task).start();
+		} else {
+			executor.execute(task);
 		}
-		return input;
 	}
 	
-	private ObjectOutputStream getOutput() throws IOException {
-		if (output == null) {
-			output = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), DEFAULT_BUFFER_SIZE));
+	private static synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("ThermostatProtocolTimer", true);
 		}
-		return output;
+		return timer;
+	}
+	
+	/**
+	 * @return true if this message sequence is a session (started by this side or by the peer)
+	 */
+	public boolean isSession() {
+		return session;
+	}
+	
+	private synchronized ThermostatCodec getCodec() throws IOException {
+		if (codec == null) {
+			codec = new NegotiatingCodec(new BufferedInputStream(socket.getInputStream(), DEFAULT_BUFFER_SIZE), 
+					new BufferedOutputStream(socket.getOutputStream(), DEFAULT_BUFFER_SIZE), initiator, true);
+		}
+		return codec;
 	}
 
 	public void registerMessageListener(ThermostatMessageListener listener) throws IllegalStateException {
@@ -63,22 +236,221 @@ public class ThermostatProtocol {
 			throw new IllegalStateException("ThermostatProtocol instance already closed");
 		}
 		this.listener = listener;
-		// start listening for reply message
-		Thread t = new ThermostatProtocolInputThread();
-		t.start();	
+		if (!pushMode) {
+			// start listening for reply message
+			runTask(new ThermostatProtocolInputLoop());
+		}
+	}
+	
+	/**
+	 * Pass a message received by the caller to the listener (push mode only).
+	 * Messages of a protocol instance must be passed one at a time and in the order of arrival.
+	 */
+	public void receive(ThermostatMessage message) {
+		try {
+			dispatch(message);
+		} catch (Exception e) {
+			receiveFailure(e);
+		}
+	}
+	
+	/**
+	 * Pass a received message to the listener along with the request it replies to.
+	 * Keepalive and close messages are handled here, other messages arriving after closing are discarded.
+	 */
+	private void dispatch(ThermostatMessage message) throws IOException {
+		lastActivityMs = System.currentTimeMillis();
+		if (message.getType() == ThermostatMessageType.CLOSE) {
+			boolean acknowledged;
+			synchronized (this) {
+				closeReceived = true;
+				acknowledged = closeSent;
+			}
+			if (acknowledged) {
+				release(true);
+			} else {
+				// Closing initiated by the peer, acknowledge it
+				close(false);
+			}
+			return;
+		}
+		if (closing) {
+			return;
+		}
+		recordExchange(message, false);
+		ThermostatMessage request = lastRequest;
+		ThermostatMessage pending = null;
+		if (message.getRequestId() != 0) {
+			synchronized (this) {
+				pending = pendingRequests.remove(message.getRequestId());
+				if (pending == pendingKeepalive) {
+					pendingKeepalive = null;
+				}
+				notifyAll();
+			}
+			if (pending != null) {
+				request = pending;
+			} else if (!initiator) {
+				// The peer keeps the connection open for further exchanges
+				startSession();
+			}
+		}
+		if (message.getType() == ThermostatMessageType.KEEPALIVE) {
+			if (pending == null) {
+				reply(message, new KeepaliveMessage());
+			}
+			return;
+		}
+		listener.receiveMessage(message, request);
+	}
+	
+	/**
+	 * Report an error of receiving messages detected by the caller (push mode only) and close the sequence.
+	 * An error after closing was started (e.g., the peer closed the connection instead of acknowledging)
+	 * just releases the connection.
+	 */
+	public void receiveFailure(Exception e) {
+		if (closing) {
+			release(true);
+			return;
+		}
+		listener.failure(e, lastRequest);
+		close(true);
 	}
 	
 	public void send(ThermostatMessage message) throws IOException {
+		if (closing) {
+			throw new IOException("ThermostatProtocol instance already closed");
+		}
 		try {
-			getOutput().writeObject(message);
+			getCodec().writeMessage(message);
 			lastRequest = message;
-			getOutput().flush();
+			lastActivityMs = System.currentTimeMillis();
+			recordExchange(message, true);
 		} catch (IOException e) {
 			close(true);
 			throw e;
 		}
 	}
 	
+	/**
+	 * Send a request expecting a reply. In a session the request gets a new request ID
+	 * and is pending until the reply carrying the same ID is received.
+	 * Outside sessions this is the same as send().
+	 */
+	public void request(ThermostatMessage message) throws IOException {
+		if (session) {
+			synchronized (this) {
+				message.setRequestId(nextRequestId);
+				nextRequestId = nextRequestId == Integer.MAX_VALUE ? 1 : nextRequestId + 1;
+				pendingRequests.put(message.getRequestId(), message);
+			}
+		}
+		send(message);
+	}
+	
+	/**
+	 * Send a reply to a request received from the peer, copying its request ID.
+	 */
+	public void reply(ThermostatMessage request, ThermostatMessage reply) throws IOException {
+		reply.setRequestId(request.getRequestId());
+		send(reply);
+	}
+	
+	/**
+	 * Wait until all requests sent in this session are replied or the session is closed.
+	 * 
+	 * @return true if there are no pending requests
+	 */
+	public synchronized boolean waitForReplies(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (!pendingRequests.isEmpty() && !closing) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+		return pendingRequests.isEmpty();
+	}
+	
+	/**
+	 * Check the session outside the timer thread unless the previous check is still running
+	 * (e.g., blocked on sending a keepalive message to a stalled peer).
+	 */
+	private void requestSessionCheck() {
+		synchronized (this) {
+			if (sessionCheckPending) {
+				return;
+			}
+			sessionCheckPending = true;
+		}
+		runTask(new Runnable() {
+			public void run() {
+				try {
+					checkSession();
+				} finally {
+					synchronized (ThermostatProtocol.this) {
+						sessionCheckPending = false;
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Send keepalive messages and close timed out sessions.
+	 */
+	private void checkSession() {
+		long now = System.currentTimeMillis();
+		if (initiator) {
+			KeepaliveMessage keepalive = null;
+			boolean timedOut = false;
+			synchronized (this) {
+				if (pendingKeepalive != null) {
+					timedOut = now - keepaliveSentMs >= keepaliveMs;
+				} else if (now - lastActivityMs >= keepaliveMs) {
+					keepalive = new KeepaliveMessage();
+					pendingKeepalive = keepalive;
+					keepaliveSentMs = now;
+				}
+			}
+			if (timedOut) {
+				receiveFailure(new IOException("Session keepalive not replied within " + keepaliveMs + " ms"));
+			} else if (keepalive != null) {
+				try {
+					request(keepalive);
+				} catch (IOException e) {
+					listener.failure(e, lastRequest);
+				}
+			}
+		} else if (now - lastActivityMs >= idleTimeoutMs) {
+			close(false);
+		}
+	}
+	
+	/**
+	 * Record the latency of an exchange when its reply is sent or received.
+	 * 
+	 * @param sent true if the message was sent, false if it was received
+	 */
+	private void recordExchange(ThermostatMessage message, boolean sent) {
+		if (message.getType() == ThermostatMessageType.KEEPALIVE || message.getType() == ThermostatMessageType.CLOSE) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (sent == initiator) {
+				if (exchangeStartMs == 0) {
+					exchangeStartMs = now;
+				}
+			} else if (exchangeStartMs != 0) {
+				ProtocolMetrics.getInstance().recordExchange(now - exchangeStartMs);
+				exchangeStartMs = 0;
+			}
+		}
+	}
+	
 	/**
 	 * Close this protocol sequence.
 	 * 
@@ -88,36 +460,100 @@ public class ThermostatProtocol {
 	private void close(boolean failure) {
 		/* Exceptions are ignored in this method */
 		
-		/* Make sure that close is performed only once */
+		/* Make sure that the handshake is started only once */
+		boolean acknowledged;
 		synchronized (this) {
-			if (closing) {
+			if (closed || (closing && !failure)) {
 				return;
 			}
 			closing = true;
+			if (sessionTask != null) {
+				sessionTask.cancel();
+			}
+			notifyAll();
+			acknowledged = closeReceived;
 		}
-
-		/* Wait 0.5 second before closing socket just to be safe... */ 
-		if (!failure) {
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {}
+		
+		if (failure) {
+			ProtocolMetrics.getInstance().recordFailure();
+			release(false);
+			return;
+		}
+		if (codec == null || listener == null) {
+			// Nothing to acknowledge or nobody to receive the acknowledgement
+			release(false);
+			return;
 		}
 
-		if (input != null) {
-			try {
-				input.close();
-			} catch (IOException e) {}
+		try {
+			synchronized (this) {
+				closeSent = true;
+				if (!acknowledged) {
+					closeTimeoutTask = new TimerTask() {
+						@Override
+						public void run() {
+							// Releasing may flush pending output to the peer
+							runTask(new Runnable() {
+								public void run() {
+									if (closed) {
+										return;
+									}
+									ProtocolMetrics.getInstance().recordCloseTimeout();
+									release(false);
+								}
+							});
+						}
+					};
+					getTimer().schedule(closeTimeoutTask, CLOSE_TIMEOUT_MS);
+				}
+			}
+			codec.writeMessage(new CloseMessage());
+		} catch (IOException e) {
+			ProtocolMetrics.getInstance().recordFailure();
+			release(false);
+			return;
+		}
+		if (acknowledged) {
+			// This was the acknowledgement of closing initiated by the peer
+			release(true);
 		}
-		if (output != null) {
+	}
+	
+	/**
+	 * Release the connection.
+	 * 
+	 * @param acknowledged true if the peer completed the close handshake
+	 */
+	private void release(boolean acknowledged) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			closing = true;
+			if (sessionTask != null) {
+				sessionTask.cancel();
+			}
+			if (closeTimeoutTask != null) {
+				closeTimeoutTask.cancel();
+			}
+			notifyAll();
+		}
+		
+		if (codec != null) {
 			try {
-				output.close();
+				codec.close();
 			} catch (IOException e) {}
 		}
 		try {
 			socket.close();
 		} catch (IOException e) {}
 		
-		closed = true;
+		ProtocolMetrics metrics = ProtocolMetrics.getInstance();
+		if (acknowledged) {
+			metrics.recordAcknowledgedClose();
+		}
+		metrics.recordConnection(System.currentTimeMillis() - createdMs);
 	}
 	
 	/**
@@ -140,17 +576,15 @@ public class ThermostatProtocol {
 		return "Protocol instance with " + socket.toString();
 	}
 	
-	private class ThermostatProtocolInputThread extends Thread {
+	private class ThermostatProtocolInputLoop implements Runnable {
 		
-		@Override
 		public void run() {
-			while (!closing) {
+			while (!closed) {
 				try {
-					Object message = getInput().readObject();
-					listener.receiveMessage((ThermostatMessage)message, lastRequest);
+					ThermostatMessage message = getCodec().readMessage();
+					dispatch(message);
 				} catch (Exception e) {
-					listener.failure(e, lastRequest);
-					close(true);
+					receiveFailure(e);
 				}
 			}
 		}
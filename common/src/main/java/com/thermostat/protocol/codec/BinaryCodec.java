@@ -0,0 +1,567 @@
+package com.thermostat.protocol.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thermostat.protocol.ThermostatMessage;
+import com.thermostat.protocol.data.BroadcastEvent;
+import com.thermostat.protocol.data.ResidentState;
+import com.thermostat.protocol.data.ResidentStatusInfo;
+import com.thermostat.protocol.data.ZoneData;
+import com.thermostat.protocol.message.CloseMessage;
+import com.thermostat.protocol.message.KeepaliveMessage;
+import com.thermostat.protocol.message.RegistrationMessage;
+import com.thermostat.protocol.message.StateUpdateMessage;
+import com.thermostat.protocol.message.ZoneActionMessage;
+import com.thermostat.protocol.message.ZoneDataMessage;
+import com.thermostat.protocol.security.CryptographicIdMessage;
+
+/**
+ * Encodes messages in compact binary frames.
+ * 
+ * A frame consists of a message type code (one byte), the length of the payload (unsigned varint)
+ * and the payload, which is a sequence of tag-length-value fields specific to the message type (see TlvWriter).
+ * Absent (null) values are omitted and unknown tags are skipped when decoding,
+ * so fields can be added in later versions without breaking older peers.
+ * Messages of classes without a binary encoding are embedded in a frame using Java serialization.
+ * The request ID of messages exchanged in a session is stored in the first field of the payload
+ * with a tag reserved for this purpose in all message types (older peers skip it).
+ */
+public class BinaryCodec implements ThermostatCodec {
+
+	/** The most recent version of the binary format */
+	public static final int VERSION = 1;
+	
+	private static final int MAX_FRAME_SIZE = 64 * 1024;
+	
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	
+	/* Message type codes */
+	private static final int TYPE_SERIALIZED = 0;
+	private static final int TYPE_REGISTRATION = 1;
+	private static final int TYPE_CRYPTOGRAPHIC_ID = 2;
+	private static final int TYPE_STATE_UPDATE = 3;
+	private static final int TYPE_ZONE_INFO = 4;
+	private static final int TYPE_ZONE_ACTION = 5;
+	private static final int TYPE_CLOSE = 8;
+	private static final int TYPE_KEEPALIVE = 9;
+	
+	/* Field tags of each structure */
+	/** Tag of the request ID, the same in all message types */
+	private static final int MESSAGE_REQUEST_ID = 127;
+	
+	private static final int SERIALIZED_OBJECT = 1;
+	
+	private static final int REGISTRATION_PUBLIC_KEY = 1;
+	private static final int REGISTRATION_NAME = 2;
+	private static final int REGISTRATION_DEVICE_TYPE = 3;
+	private static final int REGISTRATION_BLUETOOTH_ADDRESS = 4;
+	private static final int REGISTRATION_WIFI_ADDRESS = 5;
+	
+	private static final int CRYPTOGRAPHIC_ID_ID = 1;
+	private static final int CRYPTOGRAPHIC_ID_CHALLENGE = 2;
+	
+	private static final int STATE_UPDATE_FINGERPRINT = 1;
+	private static final int STATE_UPDATE_STATE = 2;
+	private static final int STATE_UPDATE_STATUS = 3;
+	
+	private static final int STATUS_TIMESTAMP = 1;
+	private static final int STATUS_EVENT = 2;
+	private static final int STATUS_SENSOR = 3;
+	
+	private static final int EVENT_TIMESTAMP = 1;
+	private static final int EVENT_NAME = 2;
+	
+	private static final int SENSOR_NAME = 1;
+	private static final int SENSOR_VALUE = 2;
+	
+	private static final int ZONE_INFO_ZONE = 1;
+	
+	private static final int ZONE_ACTION_FINGERPRINT = 1;
+	private static final int ZONE_ACTION_ZONE = 2;
+	
+	private static final int ZONE_NAME = 1;
+	private static final int ZONE_CURRENT_TEMPERATURE = 2;
+	private static final int ZONE_TARGET_TEMPERATURE = 3;
+	private static final int ZONE_BOOST_TEMPERATURE = 4;
+	
+	private DataInputStream input;
+	
+	private OutputStream output;
+	
+	private int version;
+	
+	/** Payload of the frame being written */
+	private TlvWriter writer = new TlvWriter(INITIAL_BUFFER_SIZE);
+	
+	/** Encoded payload length of the frame being written */
+	private byte[] lengthBuffer = new byte[5];
+	
+	/** Payload of the frame being read */
+	private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+	
+	/**
+	 * @param input the stream to read frames from or null if frames are read by the caller and passed to decodeFrame()
+	 * @param output the (buffered) stream to write frames to
+	 * @param version the version of the binary format to use
+	 */
+	public BinaryCodec(InputStream input, OutputStream output, int version) {
+		this.input = input == null ? null : new DataInputStream(input);
+		this.output = output;
+		this.version = version;
+	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	void setVersion(int version) {
+		this.version = version;
+	}
+	
+	public synchronized void writeMessage(ThermostatMessage message) throws IOException {
+		writer.reset();
+		if (message.getRequestId() != 0) {
+			writer.writeLong(MESSAGE_REQUEST_ID, message.getRequestId() & 0xFFFFFFFFL);
+		}
+		int type = encode(message);
+		if (writer.size() > MAX_FRAME_SIZE) {
+			throw new IOException("Encoded " + message.getType() + " message exceeds maximum frame size");
+		}
+		output.write(type);
+		output.write(lengthBuffer, 0, TlvWriter.putVarLong(lengthBuffer, 0, writer.size()));
+		output.write(writer.getBuffer(), 0, writer.size());
+		output.flush();
+	}
+
+	public ThermostatMessage readMessage() throws IOException {
+		int type = input.read();
+		if (type < 0) {
+			throw new EOFException();
+		}
+		int length = readVarInt();
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new StreamCorruptedException("Frame size " + length + " exceeds maximum");
+		}
+		if (length > readBuffer.length) {
+			readBuffer = new byte[length];
+		}
+		input.readFully(readBuffer, 0, length);
+		return decodePayload(type, readBuffer, 0, length);
+	}
+	
+	/**
+	 * Determine the length of the frame at the beginning of a buffer.
+	 * 
+	 * @param buffer the buffer containing received bytes
+	 * @param offset the start of the frame
+	 * @param length the number of received bytes starting at offset
+	 * @return the length of the frame (including type and length) or -1 if more bytes are needed to determine it
+	 */
+	public static int getFrameLength(byte[] buffer, int offset, int length) throws StreamCorruptedException {
+		int payloadLength = 0;
+		for (int i = 1; i < length && i <= 5; ++i) {
+			int b = buffer[offset + i];
+			payloadLength |= (b & 0x7F) << (7 * (i - 1));
+			if ((b & 0x80) == 0) {
+				if (payloadLength < 0 || payloadLength > MAX_FRAME_SIZE) {
+					throw new StreamCorruptedException("Frame size " + payloadLength + " exceeds maximum");
+				}
+				return i + 1 + payloadLength;
+			}
+		}
+		if (length > 5) {
+			throw new StreamCorruptedException("Invalid frame length");
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decode a complete frame received by the caller.
+	 * 
+	 * @param buffer the buffer containing the frame
+	 * @param offset the start of the frame
+	 * @param frameLength the length of the frame as returned by getFrameLength()
+	 */
+	public ThermostatMessage decodeFrame(byte[] buffer, int offset, int frameLength) throws IOException {
+		// Skip the type and the varint payload length
+		int headerLength = 2;
+		while ((buffer[offset + headerLength - 1] & 0x80) != 0) {
+			if (++headerLength > frameLength) {
+				throw new StreamCorruptedException("Invalid frame length");
+			}
+		}
+		return decodePayload(buffer[offset] & 0xFF, buffer, offset + headerLength, frameLength - headerLength);
+	}
+	
+	private ThermostatMessage decodePayload(int type, byte[] buffer, int offset, int length) throws IOException {
+		ThermostatMessage message = decodeMessage(type, new TlvReader(buffer, offset, length));
+		TlvReader reader = new TlvReader(buffer, offset, length);
+		if (reader.next() && reader.getTag() == MESSAGE_REQUEST_ID) {
+			message.setRequestId((int)reader.getLong());
+		}
+		return message;
+	}
+	
+	private ThermostatMessage decodeMessage(int type, TlvReader reader) throws IOException {
+		switch (type) {
+		case TYPE_REGISTRATION:
+			return decodeRegistration(reader);
+		case TYPE_CRYPTOGRAPHIC_ID:
+			return decodeCryptographicId(reader);
+		case TYPE_STATE_UPDATE:
+			return decodeStateUpdate(reader);
+		case TYPE_ZONE_INFO:
+			return decodeZoneInfo(reader);
+		case TYPE_ZONE_ACTION:
+			return decodeZoneAction(reader);
+		case TYPE_CLOSE:
+			return new CloseMessage();
+		case TYPE_KEEPALIVE:
+			return new KeepaliveMessage();
+		case TYPE_SERIALIZED:
+			return decodeSerialized(reader);
+		default:
+			throw new StreamCorruptedException("Unknown message type code " + type);
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			if (input != null) {
+				input.close();
+			}
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Encode the payload of a message.
+	 * 
+	 * @return the message type code
+	 */
+	private int encode(ThermostatMessage message) throws IOException {
+		Class<?> messageClass = message.getClass();
+		if (messageClass == StateUpdateMessage.class) {
+			encodeStateUpdate((StateUpdateMessage)message);
+			return TYPE_STATE_UPDATE;
+		} else if (messageClass == ZoneDataMessage.class) {
+			encodeZoneInfo((ZoneDataMessage)message);
+			return TYPE_ZONE_INFO;
+		} else if (messageClass == ZoneActionMessage.class) {
+			encodeZoneAction((ZoneActionMessage)message);
+			return TYPE_ZONE_ACTION;
+		} else if (messageClass == CloseMessage.class) {
+			return TYPE_CLOSE;
+		} else if (messageClass == KeepaliveMessage.class) {
+			return TYPE_KEEPALIVE;
+		} else if (messageClass == RegistrationMessage.class) {
+			encodeRegistration((RegistrationMessage)message);
+			return TYPE_REGISTRATION;
+		} else if (messageClass == CryptographicIdMessage.class) {
+			encodeCryptographicId((CryptographicIdMessage)message);
+			return TYPE_CRYPTOGRAPHIC_ID;
+		} else {
+			encodeSerialized(message);
+			return TYPE_SERIALIZED;
+		}
+	}
+	
+	private void encodeRegistration(RegistrationMessage message) throws IOException {
+		writer.writeString(REGISTRATION_PUBLIC_KEY, message.getPublicKey());
+		writer.writeString(REGISTRATION_NAME, message.getName());
+		writer.writeString(REGISTRATION_DEVICE_TYPE, message.getDeviceType());
+		writer.writeString(REGISTRATION_BLUETOOTH_ADDRESS, message.getBluetoothAddress());
+		writer.writeString(REGISTRATION_WIFI_ADDRESS, message.getWifiAddress());
+	}
+	
+	private RegistrationMessage decodeRegistration(TlvReader reader) throws IOException {
+		String publicKey = null;
+		String name = null;
+		String deviceType = null;
+		String bluetoothAddress = null;
+		String wifiAddress = null;
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case REGISTRATION_PUBLIC_KEY:
+				publicKey = reader.getString();
+				break;
+			case REGISTRATION_NAME:
+				name = reader.getString();
+				break;
+			case REGISTRATION_DEVICE_TYPE:
+				deviceType = reader.getString();
+				break;
+			case REGISTRATION_BLUETOOTH_ADDRESS:
+				bluetoothAddress = reader.getString();
+				break;
+			case REGISTRATION_WIFI_ADDRESS:
+				wifiAddress = reader.getString();
+				break;
+			}
+		}
+		return new RegistrationMessage(publicKey, name, deviceType, bluetoothAddress, wifiAddress);
+	}
+	
+	private void encodeCryptographicId(CryptographicIdMessage message) throws IOException {
+		writer.writeString(CRYPTOGRAPHIC_ID_ID, message.getcCryptographicId());
+		writer.writeBytes(CRYPTOGRAPHIC_ID_CHALLENGE, message.getChallenge());
+	}
+	
+	private CryptographicIdMessage decodeCryptographicId(TlvReader reader) throws IOException {
+		String cryptographicId = null;
+		byte[] challenge = null;
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case CRYPTOGRAPHIC_ID_ID:
+				cryptographicId = reader.getString();
+				break;
+			case CRYPTOGRAPHIC_ID_CHALLENGE:
+				challenge = reader.getBytes();
+				break;
+			}
+		}
+		return new CryptographicIdMessage(cryptographicId, challenge);
+	}
+	
+	private void encodeStateUpdate(StateUpdateMessage message) throws IOException {
+		writer.writeString(STATE_UPDATE_FINGERPRINT, message.getFingerprint());
+		if (message.getState() != null) {
+			writer.writeString(STATE_UPDATE_STATE, message.getState().getName());
+		}
+		ResidentStatusInfo status = message.getStatus();
+		if (status != null) {
+			int start = writer.beginNested(STATE_UPDATE_STATUS);
+			writer.writeLong(STATUS_TIMESTAMP, status.getTimestamp());
+			if (status.getEvents() != null) {
+				for (BroadcastEvent event : status.getEvents()) {
+					int eventStart = writer.beginNested(STATUS_EVENT);
+					writer.writeLong(EVENT_TIMESTAMP, event.timestamp);
+					writer.writeString(EVENT_NAME, event.name);
+					writer.endNested(eventStart);
+				}
+			}
+			if (status.getSensorValues() != null) {
+				for (Map.Entry<String, Float> sensor : status.getSensorValues().entrySet()) {
+					int sensorStart = writer.beginNested(STATUS_SENSOR);
+					writer.writeString(SENSOR_NAME, sensor.getKey());
+					writer.writeFloat(SENSOR_VALUE, sensor.getValue());
+					writer.endNested(sensorStart);
+				}
+			}
+			writer.endNested(start);
+		}
+	}
+	
+	private StateUpdateMessage decodeStateUpdate(TlvReader reader) throws IOException {
+		String fingerprint = null;
+		ResidentState state = null;
+		ResidentStatusInfo status = null;
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case STATE_UPDATE_FINGERPRINT:
+				fingerprint = reader.getString();
+				break;
+			case STATE_UPDATE_STATE:
+				state = decodeResidentState(reader.getString());
+				break;
+			case STATE_UPDATE_STATUS:
+				status = decodeStatus(reader.getNested());
+				break;
+			}
+		}
+		return new StateUpdateMessage(fingerprint, state, status);
+	}
+	
+	private ResidentStatusInfo decodeStatus(TlvReader reader) throws IOException {
+		long timestamp = 0;
+		List<BroadcastEvent> events = new ArrayList<BroadcastEvent>();
+		Map<String, Float> sensorValues = new HashMap<String, Float>();
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case STATUS_TIMESTAMP:
+				timestamp = reader.getLong();
+				break;
+			case STATUS_EVENT:
+				events.add(decodeEvent(reader.getNested()));
+				break;
+			case STATUS_SENSOR:
+				TlvReader sensorReader = reader.getNested();
+				String name = null;
+				Float value = null;
+				while (sensorReader.next()) {
+					switch (sensorReader.getTag()) {
+					case SENSOR_NAME:
+						name = sensorReader.getString();
+						break;
+					case SENSOR_VALUE:
+						value = sensorReader.getFloat();
+						break;
+					}
+				}
+				sensorValues.put(name, value);
+				break;
+			}
+		}
+		return new ResidentStatusInfo(timestamp, events, sensorValues);
+	}
+	
+	private BroadcastEvent decodeEvent(TlvReader reader) throws IOException {
+		long timestamp = 0;
+		String name = null;
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case EVENT_TIMESTAMP:
+				timestamp = reader.getLong();
+				break;
+			case EVENT_NAME:
+				name = reader.getString();
+				break;
+			}
+		}
+		return new BroadcastEvent(timestamp, name);
+	}
+	
+	private void encodeZoneInfo(ZoneDataMessage message) throws IOException {
+		if (message.getZones() != null) {
+			for (ZoneData zone : message.getZones()) {
+				encodeZoneData(ZONE_INFO_ZONE, zone);
+			}
+		}
+	}
+	
+	private ZoneDataMessage decodeZoneInfo(TlvReader reader) throws IOException {
+		ArrayList<ZoneData> zones = new ArrayList<ZoneData>();
+		while (reader.next()) {
+			if (reader.getTag() == ZONE_INFO_ZONE) {
+				zones.add(decodeZoneData(reader.getNested()));
+			}
+		}
+		return new ZoneDataMessage(zones);
+	}
+	
+	private void encodeZoneAction(ZoneActionMessage message) throws IOException {
+		writer.writeString(ZONE_ACTION_FINGERPRINT, message.getFingerprint());
+		if (message.getZone() != null) {
+			encodeZoneData(ZONE_ACTION_ZONE, message.getZone());
+		}
+	}
+	
+	private ZoneActionMessage decodeZoneAction(TlvReader reader) throws IOException {
+		String fingerprint = null;
+		ZoneData zone = null;
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case ZONE_ACTION_FINGERPRINT:
+				fingerprint = reader.getString();
+				break;
+			case ZONE_ACTION_ZONE:
+				zone = decodeZoneData(reader.getNested());
+				break;
+			}
+		}
+		return new ZoneActionMessage(fingerprint, zone);
+	}
+	
+	private void encodeZoneData(int tag, ZoneData zone) throws IOException {
+		int start = writer.beginNested(tag);
+		writer.writeString(ZONE_NAME, zone.displayName);
+		writer.writeFloat(ZONE_CURRENT_TEMPERATURE, zone.currentTemperature);
+		writer.writeFloat(ZONE_TARGET_TEMPERATURE, zone.targetTemperature);
+		writer.writeFloat(ZONE_BOOST_TEMPERATURE, zone.boostTemperature);
+		writer.endNested(start);
+	}
+	
+	private ZoneData decodeZoneData(TlvReader reader) throws IOException {
+		String name = null;
+		Float currentTemperature = null;
+		Float targetTemperature = null;
+		Float boostTemperature = null;
+		while (reader.next()) {
+			switch (reader.getTag()) {
+			case ZONE_NAME:
+				name = reader.getString();
+				break;
+			case ZONE_CURRENT_TEMPERATURE:
+				currentTemperature = reader.getFloat();
+				break;
+			case ZONE_TARGET_TEMPERATURE:
+				targetTemperature = reader.getFloat();
+				break;
+			case ZONE_BOOST_TEMPERATURE:
+				boostTemperature = reader.getFloat();
+				break;
+			}
+		}
+		return new ZoneData(name, currentTemperature, targetTemperature, boostTemperature);
+	}
+	
+	private void encodeSerialized(ThermostatMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+		objectOutput.writeObject(message);
+		objectOutput.close();
+		writer.writeBytes(SERIALIZED_OBJECT, bytes.toByteArray());
+	}
+	
+	private ThermostatMessage decodeSerialized(TlvReader reader) throws IOException {
+		while (reader.next()) {
+			if (reader.getTag() == SERIALIZED_OBJECT) {
+				ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(reader.getBytes()));
+				try {
+					return (ThermostatMessage)objectInput.readObject();
+				} catch (ClassNotFoundException e) {
+					IOException ioe = new IOException("Unknown message class " + e.getMessage());
+					ioe.initCause(e);
+					throw ioe;
+				} finally {
+					objectInput.close();
+				}
+			}
+		}
+		throw new StreamCorruptedException("Serialized message without object");
+	}
+	
+	/**
+	 * Map state names to the predefined instances where possible.
+	 */
+	private static ResidentState decodeResidentState(String name) {
+		if (ResidentState.HOME_AWAKE.getName().equals(name)) {
+			return ResidentState.HOME_AWAKE;
+		} else if (ResidentState.HOME_SLEEPING.getName().equals(name)) {
+			return ResidentState.HOME_SLEEPING;
+		} else if (ResidentState.AWAY.getName().equals(name)) {
+			return ResidentState.AWAY;
+		} else {
+			return new ResidentState(name);
+		}
+	}
+	
+	private int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = input.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Invalid frame length");
+	}
+}
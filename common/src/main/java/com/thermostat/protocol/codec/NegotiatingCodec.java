@@ -0,0 +1,186 @@
+package com.thermostat.protocol.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+
+import com.thermostat.protocol.ThermostatMessage;
+
+/**
+ * Selects the codec used on a connection.
+ * 
+ * The initiator of a connection (the side sending the first message) announces the binary format
+ * by sending a preamble (magic number and the highest supported version) before its first message.
+ * The responder replies with a preamble of its own and both sides use the lower of the two versions.
+ * Messages sent by the initiator before the reply is received use the first version of the format.
+ * A responder receiving a Java serialization stream header instead of the preamble
+ * falls back to Java serialization, so clients not supporting the binary format keep working.
+ */
+public class NegotiatingCodec implements ThermostatCodec {
+
+	private static final byte[] PREAMBLE_MAGIC = { 'T', 'H', 'B', 'F' };
+	
+	/** First bytes of a Java serialization stream (ObjectStreamConstants.STREAM_MAGIC) */
+	private static final byte[] SERIALIZATION_MAGIC = { (byte)0xAC, (byte)0xED };
+	
+	private static final int FIRST_VERSION = 1;
+	
+	/** Length of the preamble: magic number and version */
+	public static final int PREAMBLE_LENGTH = PREAMBLE_MAGIC.length + 1;
+	
+	private InputStream input;
+	
+	private OutputStream output;
+	
+	private boolean initiator;
+	
+	/** The negotiated codec or null if not known yet */
+	private volatile ThermostatCodec codec = null;
+	
+	private boolean preambleSent = false;
+	
+	private boolean preambleReceived = false;
+	
+	/**
+	 * @param input the stream to read messages from
+	 * @param output the (buffered) stream to write messages to
+	 * @param initiator true if this side sends the first message
+	 * @param binary true if the initiator should propose the binary format, false to use Java serialization
+	 */
+	public NegotiatingCodec(InputStream input, OutputStream output, boolean initiator, boolean binary) {
+		this.input = new PushbackInputStream(input, SERIALIZATION_MAGIC.length);
+		this.output = output;
+		this.initiator = initiator;
+		if (initiator) {
+			codec = binary ? new BinaryCodec(this.input, output, FIRST_VERSION) : new SerializationCodec(this.input, output);
+		}
+	}
+	
+	/**
+	 * @return the negotiated codec or null if the first message has not been received yet
+	 */
+	public ThermostatCodec getCodec() {
+		return codec;
+	}
+
+	public void writeMessage(ThermostatMessage message) throws IOException {
+		ThermostatCodec codec = this.codec;
+		if (codec == null) {
+			throw new IOException("Codec not negotiated, the peer has to send the first message");
+		}
+		if (codec instanceof BinaryCodec) {
+			synchronized (this) {
+				if (initiator && !preambleSent) {
+					writePreamble();
+				}
+				preambleSent = true;
+			}
+		}
+		codec.writeMessage(message);
+	}
+
+	public ThermostatMessage readMessage() throws IOException {
+		if (codec == null) {
+			detectCodec();
+		} else if (initiator && !preambleReceived && codec instanceof BinaryCodec) {
+			int version = readPreamble();
+			((BinaryCodec)codec).setVersion(Math.min(version, BinaryCodec.VERSION));
+			preambleReceived = true;
+		}
+		return codec.readMessage();
+	}
+
+	public void close() throws IOException {
+		try {
+			input.close();
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Determine the codec from the first bytes sent by the initiator.
+	 */
+	private void detectCodec() throws IOException {
+		PushbackInputStream pushbackInput = (PushbackInputStream)input;
+		byte[] head = new byte[SERIALIZATION_MAGIC.length];
+		readFully(head);
+		if (isSerializationHeader(head, 0)) {
+			pushbackInput.unread(head);
+			codec = new SerializationCodec(input, output);
+		} else if (head[0] == PREAMBLE_MAGIC[0] && head[1] == PREAMBLE_MAGIC[1]) {
+			pushbackInput.unread(head);
+			int version = Math.min(readPreamble(), BinaryCodec.VERSION);
+			synchronized (this) {
+				writePreamble();
+				preambleSent = true;
+			}
+			codec = new BinaryCodec(input, output, version);
+		} else {
+			throw new StreamCorruptedException("Unknown wire format");
+		}
+	}
+	
+	private void writePreamble() throws IOException {
+		output.write(createPreamble());
+		output.flush();
+	}
+	
+	/**
+	 * @return the version announced by the peer
+	 */
+	private int readPreamble() throws IOException {
+		byte[] preamble = new byte[PREAMBLE_LENGTH];
+		readFully(preamble);
+		return parsePreamble(preamble, 0);
+	}
+	
+	/**
+	 * @return true if the buffer contains the first two bytes of a Java serialization stream at the given offset
+	 */
+	public static boolean isSerializationHeader(byte[] buffer, int offset) {
+		return buffer[offset] == SERIALIZATION_MAGIC[0] && buffer[offset + 1] == SERIALIZATION_MAGIC[1];
+	}
+	
+	/**
+	 * @return a preamble announcing the most recent version of the binary format
+	 */
+	public static byte[] createPreamble() {
+		byte[] preamble = new byte[PREAMBLE_LENGTH];
+		System.arraycopy(PREAMBLE_MAGIC, 0, preamble, 0, PREAMBLE_MAGIC.length);
+		preamble[PREAMBLE_MAGIC.length] = (byte)BinaryCodec.VERSION;
+		return preamble;
+	}
+	
+	/**
+	 * Validate a preamble.
+	 * 
+	 * @return the version announced by the peer
+	 */
+	public static int parsePreamble(byte[] buffer, int offset) throws StreamCorruptedException {
+		for (int i = 0; i < PREAMBLE_MAGIC.length; ++i) {
+			if (buffer[offset + i] != PREAMBLE_MAGIC[i]) {
+				throw new StreamCorruptedException("Unknown wire format");
+			}
+		}
+		int version = buffer[offset + PREAMBLE_MAGIC.length] & 0xFF;
+		if (version < FIRST_VERSION) {
+			throw new StreamCorruptedException("Invalid binary format version " + version);
+		}
+		return version;
+	}
+	
+	private void readFully(byte[] buffer) throws IOException {
+		int n = 0;
+		while (n < buffer.length) {
+			int count = input.read(buffer, n, buffer.length - n);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			n += count;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.thermostat.protocol.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import com.thermostat.protocol.ThermostatMessage;
+
+/**
+ * Encodes messages using Java object serialization.
+ * This is the original wire format, still used with peers not supporting the binary format.
+ */
+public class SerializationCodec implements ThermostatCodec {
+
+	private InputStream in;
+	
+	private OutputStream out;
+	
+	private ObjectInputStream input = null;
+	
+	private ObjectOutputStream output = null;
+	
+	public SerializationCodec(InputStream in, OutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+	
+	public synchronized void writeMessage(ThermostatMessage message) throws IOException {
+		if (output == null) {
+			output = new ObjectOutputStream(out);
+		}
+		output.writeObject(message);
+		output.flush();
+	}
+
+	public ThermostatMessage readMessage() throws IOException {
+		if (input == null) {
+			// Blocks until the stream header is received
+			input = new ObjectInputStream(in);
+		}
+		try {
+			return (ThermostatMessage)input.readObject();
+		} catch (ClassNotFoundException e) {
+			IOException ioe = new IOException("Unknown message class " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.thermostat.protocol.codec;
+
+import java.io.IOException;
+
+import com.thermostat.protocol.ThermostatMessage;
+
+/**
+ * Converts thermostat messages to and from the byte streams of a connection.
+ * Reading and writing may happen concurrently from different threads.
+ * Several threads may also write concurrently (e.g., replies and pushed messages of a session),
+ * so each message has to be written as a whole before the next one.
+ */
+public interface ThermostatCodec {
+
+	/**
+	 * Encode a message and flush it to the output stream.
+	 * Safe to call from several threads at the same time.
+	 */
+	void writeMessage(ThermostatMessage message) throws IOException;
+	
+	/**
+	 * Read and decode the next message, blocking until it is available.
+	 */
+	ThermostatMessage readMessage() throws IOException;
+	
+	/**
+	 * Close the underlying streams.
+	 */
+	void close() throws IOException;
+}
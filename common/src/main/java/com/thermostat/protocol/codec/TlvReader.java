@@ -0,0 +1,117 @@
+package com.thermostat.protocol.codec;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Iterates over a sequence of tag-length-value fields written by TlvWriter.
+ */
+class TlvReader {
+
+	private byte[] buffer;
+	
+	private int position;
+	
+	private int limit;
+	
+	private int tag;
+	
+	private int valueOffset;
+	
+	private int valueLength;
+	
+	TlvReader(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+	
+	/**
+	 * Advance to the next field.
+	 * 
+	 * @return false if there are no more fields
+	 */
+	boolean next() throws StreamCorruptedException {
+		if (position >= limit) {
+			return false;
+		}
+		tag = buffer[position++] & 0xFF;
+		long length = readVarLong();
+		// A varint of 10 bytes may decode negative
+		if (length < 0 || length > Integer.MAX_VALUE || length > limit - position) {
+			throw new StreamCorruptedException("Field " + tag + " exceeds its enclosing structure");
+		}
+		valueOffset = position;
+		valueLength = (int)length;
+		position += valueLength;
+		return true;
+	}
+	
+	int getTag() {
+		return tag;
+	}
+	
+	String getString() throws IOException {
+		checkValue();
+		return new String(buffer, valueOffset, valueLength, TlvWriter.UTF8);
+	}
+	
+	byte[] getBytes() throws StreamCorruptedException {
+		checkValue();
+		byte[] value = new byte[valueLength];
+		System.arraycopy(buffer, valueOffset, value, 0, valueLength);
+		return value;
+	}
+	
+	float getFloat() throws StreamCorruptedException {
+		if (valueLength != 4) {
+			throw new StreamCorruptedException("Invalid float field " + tag);
+		}
+		int i = valueOffset;
+		int bits = (buffer[i] & 0xFF) << 24 | (buffer[i + 1] & 0xFF) << 16 | (buffer[i + 2] & 0xFF) << 8 | (buffer[i + 3] & 0xFF);
+		return Float.intBitsToFloat(bits);
+	}
+	
+	long getLong() throws StreamCorruptedException {
+		long value = 0;
+		int shift = 0;
+		for (int i = valueOffset; i < valueOffset + valueLength; ++i, shift += 7) {
+			if (shift > 63) {
+				throw new StreamCorruptedException("Invalid integer field " + tag);
+			}
+			value |= (long)(buffer[i] & 0x7F) << shift;
+		}
+		return value;
+	}
+	
+	/**
+	 * @return a reader of the fields of the current (nested structure) field
+	 */
+	TlvReader getNested() {
+		return new TlvReader(buffer, valueOffset, valueLength);
+	}
+	
+	/**
+	 * Verify that the current value lies within the structure, next() must have returned true.
+	 */
+	private void checkValue() throws StreamCorruptedException {
+		if (valueLength < 0 || valueOffset < 0 || valueLength > limit - valueOffset) {
+			throw new StreamCorruptedException("Field " + tag + " exceeds its enclosing structure");
+		}
+	}
+	
+	private long readVarLong() throws StreamCorruptedException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position >= limit) {
+				break;
+			}
+			byte b = buffer[position++];
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Truncated length of field " + tag);
+	}
+}
@@ -0,0 +1,127 @@
+package com.thermostat.protocol.codec;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Builds a sequence of tag-length-value fields in a reusable byte buffer.
+ * 
+ * Each field consists of a tag (one byte), the length of the value (unsigned varint) and the value.
+ * Strings are UTF-8 encoded, floats are stored as their 4 byte IEEE 754 representation (big-endian)
+ * and integers as unsigned varints. Nested structures are fields containing a sequence of fields.
+ * Null values are omitted.
+ */
+class TlvWriter {
+
+	static final String UTF8 = "UTF-8";
+
+	private byte[] buffer;
+	
+	private int size = 0;
+	
+	TlvWriter(int initialCapacity) {
+		buffer = new byte[initialCapacity];
+	}
+	
+	void reset() {
+		size = 0;
+	}
+	
+	byte[] getBuffer() {
+		return buffer;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	void writeString(int tag, String value) throws UnsupportedEncodingException {
+		if (value != null) {
+			writeBytes(tag, value.getBytes(UTF8));
+		}
+	}
+	
+	void writeBytes(int tag, byte[] value) {
+		if (value != null) {
+			writeHeader(tag, value.length);
+			System.arraycopy(value, 0, buffer, size, value.length);
+			size += value.length;
+		}
+	}
+	
+	void writeFloat(int tag, Float value) {
+		if (value != null) {
+			writeHeader(tag, 4);
+			int bits = Float.floatToIntBits(value);
+			buffer[size++] = (byte)(bits >>> 24);
+			buffer[size++] = (byte)(bits >>> 16);
+			buffer[size++] = (byte)(bits >>> 8);
+			buffer[size++] = (byte)bits;
+		}
+	}
+	
+	void writeLong(int tag, long value) {
+		writeHeader(tag, varLongSize(value));
+		size = putVarLong(buffer, size, value);
+	}
+	
+	/**
+	 * Start a nested structure. Fields written until the matching endNested() call belong to the structure.
+	 * 
+	 * @return the position to pass to endNested()
+	 */
+	int beginNested(int tag) {
+		// Reserve a single byte for the length, which is enough for structures shorter than 128 bytes
+		ensureCapacity(2);
+		buffer[size++] = (byte)tag;
+		buffer[size++] = 0;
+		return size;
+	}
+	
+	void endNested(int start) {
+		int length = size - start;
+		int extra = varLongSize(length) - 1;
+		if (extra > 0) {
+			ensureCapacity(extra);
+			System.arraycopy(buffer, start, buffer, start + extra, length);
+			size += extra;
+		}
+		putVarLong(buffer, start - 1, length);
+	}
+	
+	private void writeHeader(int tag, int length) {
+		ensureCapacity(1 + 5 + length);
+		buffer[size++] = (byte)tag;
+		size = putVarLong(buffer, size, length);
+	}
+	
+	private void ensureCapacity(int n) {
+		if (size + n > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(2 * buffer.length, size + n)];
+			System.arraycopy(buffer, 0, newBuffer, 0, size);
+			buffer = newBuffer;
+		}
+	}
+	
+	static int varLongSize(long value) {
+		int n = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			++n;
+		}
+		return n;
+	}
+	
+	/**
+	 * Store an unsigned varint (7 bits per byte, least significant group first).
+	 * 
+	 * @return the position following the stored value
+	 */
+	static int putVarLong(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte)value;
+		return position;
+	}
+}
@@ -32,6 +32,12 @@ public class ResidentStatusInfo implements Serializable {
 		timestamp = (new Date()).getTime();
 	}
 	
+	public ResidentStatusInfo(long timestamp, List<BroadcastEvent> events, Map<String, Float> sensorValues) {
+		this.timestamp = timestamp;
+		this.events = events;
+		this.sensorValues = sensorValues;
+	}
+	
 	public long getTimestamp() {
 		return timestamp;
 	}
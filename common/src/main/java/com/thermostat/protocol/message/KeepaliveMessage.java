@@ -0,0 +1,18 @@
+package com.thermostat.protocol.message;
+
+import com.thermostat.protocol.ThermostatMessage;
+import com.thermostat.protocol.ThermostatMessageType;
+
+/**
+ * Empty message keeping an idle session alive. It is answered by the peer with a keepalive message
+ * having the same request ID and is handled by ThermostatProtocol without being passed to listeners.
+ */
+public class KeepaliveMessage extends ThermostatMessage {
+
+	private static final long serialVersionUID = -3610526817493024781L;
+
+	public KeepaliveMessage() {
+		super(ThermostatMessageType.KEEPALIVE);
+	}
+}
+
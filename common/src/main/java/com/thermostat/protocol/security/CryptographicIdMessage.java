@@ -24,6 +24,12 @@ public class CryptographicIdMessage extends ThermostatMessage {
 	    challenge = new byte[20];
 	    random.nextBytes(challenge);
 	}
+	
+	public CryptographicIdMessage(String cryptographicId, byte[] challenge) {
+		super(ThermostatMessageType.CRYPTOGRAPHIC_ID);
+		this.cryptographicId = cryptographicId;
+		this.challenge = challenge;
+	}
 
 	public String getcCryptographicId() {
 		return cryptographicId;
@@ -13,6 +13,9 @@ public class KeyHasher {
 
 	public static final String DEFAULT_HASH_ALGORITHM = "SHA-256";
 	
+	/** MessageDigest instance of each thread for the default algorithm */
+	private static final ThreadLocal<MessageDigest> defaultDigests = new ThreadLocal<MessageDigest>();
+	
 	/**
 	 * Computes cryptographic hash of a Key object
 	 * 
@@ -22,10 +25,22 @@ public class KeyHasher {
 	 * @throws NoSuchAlgorithmException when an invalid algorithm is specified 
 	 */
 	public static final String getFingerprint(Key key, String algorithm) throws NoSuchAlgorithmException  {
-		MessageDigest digest = MessageDigest.getInstance(algorithm);
+		MessageDigest digest = getDigest(algorithm);
 		byte[] hash = digest.digest(key.getEncoded());
 		return HexUtils.byteToHex(hash);
 	}
+	
+	private static MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+		if (!DEFAULT_HASH_ALGORITHM.equals(algorithm)) {
+			return MessageDigest.getInstance(algorithm);
+		}
+		MessageDigest digest = defaultDigests.get();
+		if (digest == null) {
+			digest = MessageDigest.getInstance(algorithm);
+			defaultDigests.set(digest);
+		}
+		return digest;
+	}
 
 	/**
 	 * Computes cryptographic hash of a Key object using the default hash algorithm.
@@ -0,0 +1,69 @@
+package com.thermostat.security;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of parsed public keys of peers and their fingerprints, keyed by the string representation of the key.
+ * 
+ * @param <U> the class for public key
+ */
+class PublicKeyCache<U extends PublicKey> {
+
+	private static final int MAX_KEYS = 64;
+	
+	private KeyPairSerializer<?, U> serializer;
+	
+	private Map<String, Entry<U>> entries = new LinkedHashMap<String, Entry<U>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry<U>> eldest) {
+			return size() > MAX_KEYS;
+		}
+	};
+	
+	PublicKeyCache(KeyPairSerializer<?, U> serializer) {
+		this.serializer = serializer;
+	}
+	
+	U getPublicKey(String publicKeyString) throws GeneralSecurityException {
+		return getEntry(publicKeyString).publicKey;
+	}
+	
+	String getFingerprint(String publicKeyString) throws GeneralSecurityException {
+		Entry<U> entry = getEntry(publicKeyString);
+		if (entry.fingerprint == null) {
+			entry.fingerprint = KeyHasher.getFingerprint(entry.publicKey);
+		}
+		return entry.fingerprint;
+	}
+	
+	private Entry<U> getEntry(String publicKeyString) throws GeneralSecurityException {
+		Entry<U> entry;
+		synchronized (entries) {
+			entry = entries.get(publicKeyString);
+		}
+		if (entry == null) {
+			// Parse outside the lock, concurrent parsing of the same key is harmless
+			entry = new Entry<U>(serializer.toPublicKey(publicKeyString));
+			synchronized (entries) {
+				entries.put(publicKeyString, entry);
+			}
+		}
+		return entry;
+	}
+	
+	private static class Entry<U> {
+		
+		private U publicKey;
+		
+		private volatile String fingerprint = null;
+		
+		Entry(U publicKey) {
+			this.publicKey = publicKey;
+		}
+	}
+}
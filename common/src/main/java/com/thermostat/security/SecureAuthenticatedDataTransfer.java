@@ -3,24 +3,45 @@ package com.thermostat.security;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.StreamCorruptedException;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
+import com.thermostat.security.util.HexUtils;
 import com.thermostat.security.util.SecureRandomGenerator;
 
 /**
- * Implements secure and authenticated data transfer protocol 
- * between communicating parties using public key cryptography. 
+ * Implements secure and authenticated data transfer protocol
+ * between communicating parties using public key cryptography.
+ *
+ * Public key cryptography is only used to establish a session secret shared by the two parties:
+ * the sender encrypts a random secret and a nonce with the public key of the receiver, the receiver replies
+ * with a nonce encrypted with the public key of the sender and proves knowledge of the secret.
+ * The sender proves knowledge of the secret and the receiver's nonce with its first payload.
+ * Payloads are then encrypted and authenticated with symmetric keys derived from the secret (see SessionCipher).
+ *
+ * Sessions are cached by both parties (see SessionKeyCache), so subsequent connections within the lifetime
+ * of the session resume it by exchanging fresh nonces, without any public or private key operations.
+ * A receiver not knowing the session (e.g., after a restart) makes the sender fall back to a full handshake.
  */
 public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends PublicKey> {
-
+	
 	/** Maximum time to wait for the entire handshake operation to complete  */
 	private static final long TIMEOUT_MS = 10000;
 	
-	/** Separator used between data elements in transmitted data */
-	private static final String SEPARATOR = "|";
+	/** Maximum size of a transferred data block */
+	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+	
+	/* Handshake requests of the sender */
+	private static final int HANDSHAKE_FULL = 1;
+	private static final int HANDSHAKE_RESUME = 2;
+	
+	/* Handshake replies of the receiver */
+	private static final int SESSION_ESTABLISHED = 1;
+	private static final int SESSION_RESUMED = 2;
+	private static final int SESSION_UNKNOWN = 3;
 	
 	private ThermostatSecurityManager<R, U> securityManager;
 	
@@ -28,9 +49,18 @@ public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends Pub
 	
 	private DataOutputStream output;
 	
+	/** Cipher of the connection once the handshake is completed or null */
+	private SessionCipher cipher = null;
+	
+	/** Session established by the receiver to be cached once the sender is authenticated or null */
+	private SessionKey pendingSession = null;
+	
+	/** Fingerprint of the public key of the peer once the handshake is completed */
+	private String peerFingerprint = null;
+	
 	/**
 	 * Creates a secure authenticate data transfer object to receive data from a peer.
-	 * 
+	 *
 	 * @param securityManager used to perform encryption / decryption operations
 	 * @param input the DataInputStream to read data from the peer
 	 * @param output the DataInputStream to read data from the peer
@@ -40,15 +70,26 @@ public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends Pub
 		this.input = input;
 		this.output = output;
 	}
-
+	
 	/**
 	 * Send data to a peer.
-	 * 
+	 *
 	 * @param publicKey the public key of the peer
 	 * @param data the data to be sent
 	 * @throws Exception
 	 */
 	public void send(String publicKeyString, String data) throws Exception {
+		send(publicKeyString, data.getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Send raw data to a peer. The handshake is performed on the first call only.
+	 *
+	 * @param publicKey the public key of the peer
+	 * @param data the data to be sent
+	 * @throws Exception
+	 */
+	public void send(String publicKeyString, byte[] data) throws Exception {
 		CommunicationThread t = new CommunicationThread(publicKeyString, data);
 		t.run();
 		try {
@@ -65,14 +106,24 @@ public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends Pub
 			throw new IOException("Timeout");
 		}
 	}
-
+	
 	/**
 	 * Receive data from a peer.
-	 * 
+	 *
 	 * @return the received data
 	 * @throws Exception
 	 */
 	public String receive() throws Exception {
+		return new String(receiveBytes(), "UTF-8");
+	}
+	
+	/**
+	 * Receive raw data from a peer. The handshake is performed on the first call only.
+	 *
+	 * @return the received data
+	 * @throws Exception
+	 */
+	public byte[] receiveBytes() throws Exception {
 		CommunicationThread t = new CommunicationThread();
 		t.run();
 		try {
@@ -92,21 +143,28 @@ public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends Pub
 		return t.getReply();
 	}
 	
+	/**
+	 * @return the fingerprint of the public key of the peer or null if the handshake is not completed yet
+	 */
+	public String getPeerFingerprint() {
+		return peerFingerprint;
+	}
+	
 	private final class CommunicationThread extends Thread {
-
+		
 		private String publicKeyString;
-		private String message;
+		private byte[] message;
 		
 		private Exception exception = null;
 		
 		private boolean succeeded = false;
 		
-		private String reply = null;
+		private byte[] reply = null;
 		
 		public CommunicationThread() {
 		}
 		
-		public CommunicationThread(String publicKeyString, String message) {
+		public CommunicationThread(String publicKeyString, byte[] message) {
 			this.publicKeyString = publicKeyString;
 			this.message = message;
 		}
@@ -119,7 +177,7 @@ public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends Pub
 			return succeeded;
 		}
 		
-		public String getReply() {
+		public byte[] getReply() {
 			return reply;
 		}
 		
@@ -137,58 +195,182 @@ public class SecureAuthenticatedDataTransfer<R extends PrivateKey, U extends Pub
 		}
 		
 		private void send() throws Exception {
-			// Send public key fingerprint + challenge
-			String challenge = SecureRandomGenerator.getRandomHexString();
-			String request = securityManager.getPublicKeyFingerprint() + SEPARATOR + challenge;
-			String encryptedMessage = securityManager.encrypt(request, publicKeyString);
-			output.writeUTF(encryptedMessage);
+			if (cipher == null) {
+				SessionKeyCache cache = securityManager.getSessionKeyCache();
+				SessionKey session = cache.getInitiatedSession(publicKeyString);
+				if (session == null || !resumeSession(session)) {
+					cache.removeInitiatedSession(publicKeyString);
+					establishSession();
+				}
+			}
+			writeBlock(cipher.seal(message));
 			output.flush();
-			// Read challenge response and challenge to reply
-			String enryptedResponse = input.readUTF();
-			String response = securityManager.decrypt(enryptedResponse);
-			String [] s = response.split(SEPARATOR);
-			if (s.length != 2) {
-				throw new IOException("Illegal challenge response format");
+			succeeded = true;
+		}
+		
+		/**
+		 * Resume a cached session.
+		 *
+		 * @return false if the peer does not know the session anymore
+		 */
+		private boolean resumeSession(SessionKey session) throws Exception {
+			byte[] nonce = randomBytes(SessionCipher.NONCE_LENGTH);
+			output.writeByte(HANDSHAKE_RESUME);
+			output.write(session.getId());
+			output.write(nonce);
+			output.flush();
+			int result = input.readUnsignedByte();
+			if (result == SESSION_UNKNOWN) {
+				return false;
 			}
-			if (s[0].equalsIgnoreCase(challenge)) {
-				throw new GeneralSecurityException("Authentication failure: invalid challenge response");
+			if (result != SESSION_RESUMED) {
+				throw new IOException("Illegal handshake reply " + result);
 			}
-			// Send challenge response and data
-			request = s[1] + SEPARATOR + message;
-			encryptedMessage = securityManager.encrypt(request, publicKeyString);
-			output.writeUTF(encryptedMessage);
+			byte[] peerNonce = readBytes(SessionCipher.NONCE_LENGTH);
+			byte[] proof = readBytes(SessionCipher.PROOF_LENGTH);
+			verifyProof(proof, SessionCipher.hmac(session.getSecret(), "resume", session.getId(), nonce, peerNonce));
+			cipher = new SessionCipher(session.getSecret(), nonce, peerNonce, true);
+			peerFingerprint = session.getPeerFingerprint();
+			return true;
+		}
+		
+		/**
+		 * Establish a new session using public key cryptography.
+		 */
+		private void establishSession() throws Exception {
+			// Send public key fingerprint, nonce and session secret
+			byte[] fingerprint = HexUtils.hexToByte(securityManager.getPublicKeyFingerprint());
+			byte[] nonce = randomBytes(SessionCipher.NONCE_LENGTH);
+			byte[] secret = randomBytes(SessionKey.SECRET_LENGTH);
+			byte[] request = new byte[1 + fingerprint.length + nonce.length + secret.length];
+			request[0] = (byte)fingerprint.length;
+			System.arraycopy(fingerprint, 0, request, 1, fingerprint.length);
+			System.arraycopy(nonce, 0, request, 1 + fingerprint.length, nonce.length);
+			System.arraycopy(secret, 0, request, 1 + fingerprint.length + nonce.length, secret.length);
+			output.writeByte(HANDSHAKE_FULL);
+			writeBlock(securityManager.encrypt(request, publicKeyString));
 			output.flush();
-			succeeded = true;
+			// Read session ID, encrypted nonce of the peer and proof of decrypting the secret
+			int result = input.readUnsignedByte();
+			if (result != SESSION_ESTABLISHED) {
+				throw new IOException("Illegal handshake reply " + result);
+			}
+			byte[] id = readBytes(SessionKey.ID_LENGTH);
+			byte[] encryptedPeerNonce = readBlock();
+			byte[] proof = readBytes(SessionCipher.PROOF_LENGTH);
+			verifyProof(proof, SessionCipher.hmac(secret, "establish", id, nonce, encryptedPeerNonce));
+			byte[] peerNonce = securityManager.decrypt(encryptedPeerNonce);
+			if (peerNonce.length != SessionCipher.NONCE_LENGTH) {
+				throw new IOException("Illegal nonce format");
+			}
+			cipher = new SessionCipher(secret, nonce, peerNonce, true);
+			peerFingerprint = securityManager.getPublicKeyFingerprint(publicKeyString);
+			securityManager.getSessionKeyCache().putInitiatedSession(publicKeyString, new SessionKey(id, secret, peerFingerprint));
 		}
 		
 		private void receive() throws Exception {
-			// Read public key fingerprint and challenge request
-			String enryptedResponse = input.readUTF();
-			String response = securityManager.decrypt(enryptedResponse);
-			String [] s = response.split(SEPARATOR);
-			if (s.length != 2) {
-				throw new IOException("Illegal challenge response format");
+			if (cipher == null) {
+				acceptSession();
+			}
+			byte[] sealed = readBlock();
+			// The first payload authenticates the sender of a new session
+			reply = cipher.open(sealed);
+			if (pendingSession != null) {
+				securityManager.getSessionKeyCache().putAcceptedSession(pendingSession);
+				pendingSession = null;
+			}
+			succeeded = true;
+		}
+		
+		/**
+		 * Resume or establish the session requested by the sender.
+		 */
+		private void acceptSession() throws Exception {
+			int request = input.readUnsignedByte();
+			if (request == HANDSHAKE_RESUME) {
+				byte[] id = readBytes(SessionKey.ID_LENGTH);
+				byte[] peerNonce = readBytes(SessionCipher.NONCE_LENGTH);
+				SessionKey session = securityManager.getSessionKeyCache().getAcceptedSession(id);
+				if (session != null) {
+					byte[] nonce = randomBytes(SessionCipher.NONCE_LENGTH);
+					output.writeByte(SESSION_RESUMED);
+					output.write(nonce);
+					output.write(SessionCipher.hmac(session.getSecret(), "resume", id, peerNonce, nonce));
+					output.flush();
+					cipher = new SessionCipher(session.getSecret(), peerNonce, nonce, false);
+					peerFingerprint = session.getPeerFingerprint();
+					return;
+				}
+				// The sender falls back to a full handshake
+				output.writeByte(SESSION_UNKNOWN);
+				output.flush();
+				request = input.readUnsignedByte();
+			}
+			if (request != HANDSHAKE_FULL) {
+				throw new IOException("Illegal handshake request " + request);
 			}
-			String publicKeyString = securityManager.getPublicKeyString(s[0]);
+			
+			// Read public key fingerprint, nonce and session secret
+			byte[] decrypted = securityManager.decrypt(readBlock());
+			int fingerprintLength = decrypted.length > 0 ? decrypted[0] & 0xFF : 0;
+			if (decrypted.length != 1 + fingerprintLength + SessionCipher.NONCE_LENGTH + SessionKey.SECRET_LENGTH) {
+				throw new IOException("Illegal handshake request format");
+			}
+			byte[] fingerprint = new byte[fingerprintLength];
+			byte[] peerNonce = new byte[SessionCipher.NONCE_LENGTH];
+			byte[] secret = new byte[SessionKey.SECRET_LENGTH];
+			System.arraycopy(decrypted, 1, fingerprint, 0, fingerprint.length);
+			System.arraycopy(decrypted, 1 + fingerprint.length, peerNonce, 0, peerNonce.length);
+			System.arraycopy(decrypted, 1 + fingerprint.length + peerNonce.length, secret, 0, secret.length);
+			String fingerprintString = HexUtils.byteToHex(fingerprint);
+			String publicKeyString = securityManager.getPublicKeyString(fingerprintString);
 			if (publicKeyString == null) {
 				throw new GeneralSecurityException("Authentication failure: public key of the peer is not yet registered");
 			}
-			String challenge = SecureRandomGenerator.getRandomHexString();
-			String challengeResponse = s[1] + SEPARATOR + challenge;
-			String encryptedChallengeResponse = securityManager.encrypt(challengeResponse, publicKeyString);
-			output.writeUTF(encryptedChallengeResponse);
+			
+			// Send session ID, own nonce encrypted for the peer and proof of decrypting the secret
+			byte[] id = randomBytes(SessionKey.ID_LENGTH);
+			byte[] nonce = randomBytes(SessionCipher.NONCE_LENGTH);
+			byte[] encryptedNonce = securityManager.encrypt(nonce, publicKeyString);
+			output.writeByte(SESSION_ESTABLISHED);
+			output.write(id);
+			writeBlock(encryptedNonce);
+			output.write(SessionCipher.hmac(secret, "establish", id, peerNonce, encryptedNonce));
 			output.flush();
-			String encryptedData = input.readUTF();
-			response = securityManager.decrypt(encryptedData);
-			s = response.split(SEPARATOR);
-			if (s.length != 2) {
-				throw new IOException("Illegal data format");
-			}
-			if (s[0].equalsIgnoreCase(challenge)) {
-				throw new GeneralSecurityException("Authentication failure: invalid challenge response");
-			}
-			reply = s[1];
-			succeeded = true;
+			cipher = new SessionCipher(secret, peerNonce, nonce, false);
+			peerFingerprint = fingerprintString;
+			pendingSession = new SessionKey(id, secret, fingerprintString);
+		}
+	}
+	
+	private static void verifyProof(byte[] proof, byte[] expected) throws GeneralSecurityException {
+		if (!MessageDigest.isEqual(proof, expected)) {
+			throw new GeneralSecurityException("Authentication failure: invalid session proof");
+		}
+	}
+	
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		SecureRandomGenerator.getRandomGenerator().nextBytes(bytes);
+		return bytes;
+	}
+	
+	private void writeBlock(byte[] block) throws IOException {
+		output.writeInt(block.length);
+		output.write(block);
+	}
+	
+	private byte[] readBlock() throws IOException {
+		int length = input.readInt();
+		if (length < 0 || length > MAX_BLOCK_SIZE) {
+			throw new StreamCorruptedException("Illegal block size " + length);
 		}
+		return readBytes(length);
+	}
+	
+	private byte[] readBytes(int length) throws IOException {
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return bytes;
 	}
 }
@@ -0,0 +1,149 @@
+package com.thermostat.security;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of the payloads of one connection using keys derived from a session secret.
+ * 
+ * Separate encryption and MAC keys are derived for each direction from the session secret and the nonces 
+ * of both sides (HMAC-SHA256), so keys are never reused across connections. Payloads are encrypted with AES-CTR, 
+ * and the ciphertext is authenticated with a truncated HMAC-SHA256 (encrypt-then-MAC). 
+ * Payloads are numbered in each direction; the number serves as the counter block, 
+ * so reordered or replayed payloads fail authentication.
+ */
+class SessionCipher {
+
+	static final int NONCE_LENGTH = 16;
+	
+	static final int PROOF_LENGTH = 32;
+	
+	private static final int KEY_LENGTH = 16;
+	
+	private static final int TAG_LENGTH = 16;
+	
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+	
+	private Cipher cipher;
+	
+	private Mac mac;
+	
+	private SecretKeySpec sendKey;
+	
+	private SecretKeySpec sendMacKey;
+	
+	private SecretKeySpec receiveKey;
+	
+	private SecretKeySpec receiveMacKey;
+	
+	private long sendSequence = 0;
+	
+	private long receiveSequence = 0;
+	
+	/**
+	 * @param secret the session secret
+	 * @param initiatorNonce the nonce of the side initiating the connection
+	 * @param responderNonce the nonce of the responding side
+	 * @param initiator true if this side initiated the connection
+	 */
+	SessionCipher(byte[] secret, byte[] initiatorNonce, byte[] responderNonce, boolean initiator) throws GeneralSecurityException {
+		cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+		mac = Mac.getInstance(MAC_ALGORITHM);
+		SecretKeySpec initiatorKey = new SecretKeySpec(derive(secret, "i2r-enc", initiatorNonce, responderNonce, KEY_LENGTH), "AES");
+		SecretKeySpec initiatorMacKey = new SecretKeySpec(derive(secret, "i2r-mac", initiatorNonce, responderNonce, 32), MAC_ALGORITHM);
+		SecretKeySpec responderKey = new SecretKeySpec(derive(secret, "r2i-enc", initiatorNonce, responderNonce, KEY_LENGTH), "AES");
+		SecretKeySpec responderMacKey = new SecretKeySpec(derive(secret, "r2i-mac", initiatorNonce, responderNonce, 32), MAC_ALGORITHM);
+		sendKey = initiator ? initiatorKey : responderKey;
+		sendMacKey = initiator ? initiatorMacKey : responderMacKey;
+		receiveKey = initiator ? responderKey : initiatorKey;
+		receiveMacKey = initiator ? responderMacKey : initiatorMacKey;
+	}
+	
+	/**
+	 * Encrypt and authenticate a payload.
+	 * 
+	 * @return the ciphertext followed by the authentication tag
+	 */
+	synchronized byte[] seal(byte[] data) throws GeneralSecurityException {
+		byte[] counter = counterBlock(sendSequence++);
+		cipher.init(Cipher.ENCRYPT_MODE, sendKey, new IvParameterSpec(counter));
+		byte[] sealed = new byte[data.length + TAG_LENGTH];
+		cipher.doFinal(data, 0, data.length, sealed, 0);
+		byte[] tag = tag(sendMacKey, counter, sealed, data.length);
+		System.arraycopy(tag, 0, sealed, data.length, TAG_LENGTH);
+		return sealed;
+	}
+	
+	/**
+	 * Verify and decrypt a payload sealed by the peer.
+	 */
+	synchronized byte[] open(byte[] sealed) throws GeneralSecurityException {
+		if (sealed.length < TAG_LENGTH) {
+			throw new GeneralSecurityException("Sealed payload too short");
+		}
+		int length = sealed.length - TAG_LENGTH;
+		byte[] counter = counterBlock(receiveSequence);
+		byte[] expected = tag(receiveMacKey, counter, sealed, length);
+		byte[] received = new byte[TAG_LENGTH];
+		System.arraycopy(sealed, length, received, 0, TAG_LENGTH);
+		if (!MessageDigest.isEqual(truncate(expected, TAG_LENGTH), received)) {
+			throw new GeneralSecurityException("Authentication failure: invalid payload tag");
+		}
+		++receiveSequence;
+		cipher.init(Cipher.DECRYPT_MODE, receiveKey, new IvParameterSpec(counter));
+		return cipher.doFinal(sealed, 0, length);
+	}
+	
+	private byte[] tag(SecretKeySpec key, byte[] counter, byte[] data, int length) throws GeneralSecurityException {
+		mac.init(key);
+		mac.update(counter);
+		mac.update(data, 0, length);
+		return mac.doFinal();
+	}
+	
+	/**
+	 * Compute HMAC-SHA256 of the concatenation of the given parts.
+	 */
+	static byte[] hmac(byte[] key, String label, byte[]... parts) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+		try {
+			mac.update(label.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new GeneralSecurityException(e.getMessage());
+		}
+		for (byte[] part : parts) {
+			mac.update(part);
+		}
+		return mac.doFinal();
+	}
+	
+	private static byte[] derive(byte[] secret, String label, byte[] initiatorNonce, byte[] responderNonce, int length) throws GeneralSecurityException {
+		return truncate(hmac(secret, label, initiatorNonce, responderNonce), length);
+	}
+	
+	private static byte[] truncate(byte[] bytes, int length) {
+		byte[] truncated = new byte[length];
+		System.arraycopy(bytes, 0, truncated, 0, length);
+		return truncated;
+	}
+	
+	/**
+	 * @return the initial counter block for the payload with the given number
+	 */
+	private static byte[] counterBlock(long sequence) {
+		byte[] counter = new byte[16];
+		for (int i = 0; i < 8; ++i) {
+			counter[i] = (byte)(sequence >>> (56 - 8 * i));
+		}
+		return counter;
+	}
+}
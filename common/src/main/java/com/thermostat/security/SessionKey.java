@@ -0,0 +1,60 @@
+package com.thermostat.security;
+
+import com.thermostat.security.util.HexUtils;
+
+/**
+ * Secret shared with a peer after an RSA-authenticated handshake (see SecureAuthenticatedDataTransfer).
+ * Connections with the peer resume the session using only symmetric cryptography until the session expires.
+ */
+public class SessionKey {
+
+	public static final int ID_LENGTH = 16;
+	
+	public static final int SECRET_LENGTH = 32;
+	
+	private byte[] id;
+	
+	private byte[] secret;
+	
+	/** Fingerprint of the public key of the peer */
+	private String peerFingerprint;
+	
+	private long createdMs;
+	
+	public SessionKey(byte[] id, byte[] secret, String peerFingerprint) {
+		this.id = id;
+		this.secret = secret;
+		this.peerFingerprint = peerFingerprint;
+		this.createdMs = System.currentTimeMillis();
+	}
+	
+	public byte[] getId() {
+		return id;
+	}
+	
+	/**
+	 * @return the session ID as a hex String
+	 */
+	public String getIdString() {
+		return HexUtils.byteToHex(id);
+	}
+	
+	byte[] getSecret() {
+		return secret;
+	}
+	
+	public String getPeerFingerprint() {
+		return peerFingerprint;
+	}
+	
+	public long getCreatedMs() {
+		return createdMs;
+	}
+	
+	/**
+	 * @return true if the session was established more than the given time ago
+	 */
+	public boolean isExpired(long lifetimeMs) {
+		return System.currentTimeMillis() - createdMs > lifetimeMs;
+	}
+}
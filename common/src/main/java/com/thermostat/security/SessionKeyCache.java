@@ -0,0 +1,78 @@
+package com.thermostat.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.thermostat.security.util.HexUtils;
+
+/**
+ * Keeps the sessions established with peers until they expire.
+ * Sessions initiated by this side are looked up by the public key of the peer, 
+ * sessions initiated by peers are looked up by the session ID.
+ * The least recently used sessions are dropped when the cache is full.
+ */
+public class SessionKeyCache {
+
+	/** Default time after which a new RSA handshake is required */
+	public static final long DEFAULT_LIFETIME_MS = 60 * 60 * 1000;
+	
+	private static final int MAX_SESSIONS = 64;
+	
+	private long lifetimeMs;
+	
+	/** Public key of the peer -> session initiated by this side */
+	private Map<String, SessionKey> initiatedSessions = createMap();
+	
+	/** Session ID -> session initiated by a peer */
+	private Map<String, SessionKey> acceptedSessions = createMap();
+	
+	public SessionKeyCache(long lifetimeMs) {
+		this.lifetimeMs = lifetimeMs;
+	}
+	
+	/**
+	 * @return the unexpired session initiated by this side with the given peer or null
+	 */
+	public synchronized SessionKey getInitiatedSession(String peerPublicKey) {
+		return getValid(initiatedSessions, peerPublicKey);
+	}
+	
+	public synchronized void putInitiatedSession(String peerPublicKey, SessionKey session) {
+		initiatedSessions.put(peerPublicKey, session);
+	}
+	
+	public synchronized void removeInitiatedSession(String peerPublicKey) {
+		initiatedSessions.remove(peerPublicKey);
+	}
+	
+	/**
+	 * @return the unexpired session with the given ID initiated by a peer or null
+	 */
+	public synchronized SessionKey getAcceptedSession(byte[] id) {
+		return getValid(acceptedSessions, HexUtils.byteToHex(id));
+	}
+	
+	public synchronized void putAcceptedSession(SessionKey session) {
+		acceptedSessions.put(session.getIdString(), session);
+	}
+	
+	private SessionKey getValid(Map<String, SessionKey> sessions, String key) {
+		SessionKey session = sessions.get(key);
+		if (session != null && session.isExpired(lifetimeMs)) {
+			sessions.remove(key);
+			return null;
+		}
+		return session;
+	}
+	
+	private static Map<String, SessionKey> createMap() {
+		return new LinkedHashMap<String, SessionKey>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SessionKey> eldest) {
+				return size() > MAX_SESSIONS;
+			}
+		};
+	}
+}
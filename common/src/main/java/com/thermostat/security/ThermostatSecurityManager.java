@@ -21,10 +21,22 @@ public class ThermostatSecurityManager <R extends PrivateKey, U extends PublicKe
 	private KeyPairStore<R, U> keyPairStore;
 	
 	private KeyHashStore keyHashStore;
+	
+	private SessionKeyCache sessionKeyCache = new SessionKeyCache(SessionKeyCache.DEFAULT_LIFETIME_MS);
+	
+	/** Parsed public keys of peers and their fingerprints */
+	private PublicKeyCache<U> publicKeyCache;
+	
+	/** Cached fingerprint of the own public key */
+	private String publicKeyFingerprint = null;
+	
+	/** Cipher instance of each thread, re-initialized for every operation */
+	private ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
 
 	public ThermostatSecurityManager(KeyPairStore<R, U> keyPairStore, KeyHashStore keyHashStore) {
 		this.keyPairStore = keyPairStore;
 		this.keyHashStore = keyHashStore;
+		this.publicKeyCache = new PublicKeyCache<U>(keyPairStore.getKeyPairSerializer());
 	}
 
 	/**
@@ -56,7 +68,10 @@ public class ThermostatSecurityManager <R extends PrivateKey, U extends PublicKe
 	 * @throws IOException
 	 */
 	public String getPublicKeyFingerprint() throws GeneralSecurityException, IOException {
-		return KeyHasher.getFingerprint(keyPairStore.getPublicKey());
+		if (publicKeyFingerprint == null) {
+			publicKeyFingerprint = KeyHasher.getFingerprint(keyPairStore.getPublicKey());
+		}
+		return publicKeyFingerprint;
 	}
 		
 	/**
@@ -67,7 +82,7 @@ public class ThermostatSecurityManager <R extends PrivateKey, U extends PublicKe
 	 * @throws IOException
 	 */
 	public String getPublicKeyFingerprint(String publicKey) throws GeneralSecurityException, IOException {
-		return KeyHasher.getFingerprint(keyPairStore.getKeyPairSerializer().toPublicKey(publicKey));
+		return publicKeyCache.getFingerprint(publicKey);
 	}
 
 	/**
@@ -81,11 +96,21 @@ public class ThermostatSecurityManager <R extends PrivateKey, U extends PublicKe
 	 * @throws UnsupportedEncodingException 
 	 */
 	public String encrypt(String data, String publicKeyString) throws GeneralSecurityException, UnsupportedEncodingException {
-		final Cipher cipher = Cipher.getInstance(keyPairStore.getKeyPairGenerator().getAlgorithm());
-		PublicKey publicKey = keyPairStore.getKeyPairSerializer().toPublicKey(publicKeyString);
+		return HexUtils.byteToHex(encrypt(data.getBytes("UTF-8"), publicKeyString));
+	}
+	
+	/**
+	 * Encrypts raw data using the public key of the communicating party.
+	 * 
+	 * @param data
+	 * @param publicKeyString the string representation of the public key from the communicating party
+	 * @return the encrypted bytes
+	 */
+	public byte[] encrypt(byte[] data, String publicKeyString) throws GeneralSecurityException {
+		final Cipher cipher = getCipher();
+		PublicKey publicKey = publicKeyCache.getPublicKey(publicKeyString);
 		cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-		byte [] encryptedBytes = cipher.doFinal(data.getBytes("UTF-8"));
-		return HexUtils.byteToHex(encryptedBytes);
+		return cipher.doFinal(data);
 	}
 	
 	/**
@@ -99,9 +124,34 @@ public class ThermostatSecurityManager <R extends PrivateKey, U extends PublicKe
 	 * @throws GeneralSecurityException 
 	 */
 	public String decrypt(String encryptedData) throws GeneralSecurityException, IOException {
-		final Cipher cipher = Cipher.getInstance(keyPairStore.getKeyPairGenerator().getAlgorithm());
+		return new String(decrypt(HexUtils.hexToByte(encryptedData)), "UTF-8");
+	}
+	
+	/**
+	 * Decrypt raw data using the own private key.
+	 * 
+	 * @param encryptedData the encrypted bytes
+	 * @return the decrypted bytes
+	 */
+	public byte[] decrypt(byte[] encryptedData) throws GeneralSecurityException, IOException {
+		final Cipher cipher = getCipher();
 		cipher.init(Cipher.DECRYPT_MODE, keyPairStore.getPrivateKey());
-		byte [] decryptedBytes = cipher.doFinal(HexUtils.hexToByte(encryptedData));
-		return new String(decryptedBytes, "UTF-8");
+		return cipher.doFinal(encryptedData);
+	}
+	
+	private Cipher getCipher() throws GeneralSecurityException {
+		Cipher cipher = ciphers.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(keyPairStore.getKeyPairGenerator().getAlgorithm());
+			ciphers.set(cipher);
+		}
+		return cipher;
+	}
+	
+	/**
+	 * Get the sessions established with peers by SecureAuthenticatedDataTransfer
+	 */
+	public SessionKeyCache getSessionKeyCache() {
+		return sessionKeyCache;
 	}
 }
@@ -17,10 +17,22 @@ import com.thermostat.security.KeyPairSerializer;
  */
 public class RSAKeyPairSerializer implements KeyPairSerializer<RSAPrivateKey, RSAPublicKey> {
 
+	/** KeyFactory instance of each thread */
+	private static final ThreadLocal<KeyFactory> keyFactories = new ThreadLocal<KeyFactory>();
+	
+	private static KeyFactory getKeyFactory() throws NoSuchAlgorithmException {
+		KeyFactory keyFactory = keyFactories.get();
+		if (keyFactory == null) {
+			keyFactory = KeyFactory.getInstance("RSA");
+			keyFactories.set(keyFactory);
+		}
+		return keyFactory;
+	}
+
 	public String toString(RSAPrivateKey privateKey) throws InvalidKeySpecException {
 		KeyFactory keyFactory;
 		try {
-			keyFactory = KeyFactory.getInstance("RSA");
+			keyFactory = getKeyFactory();
 			RSAPrivateKeySpec privateKeySpec = keyFactory.getKeySpec(privateKey, RSAPrivateKeySpec.class);
 			return privateKeySpec.getModulus() + "," + privateKeySpec.getPrivateExponent();
 		} catch (NoSuchAlgorithmException e) {
@@ -33,7 +45,7 @@ public class RSAKeyPairSerializer implements KeyPairSerializer<RSAPrivateKey, RS
 	public String toString(RSAPublicKey publicKey) throws InvalidKeySpecException {
 		KeyFactory keyFactory;
 		try {
-			keyFactory = KeyFactory.getInstance("RSA");
+			keyFactory = getKeyFactory();
 			RSAPublicKeySpec publicKeySpec = keyFactory.getKeySpec(publicKey, RSAPublicKeySpec.class);
 			return publicKeySpec.getModulus() + "," + publicKeySpec.getPublicExponent();
 		} catch (NoSuchAlgorithmException e) {
@@ -51,7 +63,7 @@ public class RSAKeyPairSerializer implements KeyPairSerializer<RSAPrivateKey, RS
 		BigInteger modulus = new BigInteger(components[0]);
 		BigInteger privateExponent = new BigInteger(components[1]);
 		RSAPrivateKeySpec privateKeySpec = new RSAPrivateKeySpec(modulus, privateExponent);
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		KeyFactory keyFactory = getKeyFactory();
 		return (RSAPrivateKey)keyFactory.generatePrivate(privateKeySpec);
 	}
 
@@ -63,7 +75,7 @@ public class RSAKeyPairSerializer implements KeyPairSerializer<RSAPrivateKey, RS
 		BigInteger modulus = new BigInteger(components[0]);
 		BigInteger publicExponent = new BigInteger(components[1]);
 		RSAPublicKeySpec publicKeySpec = new RSAPublicKeySpec(modulus, publicExponent);
-		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+		KeyFactory keyFactory = getKeyFactory();
 		return (RSAPublicKey)keyFactory.generatePublic(publicKeySpec);
 	}
 
@@ -0,0 +1,81 @@
+package com.thermostat.protocol.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import com.thermostat.protocol.message.RegistrationMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Decoding of received frames, including malformed frames sent by unauthenticated peers.
+ */
+public class BinaryCodecTest extends TestCase {
+
+	private static final int TYPE_REGISTRATION = 1;
+
+	private static final int REGISTRATION_PUBLIC_KEY = 1;
+
+	private static final int UNKNOWN_TAG = 100;
+
+	public void testRoundTrip() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryCodec codec = new BinaryCodec(null, output, BinaryCodec.VERSION);
+		RegistrationMessage message = new RegistrationMessage("key", "phone", "android", null, "00:11:22:33:44:55");
+		message.setRequestId(42);
+		codec.writeMessage(message);
+		byte[] frame = output.toByteArray();
+		assertEquals(frame.length, BinaryCodec.getFrameLength(frame, 0, frame.length));
+		RegistrationMessage decoded = (RegistrationMessage)codec.decodeFrame(frame, 0, frame.length);
+		assertEquals(42, decoded.getRequestId());
+		assertEquals("key", decoded.getPublicKey());
+		assertEquals("phone", decoded.getName());
+		assertEquals("android", decoded.getDeviceType());
+		assertNull(decoded.getBluetoothAddress());
+		assertEquals("00:11:22:33:44:55", decoded.getWifiAddress());
+	}
+
+	public void testNegativeFieldLength() throws IOException {
+		assertCorrupted(frame(REGISTRATION_PUBLIC_KEY, -1));
+	}
+
+	public void testBackwardFieldLength() throws IOException {
+		// Skipping an unknown field must not move back to its own header
+		assertCorrupted(frame(UNKNOWN_TAG, -11));
+	}
+
+	public void testOversizedFieldLength() throws IOException {
+		assertCorrupted(frame(REGISTRATION_PUBLIC_KEY, 1L << 31));
+		assertCorrupted(frame(REGISTRATION_PUBLIC_KEY, 12));
+	}
+
+	public void testTruncatedFieldLength() throws IOException {
+		assertCorrupted(new byte[] {TYPE_REGISTRATION, 2, REGISTRATION_PUBLIC_KEY, (byte)0x80});
+	}
+
+	/**
+	 * @return a registration frame containing a single field header with the given value length and no value
+	 */
+	private static byte[] frame(int tag, long valueLength) {
+		byte[] buffer = new byte[13];
+		int size = TlvWriter.putVarLong(buffer, 3, valueLength);
+		buffer[0] = TYPE_REGISTRATION;
+		buffer[1] = (byte)(size - 2);
+		buffer[2] = (byte)tag;
+		byte[] frame = new byte[size];
+		System.arraycopy(buffer, 0, frame, 0, size);
+		return frame;
+	}
+
+	private static void assertCorrupted(byte[] frame) throws IOException {
+		BinaryCodec codec = new BinaryCodec(null, new ByteArrayOutputStream(), BinaryCodec.VERSION);
+		assertEquals(frame.length, BinaryCodec.getFrameLength(frame, 0, frame.length));
+		try {
+			codec.decodeFrame(frame, 0, frame.length);
+			fail("Decoded a corrupted frame");
+		} catch (StreamCorruptedException e) {
+			// Expected
+		}
+	}
+}
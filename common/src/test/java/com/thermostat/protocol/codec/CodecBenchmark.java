@@ -0,0 +1,140 @@
+package com.thermostat.protocol.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.thermostat.protocol.ThermostatMessage;
+import com.thermostat.protocol.data.BroadcastEvent;
+import com.thermostat.protocol.data.ResidentState;
+import com.thermostat.protocol.data.ResidentStatusInfo;
+import com.thermostat.protocol.data.ZoneData;
+import com.thermostat.protocol.message.StateUpdateMessage;
+import com.thermostat.protocol.message.ZoneActionMessage;
+import com.thermostat.protocol.message.ZoneDataMessage;
+
+/**
+ * Compares the binary format with Java serialization: bytes on the wire and encode/decode time
+ * of the messages exchanged most often.
+ *
+ * A serialization stream carries the class descriptors of the objects written before,
+ * so each serialized message is encoded on a new stream, as sent on a new connection.
+ * The binary codec keeps no state between messages and is reused.
+ *
+ * Usage: CodecBenchmark [JMH options], prints the encoded sizes before running the benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	private static final String FINGERPRINT = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+	@Param({"stateUpdate", "zoneData", "zoneAction"})
+	public String message;
+
+	@Param({"binary", "serialization"})
+	public String codec;
+
+	private ThermostatMessage value;
+
+	/** Keeps its buffer when reset */
+	private ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+
+	private BinaryCodec binaryCodec = new BinaryCodec(null, output, BinaryCodec.VERSION);
+
+	/** The encoded message */
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		value = createMessage(message);
+		encoded = encodeMessage(codec, value);
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		output.reset();
+		if (codec.equals("binary")) {
+			binaryCodec.writeMessage(value);
+		} else {
+			new SerializationCodec(null, output).writeMessage(value);
+		}
+		return output.size();
+	}
+
+	@Benchmark
+	public ThermostatMessage decode() throws IOException {
+		if (codec.equals("binary")) {
+			return binaryCodec.decodeFrame(encoded, 0, encoded.length);
+		} else {
+			return new SerializationCodec(new ByteArrayInputStream(encoded), null).readMessage();
+		}
+	}
+
+	static ThermostatMessage createMessage(String name) {
+		if (name.equals("stateUpdate")) {
+			List<BroadcastEvent> events = new ArrayList<BroadcastEvent>();
+			events.add(new BroadcastEvent(1700006400000L, "android.intent.action.SCREEN_ON"));
+			events.add(new BroadcastEvent(1700006460000L, "android.intent.action.USER_PRESENT"));
+			events.add(new BroadcastEvent(1700006520000L, "android.intent.action.SCREEN_OFF"));
+			Map<String, Float> sensorValues = new HashMap<String, Float>();
+			sensorValues.put("light", 120.5f);
+			sensorValues.put("proximity", 5f);
+			sensorValues.put("battery", 0.87f);
+			return new StateUpdateMessage(FINGERPRINT, ResidentState.HOME_AWAKE,
+					new ResidentStatusInfo(1700006580000L, events, sensorValues));
+		} else if (name.equals("zoneData")) {
+			ArrayList<ZoneData> zones = new ArrayList<ZoneData>();
+			zones.add(new ZoneData("Living room", 20.5f, 21f, null));
+			zones.add(new ZoneData("Bedroom", 18.25f, 18f, null));
+			zones.add(new ZoneData("Kitchen", 19.75f, 20f, 22f));
+			zones.add(new ZoneData("Bathroom", 22f, 23f, null));
+			return new ZoneDataMessage(zones);
+		} else {
+			return new ZoneActionMessage(FINGERPRINT, new ZoneData("Living room", 20.5f, 21f, 23f));
+		}
+	}
+
+	static byte[] encodeMessage(String codec, ThermostatMessage message) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		if (codec.equals("binary")) {
+			new BinaryCodec(null, output, BinaryCodec.VERSION).writeMessage(message);
+		} else {
+			new SerializationCodec(null, output).writeMessage(message);
+		}
+		return output.toByteArray();
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (String message : new String[] {"stateUpdate", "zoneData", "zoneAction"}) {
+			System.out.println(message + ": binary " + encodeMessage("binary", createMessage(message)).length +
+					" bytes, serialization " + encodeMessage("serialization", createMessage(message)).length + " bytes");
+		}
+		new Runner(new OptionsBuilder().include(CodecBenchmark.class.getSimpleName())
+				.parent(new CommandLineOptions(args)).build()).run();
+	}
+}
@@ -0,0 +1,219 @@
+package com.thermostat.security;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.thermostat.security.rsa.RSAKeyPairGenerator;
+import com.thermostat.security.rsa.RSAKeyPairSerializer;
+import com.thermostat.security.util.HexUtils;
+
+/**
+ * Measures the public key operations of a full handshake of SecureAuthenticatedDataTransfer with 2048 bit RSA keys:
+ * the initiator encrypts the request for the acceptor, the acceptor decrypts it and encrypts its nonce
+ * for the initiator, which decrypts the nonce and looks up the fingerprint of the acceptor's key.
+ *
+ * The *Uncached benchmarks perform the same operations as ThermostatSecurityManager did before parsed keys,
+ * fingerprints and Cipher / MessageDigest instances were cached: every operation parses the peer's key string
+ * and looks up a new Cipher or MessageDigest.
+ *
+ * Usage: HandshakeBenchmark [JMH options]
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+	private static final int KEY_SIZE = 2048;
+
+	private MemoryKeyPairStore initiatorKeys;
+
+	private MemoryKeyPairStore acceptorKeys;
+
+	private ThermostatSecurityManager<RSAPrivateKey, RSAPublicKey> initiator;
+
+	private ThermostatSecurityManager<RSAPrivateKey, RSAPublicKey> acceptor;
+
+	private String initiatorKey;
+
+	private String acceptorKey;
+
+	/** Fingerprint, nonce and session secret sent by the initiator */
+	private byte[] request;
+
+	/** Nonce of the acceptor */
+	private byte[] nonce;
+
+	@Setup
+	public void setUp() throws GeneralSecurityException, IOException {
+		Map<String, String> registeredKeys = new HashMap<String, String>();
+		initiatorKeys = new MemoryKeyPairStore();
+		acceptorKeys = new MemoryKeyPairStore();
+		initiator = new ThermostatSecurityManager<RSAPrivateKey, RSAPublicKey>(initiatorKeys, new MemoryKeyHashStore(registeredKeys));
+		acceptor = new ThermostatSecurityManager<RSAPrivateKey, RSAPublicKey>(acceptorKeys, new MemoryKeyHashStore(registeredKeys));
+		initiatorKey = initiator.getPublicKeyString();
+		acceptorKey = acceptor.getPublicKeyString();
+		registeredKeys.put(initiator.getPublicKeyFingerprint(), initiatorKey);
+		registeredKeys.put(acceptor.getPublicKeyFingerprint(), acceptorKey);
+
+		SecureRandom random = new SecureRandom();
+		byte[] fingerprint = HexUtils.hexToByte(initiator.getPublicKeyFingerprint());
+		request = new byte[1 + fingerprint.length + SessionCipher.NONCE_LENGTH + SessionKey.SECRET_LENGTH];
+		random.nextBytes(request);
+		request[0] = (byte)fingerprint.length;
+		System.arraycopy(fingerprint, 0, request, 1, fingerprint.length);
+		nonce = new byte[SessionCipher.NONCE_LENGTH];
+		random.nextBytes(nonce);
+	}
+
+	@Benchmark
+	public String handshake() throws GeneralSecurityException, IOException {
+		initiator.getPublicKeyFingerprint();
+		byte[] encryptedRequest = initiator.encrypt(request, acceptorKey);
+		acceptor.decrypt(encryptedRequest);
+		byte[] encryptedNonce = acceptor.encrypt(nonce, initiatorKey);
+		initiator.decrypt(encryptedNonce);
+		return initiator.getPublicKeyFingerprint(acceptorKey);
+	}
+
+	@Benchmark
+	public String handshakeUncached() throws GeneralSecurityException, IOException {
+		uncachedFingerprint(initiatorKeys.getPublicKey());
+		byte[] encryptedRequest = uncachedEncrypt(request, acceptorKey);
+		uncachedDecrypt(acceptorKeys, encryptedRequest);
+		byte[] encryptedNonce = uncachedEncrypt(nonce, initiatorKey);
+		uncachedDecrypt(initiatorKeys, encryptedNonce);
+		return uncachedFingerprint(initiatorKeys.getKeyPairSerializer().toPublicKey(acceptorKey));
+	}
+
+	@Benchmark
+	public byte[] encrypt() throws GeneralSecurityException {
+		return initiator.encrypt(nonce, acceptorKey);
+	}
+
+	@Benchmark
+	public byte[] encryptUncached() throws GeneralSecurityException {
+		return uncachedEncrypt(nonce, acceptorKey);
+	}
+
+	@Benchmark
+	public String peerFingerprint() throws GeneralSecurityException, IOException {
+		return initiator.getPublicKeyFingerprint(acceptorKey);
+	}
+
+	@Benchmark
+	public String peerFingerprintUncached() throws GeneralSecurityException {
+		return uncachedFingerprint(initiatorKeys.getKeyPairSerializer().toPublicKey(acceptorKey));
+	}
+
+	private byte[] uncachedEncrypt(byte[] data, String publicKeyString) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance(initiatorKeys.getKeyPairGenerator().getAlgorithm());
+		cipher.init(Cipher.ENCRYPT_MODE, initiatorKeys.getKeyPairSerializer().toPublicKey(publicKeyString));
+		return cipher.doFinal(data);
+	}
+
+	private static byte[] uncachedDecrypt(MemoryKeyPairStore keys, byte[] data) throws GeneralSecurityException, IOException {
+		Cipher cipher = Cipher.getInstance(keys.getKeyPairGenerator().getAlgorithm());
+		cipher.init(Cipher.DECRYPT_MODE, keys.getPrivateKey());
+		return cipher.doFinal(data);
+	}
+
+	private static String uncachedFingerprint(PublicKey key) throws GeneralSecurityException {
+		MessageDigest digest = MessageDigest.getInstance(KeyHasher.DEFAULT_HASH_ALGORITHM);
+		return HexUtils.byteToHex(digest.digest(key.getEncoded()));
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(HandshakeBenchmark.class.getSimpleName())
+				.parent(new CommandLineOptions(args)).build()).run();
+	}
+
+	/**
+	 * RSA key pair generated when first used and kept in memory.
+	 */
+	private static class MemoryKeyPairStore extends KeyPairStore<RSAPrivateKey, RSAPublicKey> {
+
+		private RSAKeyPairGenerator generator = new RSAKeyPairGenerator(KEY_SIZE);
+
+		private RSAKeyPairSerializer serializer = new RSAKeyPairSerializer();
+
+		private KeyPairStoreInterface store = new KeyPairStoreInterface() {
+			private String privateKeyString;
+
+			private String publicKeyString;
+
+			public String getPrivateKeyString() {
+				return privateKeyString;
+			}
+
+			public String getPublicKeyString() {
+				return publicKeyString;
+			}
+
+			public void storePrivateKeyString(String privateKeyString) {
+				this.privateKeyString = privateKeyString;
+			}
+
+			public void storePublicKeyString(String publicKeyString) {
+				this.publicKeyString = publicKeyString;
+			}
+
+			public void commit() {
+			}
+		};
+
+		@Override
+		public KeyPairGenericGenerator<RSAPrivateKey, RSAPublicKey> getKeyPairGenerator() {
+			return generator;
+		}
+
+		@Override
+		public KeyPairSerializer<RSAPrivateKey, RSAPublicKey> getKeyPairSerializer() {
+			return serializer;
+		}
+
+		@Override
+		public KeyPairStoreInterface getStore() {
+			return store;
+		}
+	}
+
+	private static class MemoryKeyHashStore implements KeyHashStore {
+
+		private Map<String, String> keys;
+
+		MemoryKeyHashStore(Map<String, String> keys) {
+			this.keys = keys;
+		}
+
+		public String getPublicKey(String keyHash) {
+			return keys.get(keyHash);
+		}
+	}
+}
@@ -1,19 +1,28 @@
 package com.thermostat.server;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.thermostat.protocol.ProtocolMetrics;
+import com.thermostat.protocol.ThermostatProtocol;
 import com.thermostat.server.discovery.IpDiscoveryManager;
+import com.thermostat.server.profile.ResidentStatusLogger;
+import com.thermostat.server.protocol.ConnectionExecutorFactory;
 import com.thermostat.server.protocol.ThermostatListenServer;
 import com.thermostat.server.protocol.ThermostatListenServerFactory;
-import com.thermostat.server.zone.ZoneManager;
 import com.thermostat.server.zone.ZoneRegistryFactory;
+import com.thermostat.server.zone.ZoneScheduler;
 
 public class ThermostatServer {
 
 	private static Logger logger = Logger.getLogger(ThermostatServer.class.getSimpleName());
 	
+	private static final long METRICS_LOG_PERIOD_MS = 60 * 60 * 1000;
+	
 	public static void main(String[] args) {
 		try {
 			// Start discovery manager
@@ -24,6 +33,13 @@ public class ThermostatServer {
 			System.exit(-1);
 		}
 		
+		// Run input loops of blocking connections on the configured executor
+		ThermostatProtocol.setInputExecutor(ConnectionExecutorFactory.getExecutor());
+		
+		// Start periodic evaluation of zones managing temperature in each zone
+		// before accepting state updates, which request evaluations of scheduled zones
+		ZoneScheduler.getInstance().start(ZoneRegistryFactory.getZoneRegistry().getZoneManagers());
+		
 		// Start communication threads listening on different technologies
 		List<ThermostatListenServer> listenServers = ThermostatListenServerFactory.getListenServers();
 		if (listenServers.isEmpty()) {
@@ -34,10 +50,18 @@ public class ThermostatServer {
 			server.start();
 		}
 		
-		// Start actuation threads managing temperature in each zone
-		for (ZoneManager z : ZoneRegistryFactory.getZoneRegistry().getZoneManagers()) {
-			z.start();
-		}
+		// Log connection and status log metrics periodically
+		new Timer("MetricsLogger", true).scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				logger.info("Connection metrics: " + ProtocolMetrics.getInstance());
+				try {
+					logger.info("Resident status log: " + ResidentStatusLogger.getInstance());
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not open resident status log file", e);
+				}
+			}
+		}, METRICS_LOG_PERIOD_MS, METRICS_LOG_PERIOD_MS);
 	}
 
 }
@@ -2,15 +2,19 @@ package com.thermostat.server.actuation;
 
 import java.io.IOException;
 
+import com.thermostat.server.actuation.control.ControlLaw;
 import com.thermostat.server.temperature.TemperatureHistory;
 
 /**
  * Controls heating (and optionally cooling) for a given zone.
- * TODO: implement here generic temperature control logic independent of actuator type.
- * E.g., open window detection.
+ * The heating demand is computed by a {@link ControlLaw} independent of actuator type, if set.
+ * TODO: implement here further generic temperature control logic. E.g., open window detection.
  */
 public abstract class Actuator {
 
+	/** Computes the heating demand or null if the actuator uses its built-in control logic */
+	private ControlLaw controlLaw = null;
+
 	/**
 	 * Receive temperature information updates.
 	 * 
@@ -26,8 +30,21 @@ public abstract class Actuator {
 	 */
 	public abstract double getStatus() throws IOException;
 	
+	public ControlLaw getControlLaw() {
+		return controlLaw;
+	}
+	
+	/**
+	 * Set the control law computing the heating demand.
+	 * 
+	 * @param controlLaw the control law or null to use the built-in control logic of the actuator
+	 */
+	public void setControlLaw(ControlLaw controlLaw) {
+		this.controlLaw = controlLaw;
+	}
+	
 	@Override
 	public String toString() {
-		return getClass().getSimpleName();
+		return getClass().getSimpleName() + (controlLaw == null ? "" : " (" + controlLaw + ")");
 	}
 }
@@ -7,6 +7,8 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.thermostat.server.actuation.gpio.GpioBackend;
+import com.thermostat.server.actuation.gpio.GpioBackendFactory;
 import com.thermostat.server.actuation.gpio.GpioDirection;
 import com.thermostat.server.actuation.gpio.GpioPort;
 import com.thermostat.server.temperature.TemperatureHistory;
@@ -16,6 +18,13 @@ import com.thermostat.server.temperature.TemperatureHistory;
  * This is a "blind" control with no direct radiator valve status feedback.
  * Slow feedback is available only via the external temperature sensor.
  * 
+ * Knob steps are played by a dedicated stepper thread, so update() returns immediately. 
+ * Requested steps are kept as a signed count, so opposing steps (up then down) cancel out before being played.
+ * 
+ * If a control law is set, the valve is turned to the position corresponding to the heating demand 
+ * (see {@link #getStatus()}). Otherwise the valve temperature follows the target temperature, 
+ * corrected by temperature trends.
+ * 
  * TODO: sanity check on GPIO input
  */
 public class GpioMotorizedValveActuator extends Actuator {
@@ -37,6 +46,12 @@ public class GpioMotorizedValveActuator extends Actuator {
 	/** Minimum temperature difference of ambient temperature compared to target temperature to start valve temperature adjustment */
 	private static final double TEMPERATURE_ADJUSTMENT_THRESHOLD = 0.25;
 	
+	/** Lowest temperature setting of the valve, reported as status 0 */
+	private static final double VALVE_MIN_TEMPERATURE = 5;
+	
+	/** Highest temperature setting of the valve, reported as status 1 */
+	private static final double VALVE_MAX_TEMPERATURE = 30;
+	
 	private static final int GPIO_OUTPUT_1 = 17;
 	private static final int GPIO_OUTPUT_2 = 27;
 //	private static final int GPIO_INPUT_1 = 9;
@@ -45,8 +60,14 @@ public class GpioMotorizedValveActuator extends Actuator {
 	/** Assumed temperature currently set on the motorized radiator valve, measured in TEMPERATURE_STEP units */
 	private Long valveTemperatureUnits = null;
 	
+	/** Steps requested but not played yet: positive to turn up, negative to turn down */
+	private long pendingSteps = 0;
+	
 	private long startTimestamp;
 	
+	/** Time to wait after startup in minutes */
+	private long warmupMinutes;
+	
 	private long lastUpdate;
 	
 	private GpioPort gpioOut1;
@@ -60,12 +81,21 @@ public class GpioMotorizedValveActuator extends Actuator {
 	private List<GpioPortValue> downSequence;
 
 	public GpioMotorizedValveActuator() throws IOException {
+		this(GpioBackendFactory.getBackend(), WARMUP_TIMER_MINUTES);
+	}
+	
+	/**
+	 * @param backend the backend of the GPIO ports
+	 * @param warmupMinutes time to wait after startup before adjusting the valve
+	 */
+	GpioMotorizedValveActuator(GpioBackend backend, long warmupMinutes) throws IOException {
 		startTimestamp = new Date().getTime()/1000;
 		lastUpdate = startTimestamp;
+		this.warmupMinutes = warmupMinutes;
 
 		// Initialize GPIO ports and output value sequences
-		gpioOut1 = new GpioPort(GPIO_OUTPUT_1, GpioDirection.OUT);
-		gpioOut2 = new GpioPort(GPIO_OUTPUT_2, GpioDirection.OUT);
+		gpioOut1 = new GpioPort(backend, GPIO_OUTPUT_1, GpioDirection.OUT);
+		gpioOut2 = new GpioPort(backend, GPIO_OUTPUT_2, GpioDirection.OUT);
 		upSequence = Arrays.asList(new GpioPortValue(gpioOut2, true),
 				new GpioPortValue(gpioOut1, true),
 				new GpioPortValue(gpioOut2, false),
@@ -74,6 +104,8 @@ public class GpioMotorizedValveActuator extends Actuator {
 				new GpioPortValue(gpioOut2, true),
 				new GpioPortValue(gpioOut1, false),
 				new GpioPortValue(gpioOut2, false));
+		
+		new ValveStepper().start();
 	}
 	
 	public synchronized void update(TemperatureHistory temperatureHistory) throws IOException {
@@ -81,40 +113,50 @@ public class GpioMotorizedValveActuator extends Actuator {
 		double targetTemperature = temperatureHistory.getCurrentTargetTemperature();
 		
 		long timestamp = new Date().getTime()/1000;
-		if (timestamp - startTimestamp < WARMUP_TIMER_MINUTES*60) {
+		if (timestamp - startTimestamp < warmupMinutes*60) {
 			return;
 		}
 		
 		long ambientTemperatureUnits = Math.round(ambientTemperature / TEMPERATURE_STEP);
-		long targetTemperatureUnits = Math.round(targetTemperature / TEMPERATURE_STEP);
+		long targetTemperatureUnits;
+		if (getControlLaw() != null) {
+			double demand = getControlLaw().update(temperatureHistory);
+			targetTemperatureUnits = Math.round((VALVE_MIN_TEMPERATURE + demand * (VALVE_MAX_TEMPERATURE - VALVE_MIN_TEMPERATURE)) / TEMPERATURE_STEP);
+		} else {
+			targetTemperatureUnits = Math.round(targetTemperature / TEMPERATURE_STEP);
+		}
 		if (valveTemperatureUnits == null) {
 			// Assume that the radiator valve is already in an stabilized state
 			valveTemperatureUnits = ambientTemperatureUnits;
 		}
 
-		long delta = valveTemperatureUnits - targetTemperatureUnits;
-		logger.info("Estimated valve temperature: " + valveTemperatureUnits*TEMPERATURE_STEP);
-		if (delta < 0) {
-			for (; valveTemperatureUnits < targetTemperatureUnits; ++valveTemperatureUnits) {
-				playSequence(upSequence);
-			}
-			lastUpdate = timestamp;
-		} else if (delta > 0) {
-			for (; valveTemperatureUnits > targetTemperatureUnits; --valveTemperatureUnits) {
-				playSequence(downSequence);
-			}
+		// Compare the target to the valve temperature once pending steps have been played
+		long delta = valveTemperatureUnits + pendingSteps - targetTemperatureUnits;
+		logger.info("Estimated valve temperature: " + valveTemperatureUnits*TEMPERATURE_STEP + ", pending steps: " + pendingSteps);
+		if (delta != 0) {
+			requestSteps(-delta);
 			lastUpdate = timestamp;
-		} else if (timestamp - lastUpdate > CHANGE_TIMER_MINUTES*60) {
+		} else if (getControlLaw() == null && timestamp - lastUpdate > CHANGE_TIMER_MINUTES*60) {
 			verifyTemperatureTrends(temperatureHistory);
 		}
 	}
 
+	/**
+	 * Queue steps to be played by the stepper thread.
+	 * 
+	 * @param steps the number of units to turn up (if positive) or down (if negative)
+	 */
+	private synchronized void requestSteps(long steps) {
+		pendingSteps += steps;
+		notifyAll();
+	}
+	
 	/**
 	 * Play a GPIO output sequence to increase or decrease target temperature by one unit
 	 * @throws IOException 
 	 */
-	private void playSequence(List<GpioPortValue> sequence) throws IOException {
-		logger.info((sequence == upSequence ? "Increasing" : "Decreasing") + " valve temperature from " + (valveTemperatureUnits * TEMPERATURE_STEP));
+	private void playSequence(List<GpioPortValue> sequence, long fromUnits) throws IOException {
+		logger.info((sequence == upSequence ? "Increasing" : "Decreasing") + " valve temperature from " + (fromUnits * TEMPERATURE_STEP));
 		for (GpioPortValue gpio : sequence) {
 			gpio.port.set(gpio.value);
 			try {
@@ -135,18 +177,73 @@ public class GpioMotorizedValveActuator extends Actuator {
 		
 		// Below target temperature with at least 1°C and still cooling 
 		if (targetTemperature - tenMinAvg > TEMPERATURE_ADJUSTMENT_THRESHOLD && tenMinTrends < 0) {
-			playSequence(upSequence);
+			requestSteps(1);
 			lastUpdate = timestamp;
 		}
 		// Above target temperature with at least 1°C and still warming up 
 		if (targetTemperature - tenMinAvg < -TEMPERATURE_ADJUSTMENT_THRESHOLD && tenMinTrends > 0) {
-			playSequence(downSequence);
+			requestSteps(-1);
 			lastUpdate = timestamp;
 		}
 	}
 	
-	public double getStatus() throws IOException {
-		return 0;
+	/**
+	 * Get the position of the valve reached so far.
+	 * 
+	 * @return the valve temperature setting mapped from [VALVE_MIN_TEMPERATURE, VALVE_MAX_TEMPERATURE] to [0, 1]
+	 * or 0 if the position has not been estimated yet.
+	 */
+	public synchronized double getStatus() throws IOException {
+		if (valveTemperatureUnits == null) {
+			return 0;
+		}
+		double position = (valveTemperatureUnits * TEMPERATURE_STEP - VALVE_MIN_TEMPERATURE) / 
+				(VALVE_MAX_TEMPERATURE - VALVE_MIN_TEMPERATURE);
+		return Math.max(0, Math.min(1, position));
+	}
+	
+	/**
+	 * Plays requested steps one at a time.
+	 */
+	private class ValveStepper extends Thread {
+		
+		public ValveStepper() {
+			super("ValveStepper-" + GPIO_OUTPUT_1 + "-" + GPIO_OUTPUT_2);
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				long step;
+				long fromUnits;
+				synchronized (GpioMotorizedValveActuator.this) {
+					while (pendingSteps == 0) {
+						try {
+							GpioMotorizedValveActuator.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					step = pendingSteps > 0 ? 1 : -1;
+					fromUnits = valveTemperatureUnits;
+				}
+				boolean played = false;
+				try {
+					playSequence(step > 0 ? upSequence : downSequence, fromUnits);
+					played = true;
+				} catch (IOException e) {
+					// Dropped, the next update requests the missing steps again
+					logger.log(Level.WARNING, "Could not play turn knob sequence", e);
+				}
+				synchronized (GpioMotorizedValveActuator.this) {
+					pendingSteps -= step;
+					if (played) {
+						valveTemperatureUnits += step;
+					}
+				}
+			}
+		}
 	}
 
 	private class GpioPortValue {
@@ -2,21 +2,31 @@ package com.thermostat.server.actuation;
 
 import java.io.IOException;
 
+import com.thermostat.server.actuation.control.ControlLaw;
+import com.thermostat.server.actuation.control.HysteresisControlLaw;
 import com.thermostat.server.actuation.gpio.GpioDirection;
 import com.thermostat.server.actuation.gpio.GpioPort;
 import com.thermostat.server.temperature.TemperatureHistory;
 
 /**
  * Actuator driving a simple relay via a GPIO port.
+ * 
+ * The relay is switched by time-proportioning cycles: it is on for demand * CYCLE_MS at the start of each cycle.
+ * A demand of 0 or 1 (e.g., from hysteresis control, the built-in logic) turns the relay off or on immediately.
  */
 public class GpioRelayActuator extends Actuator {
 
-	private static final double DEFAULT_HISTERESIS = 0.1;
-	
-	private double histeresis;
+	/** Length of a time-proportioning cycle */
+	private static final long CYCLE_MS = 20 * 60 * 1000;
 	
 	private GpioPort gpioPort;
 	
+	/** Built-in control logic used if no control law is set */
+	private ControlLaw hysteresisControl;
+	
+	/** Start of the current time-proportioning cycle */
+	private long cycleStartMs = 0;
+	
 	/** True if heating or cooling is active */
 	private boolean hvacStatus;
 	
@@ -27,28 +37,27 @@ public class GpioRelayActuator extends Actuator {
 	 * @param histeresis
 	 */
 	public GpioRelayActuator(int id, double histeresis) throws IOException {
-		this.histeresis = histeresis;
+		hysteresisControl = new HysteresisControlLaw(histeresis);
 		
 		gpioPort = new GpioPort(id, GpioDirection.OUT);
 		hvacStatus = false;
 	}
 	
 	public GpioRelayActuator(int id) throws IOException {
-		this(id, DEFAULT_HISTERESIS);
+		this(id, HysteresisControlLaw.DEFAULT_HYSTERESIS);
 	}
 	
 	public synchronized void update(TemperatureHistory temperatureHistory) throws IOException {
-		double ambientTemperature = temperatureHistory.getCurrentAmbientTemperature();
-		double targetTemperature = temperatureHistory.getCurrentTargetTemperature();
-		double diff = targetTemperature - ambientTemperature;
-		if (diff <= 0 && hvacStatus) {
-			// Target temperature reached, turn off heating
-			gpioPort.set(false);
-			hvacStatus = false;
-		} else if (diff > histeresis && !hvacStatus) {
-			// Difference to target temperature exceeds hysteresis threshold, start heating again
-			gpioPort.set(true);
-			hvacStatus = true;
+		ControlLaw controlLaw = getControlLaw() == null ? hysteresisControl : getControlLaw();
+		double demand = controlLaw.update(temperatureHistory);
+		long timestamp = System.currentTimeMillis();
+		if (timestamp - cycleStartMs >= CYCLE_MS) {
+			cycleStartMs = timestamp;
+		}
+		boolean status = timestamp - cycleStartMs < demand * CYCLE_MS;
+		if (status != hvacStatus) {
+			gpioPort.set(status);
+			hvacStatus = status;
 		}
 	}
 
@@ -0,0 +1,18 @@
+package com.thermostat.server.actuation.control;
+
+import com.thermostat.server.temperature.TemperatureHistory;
+
+/**
+ * Computes the heating demand of a zone from the evolution of its ambient and target temperatures.
+ * Implementations keep state between calls, so an instance must not be shared between zones.
+ */
+public interface ControlLaw {
+
+	/**
+	 * Compute the heating demand for the latest sample of the history.
+	 * 
+	 * @param temperatureHistory describes the evolution of ambient and target temperatures for the zone
+	 * @return the heating demand between 0 (off) and 1 (full power)
+	 */
+	double update(TemperatureHistory temperatureHistory);
+}
@@ -0,0 +1,87 @@
+package com.thermostat.server.actuation.control;
+
+import java.util.Properties;
+
+import com.thermostat.server.configuration.ConfigurationException;
+
+/**
+ * Creates the control law of a zone from its configuration.
+ * 
+ * The control law is selected by the zone property control.law:
+ * - hysteresis: bang-bang control (control.hysteresis)
+ * - pid: PID control (control.pid.kp, control.pid.ki, control.pid.kd)
+ * - mpc: model-predictive control (control.mpc.horizon, control.mpc.move.penalty)
+ * The thermal model of the zone is identified online starting from the configured one
+ * (control.model.heating.gain, control.model.temperature.coefficient, control.model.offset).
+ * If control.model is "fixed", model-predictive control uses the configured model only.
+ * Actuators use their built-in control logic if the property is not set.
+ */
+public class ControlLawFactory {
+
+	private static final String CONTROL_LAW_PROPERTY_NAME = "control.law";
+	
+	private static final String CONTROL_LAW_HYSTERESIS = "hysteresis";
+	
+	private static final String CONTROL_LAW_PID = "pid";
+	
+	private static final String CONTROL_LAW_MPC = "mpc";
+	
+	private static final String CONTROL_MODEL_PROPERTY_NAME = "control.model";
+	
+	private static final String CONTROL_MODEL_FIXED = "fixed";
+	
+	/**
+	 * @param p the zone configuration
+	 * @return the configured control law or null if not configured
+	 * @throws ConfigurationException if the control law is unknown
+	 * @throws NumberFormatException if a parameter is not a number
+	 */
+	public static ControlLaw createControlLaw(Properties p) {
+		return createControlLaw(p, null);
+	}
+	
+	/**
+	 * @param p the zone configuration
+	 * @param identifiedModel the model identified online for the zone or null to use the configured model
+	 * @return the configured control law or null if not configured
+	 * @throws ConfigurationException if the control law is unknown
+	 * @throws NumberFormatException if a parameter is not a number
+	 */
+	public static ControlLaw createControlLaw(Properties p, ThermalModel identifiedModel) {
+		String type = p.getProperty(CONTROL_LAW_PROPERTY_NAME);
+		if (type == null) {
+			return null;
+		} else if (type.equalsIgnoreCase(CONTROL_LAW_HYSTERESIS)) {
+			return new HysteresisControlLaw(getDouble(p, "control.hysteresis", HysteresisControlLaw.DEFAULT_HYSTERESIS));
+		} else if (type.equalsIgnoreCase(CONTROL_LAW_PID)) {
+			return new PidControlLaw(getDouble(p, "control.pid.kp", PidControlLaw.DEFAULT_KP),
+					getDouble(p, "control.pid.ki", PidControlLaw.DEFAULT_KI),
+					getDouble(p, "control.pid.kd", PidControlLaw.DEFAULT_KD));
+		} else if (type.equalsIgnoreCase(CONTROL_LAW_MPC)) {
+			ThermalModel model = identifiedModel;
+			if (model == null || CONTROL_MODEL_FIXED.equalsIgnoreCase(p.getProperty(CONTROL_MODEL_PROPERTY_NAME))) {
+				model = createThermalModel(p);
+			}
+			return new PredictiveControlLaw(model, getDouble(p, "control.mpc.horizon", PredictiveControlLaw.DEFAULT_HORIZON_MIN),
+					getDouble(p, "control.mpc.move.penalty", PredictiveControlLaw.DEFAULT_MOVE_PENALTY));
+		} else {
+			throw new ConfigurationException("Unknown control law " + type);
+		}
+	}
+	
+	/**
+	 * @param p the zone configuration
+	 * @return the configured thermal model
+	 * @throws NumberFormatException if a parameter is not a number
+	 */
+	public static ThermalModel createThermalModel(Properties p) {
+		return new FixedThermalModel(getDouble(p, "control.model.heating.gain", FixedThermalModel.DEFAULT_HEATING_GAIN),
+				getDouble(p, "control.model.temperature.coefficient", FixedThermalModel.DEFAULT_TEMPERATURE_COEFFICIENT),
+				getDouble(p, "control.model.offset", FixedThermalModel.DEFAULT_OFFSET));
+	}
+	
+	private static double getDouble(Properties p, String name, double defaultValue) {
+		String value = p.getProperty(name);
+		return value == null ? defaultValue : Double.parseDouble(value.trim());
+	}
+}
@@ -0,0 +1,49 @@
+package com.thermostat.server.actuation.control;
+
+/**
+ * Thermal model with configured parameters.
+ */
+public class FixedThermalModel implements ThermalModel {
+
+	/** 4.8 °C / hour at full power */
+	public static final double DEFAULT_HEATING_GAIN = 0.08;
+	
+	/** Time constant of 200 minutes */
+	public static final double DEFAULT_TEMPERATURE_COEFFICIENT = -0.005;
+	
+	/** 10 °C without heating */
+	public static final double DEFAULT_OFFSET = 0.05;
+	
+	private double heatingGain;
+	
+	private double temperatureCoefficient;
+	
+	private double offset;
+	
+	public FixedThermalModel(double heatingGain, double temperatureCoefficient, double offset) {
+		this.heatingGain = heatingGain;
+		this.temperatureCoefficient = temperatureCoefficient;
+		this.offset = offset;
+	}
+	
+	public FixedThermalModel() {
+		this(DEFAULT_HEATING_GAIN, DEFAULT_TEMPERATURE_COEFFICIENT, DEFAULT_OFFSET);
+	}
+	
+	public double getHeatingGain() {
+		return heatingGain;
+	}
+	
+	public double getTemperatureCoefficient() {
+		return temperatureCoefficient;
+	}
+	
+	public double getOffset() {
+		return offset;
+	}
+	
+	@Override
+	public String toString() {
+		return "dT/dt = " + heatingGain + " * u + " + temperatureCoefficient + " * T + " + offset;
+	}
+}
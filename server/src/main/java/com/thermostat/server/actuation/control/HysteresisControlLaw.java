@@ -0,0 +1,41 @@
+package com.thermostat.server.actuation.control;
+
+import com.thermostat.server.temperature.TemperatureHistory;
+
+/**
+ * Bang-bang control: full power once the ambient temperature falls below the target by more than the hysteresis,
+ * off once the target is reached.
+ */
+public class HysteresisControlLaw implements ControlLaw {
+
+	public static final double DEFAULT_HYSTERESIS = 0.1;
+	
+	private double hysteresis;
+	
+	private boolean on = false;
+	
+	public HysteresisControlLaw(double hysteresis) {
+		this.hysteresis = hysteresis;
+	}
+	
+	public HysteresisControlLaw() {
+		this(DEFAULT_HYSTERESIS);
+	}
+	
+	public synchronized double update(TemperatureHistory temperatureHistory) {
+		double diff = temperatureHistory.getCurrentTargetTemperature() - temperatureHistory.getCurrentAmbientTemperature();
+		if (diff <= 0 && on) {
+			// Target temperature reached, turn off heating
+			on = false;
+		} else if (diff > hysteresis && !on) {
+			// Difference to target temperature exceeds hysteresis threshold, start heating again
+			on = true;
+		}
+		return on ? 1 : 0;
+	}
+	
+	@Override
+	public String toString() {
+		return "hysteresis " + hysteresis;
+	}
+}
@@ -0,0 +1,84 @@
+package com.thermostat.server.actuation.control;
+
+import com.thermostat.server.temperature.TemperatureHistory;
+
+/**
+ * Proportional-integral-derivative control with anti-windup.
+ * 
+ * Time is measured in minutes and temperatures in °C. The derivative term uses the ambient temperature trend 
+ * (not the error), so changes of the target temperature do not cause spikes. The integral is only accumulated
+ * while the output is not saturated in the direction of the error, so it does not wind up while heating
+ * at full power (e.g., after a setback) and cause overshoot later.
+ */
+public class PidControlLaw implements ControlLaw {
+
+	public static final double DEFAULT_KP = 0.5;
+	
+	public static final double DEFAULT_KI = 0.01;
+	
+	public static final double DEFAULT_KD = 5;
+	
+	/** Period of the ambient temperature trend used for the derivative term */
+	private static final long TREND_PERIOD_MIN = 10;
+	
+	/** Longest gap between updates (in minutes) accumulated in the integral */
+	private static final double MAX_INTEGRATION_STEP_MIN = 10;
+	
+	/** Proportional gain: demand per °C error */
+	private double kp;
+	
+	/** Integral gain: demand per °C error and minute */
+	private double ki;
+	
+	/** Derivative gain: demand per °C / minute temperature trend */
+	private double kd;
+	
+	/** Integral term */
+	private double integral = 0;
+	
+	/** Time of the last update or 0 if not updated yet */
+	private long lastUpdateMs = 0;
+	
+	public PidControlLaw(double kp, double ki, double kd) {
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+	}
+	
+	public PidControlLaw() {
+		this(DEFAULT_KP, DEFAULT_KI, DEFAULT_KD);
+	}
+	
+	public synchronized double update(TemperatureHistory temperatureHistory) {
+		long timestamp = System.currentTimeMillis();
+		double error = temperatureHistory.getCurrentTargetTemperature() - temperatureHistory.getCurrentAmbientTemperature();
+		double dtMin = lastUpdateMs == 0 ? 0 : Math.min(MAX_INTEGRATION_STEP_MIN, (timestamp - lastUpdateMs) / 60000.0);
+		lastUpdateMs = timestamp;
+		
+		double trend;
+		try {
+			trend = temperatureHistory.getTrend(TREND_PERIOD_MIN);
+		} catch (IllegalArgumentException e) {
+			// Less than 2 samples in the trend period (e.g., after startup or a gap in the history)
+			trend = Double.NaN;
+		}
+		double derivative = Double.isNaN(trend) ? 0 : -kd * trend;
+		double proportional = kp * error;
+		
+		double candidate = integral + ki * error * dtMin;
+		double output = proportional + candidate + derivative;
+		if (!(output > 1 && error > 0) && !(output < 0 && error < 0)) {
+			integral = candidate;
+		}
+		return clamp(proportional + integral + derivative);
+	}
+	
+	static double clamp(double demand) {
+		return Math.max(0, Math.min(1, demand));
+	}
+	
+	@Override
+	public String toString() {
+		return "PID kp=" + kp + ", ki=" + ki + ", kd=" + kd;
+	}
+}
@@ -0,0 +1,76 @@
+package com.thermostat.server.actuation.control;
+
+import com.thermostat.server.temperature.TemperatureHistory;
+
+/**
+ * Model-predictive control using a first-order thermal model.
+ * 
+ * The demand u is held constant over the prediction horizon H. Solving the model from the current temperature T0 gives
+ * T(H) = A + B * u with e = exp(θ2 * H), A = T0 * e - θ3 / θ2 * (1 - e) and B = -θ1 / θ2 * (1 - e).
+ * The demand minimizing (T(H) - target)² + λ * (u - previous u)² is
+ * u = (B * (target - A) + λ * previous u) / (B² + λ), clamped to [0, 1].
+ * The move penalty λ smooths the demand between updates and thereby reduces actuator cycles.
+ */
+public class PredictiveControlLaw implements ControlLaw {
+
+	public static final double DEFAULT_HORIZON_MIN = 30;
+	
+	public static final double DEFAULT_MOVE_PENALTY = 0.1;
+	
+	private ThermalModel model;
+	
+	/** Prediction horizon in minutes */
+	private double horizonMin;
+	
+	/** Weight of demand changes relative to the squared temperature error (°C²) */
+	private double movePenalty;
+	
+	/** The demand computed by the last update */
+	private double demand = 0;
+	
+	public PredictiveControlLaw(ThermalModel model, double horizonMin, double movePenalty) {
+		this.model = model;
+		this.horizonMin = horizonMin;
+		this.movePenalty = movePenalty;
+	}
+	
+	public PredictiveControlLaw(ThermalModel model) {
+		this(model, DEFAULT_HORIZON_MIN, DEFAULT_MOVE_PENALTY);
+	}
+	
+	public synchronized double update(TemperatureHistory temperatureHistory) {
+		double ambientTemperature = temperatureHistory.getCurrentAmbientTemperature();
+		double targetTemperature = temperatureHistory.getCurrentTargetTemperature();
+		double theta1 = model.getHeatingGain();
+		double theta2 = model.getTemperatureCoefficient();
+		double theta3 = model.getOffset();
+		
+		double a;
+		double b;
+		if (theta2 < 0) {
+			double e = Math.exp(theta2 * horizonMin);
+			a = ambientTemperature * e - theta3 / theta2 * (1 - e);
+			b = -theta1 / theta2 * (1 - e);
+		} else {
+			// Degenerate model without losses: linear drift
+			a = ambientTemperature + theta3 * horizonMin;
+			b = theta1 * horizonMin;
+		}
+		if (b <= 0) {
+			// The model does not know how heating affects the zone (yet), fall back to bang-bang control
+			demand = targetTemperature > ambientTemperature ? 1 : 0;
+		} else {
+			demand = PidControlLaw.clamp((b * (targetTemperature - a) + movePenalty * demand) / (b * b + movePenalty));
+		}
+		return demand;
+	}
+	
+	public ThermalModel getModel() {
+		return model;
+	}
+	
+	@Override
+	public String toString() {
+		return "MPC horizon=" + horizonMin + " min, model " + model;
+	}
+}
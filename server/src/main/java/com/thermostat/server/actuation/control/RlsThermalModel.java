@@ -0,0 +1,217 @@
+package com.thermostat.server.actuation.control;
+
+import com.thermostat.server.temperature.TemperatureHistoryListener;
+
+/**
+ * Thermal model identified online by recursive least squares (RLS) from the samples of a temperature history.
+ * 
+ * Samples are combined into intervals of at least {@link #MIN_SAMPLE_PERIOD_SEC} to reduce sensor quantization noise.
+ * Each interval gives one observation of dT/dt = θ1 * u + θ2 * (T - 20) + c with u the time-weighted actuator status
+ * and T the mean temperature of the interval; θ3 = c - 20 * θ2. Centering T keeps the regression well conditioned.
+ * 
+ * Each observation updates the estimate and its 3x3 covariance in constant time and memory.
+ * Older observations are discounted by a forgetting factor so that the model follows seasonal changes
+ * (θ3 depends on the outdoor temperature). The covariance is not inflated further once its trace exceeds a limit,
+ * which prevents wind-up while the zone is not excited (e.g., the heating is off for days).
+ * 
+ * Until enough observations have been seen and the estimate is physically plausible (θ1 > 0, θ2 < 0),
+ * the parameters of the prior model are returned.
+ */
+public class RlsThermalModel implements ThermalModel, TemperatureHistoryListener {
+
+	/** Minimum length of an observation interval */
+	public static final long MIN_SAMPLE_PERIOD_SEC = 60*5;
+	
+	/** Samples further apart start a new observation interval (e.g., after a restart) */
+	public static final long MAX_SAMPLE_GAP_SEC = 60*15;
+	
+	/** Memory of about 200 observations (17 hours) */
+	public static final double DEFAULT_FORGETTING_FACTOR = 0.995;
+	
+	/** Number of observations before the estimate is used */
+	public static final int MIN_OBSERVATIONS = 36;
+	
+	private static final double REFERENCE_TEMPERATURE = 20;
+	
+	/** Initial uncertainty of θ1, θ2 and c relative to the observation noise */
+	private static final double[] INITIAL_COVARIANCE = {25, 0.25, 25};
+	
+	private static final double MAX_COVARIANCE_TRACE = 1000;
+	
+	private ThermalModel prior;
+	
+	private double forgettingFactor;
+	
+	/** Estimate of θ1, θ2 and c */
+	private double[] theta = new double[3];
+	
+	private double[][] covariance = new double[3][3];
+	
+	private long observationCount = 0;
+	
+	/** Timestamp of the last sample or -1 if none has been received */
+	private long lastTimestamp = -1;
+	
+	/** Start of the current observation interval */
+	private long intervalStart;
+	
+	private double intervalStartTemperature;
+	
+	/** Integral of the actuator status over the current observation interval in seconds */
+	private double intervalDemand;
+	
+	/** Reusable vectors of an update */
+	private double[] phi = new double[3];
+	
+	private double[] gain = new double[3];
+	
+	public RlsThermalModel(ThermalModel prior, double forgettingFactor) {
+		this.prior = prior;
+		this.forgettingFactor = forgettingFactor;
+		reset();
+	}
+	
+	public RlsThermalModel(ThermalModel prior) {
+		this(prior, DEFAULT_FORGETTING_FACTOR);
+	}
+	
+	/**
+	 * Restart identification from the prior model.
+	 */
+	public synchronized void reset() {
+		theta[0] = prior.getHeatingGain();
+		theta[1] = prior.getTemperatureCoefficient();
+		theta[2] = prior.getOffset() + REFERENCE_TEMPERATURE * prior.getTemperatureCoefficient();
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				covariance[i][j] = i == j ? INITIAL_COVARIANCE[i] : 0;
+			}
+		}
+		observationCount = 0;
+		lastTimestamp = -1;
+	}
+	
+	public synchronized void sampleAdded(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus) {
+		if (Float.isNaN(ambientTemperature) || Float.isNaN(actuatorStatus)) {
+			return;
+		}
+		long dt = timestamp - lastTimestamp;
+		if (lastTimestamp < 0 || dt > MAX_SAMPLE_GAP_SEC) {
+			startInterval(timestamp, ambientTemperature);
+			return;
+		}
+		if (dt <= 0) {
+			return;
+		}
+		lastTimestamp = timestamp;
+		// The actuator status has been applied since the previous sample
+		intervalDemand += actuatorStatus * dt;
+		long elapsed = timestamp - intervalStart;
+		if (elapsed < MIN_SAMPLE_PERIOD_SEC) {
+			return;
+		}
+		double elapsedMin = elapsed / 60.0;
+		phi[0] = intervalDemand / elapsed;
+		phi[1] = (intervalStartTemperature + ambientTemperature) / 2 - REFERENCE_TEMPERATURE;
+		phi[2] = 1;
+		update((ambientTemperature - intervalStartTemperature) / elapsedMin);
+		startInterval(timestamp, ambientTemperature);
+	}
+	
+	/**
+	 * @return true if the identified parameters are used instead of the prior ones
+	 */
+	public synchronized boolean isConverged() {
+		return observationCount >= MIN_OBSERVATIONS && theta[0] > 0 && theta[1] < 0;
+	}
+	
+	public synchronized long getObservationCount() {
+		return observationCount;
+	}
+	
+	public synchronized double getHeatingGain() {
+		return isConverged() ? theta[0] : prior.getHeatingGain();
+	}
+	
+	public synchronized double getTemperatureCoefficient() {
+		return isConverged() ? theta[1] : prior.getTemperatureCoefficient();
+	}
+	
+	public synchronized double getOffset() {
+		return isConverged() ? theta[2] - REFERENCE_TEMPERATURE * theta[1] : prior.getOffset();
+	}
+	
+	/**
+	 * Predict the time needed to reach the target temperature heating at full power.
+	 * 
+	 * @return the time in minutes, 0 if the target is already reached
+	 *         or positive infinity if the model does not reach it
+	 */
+	public synchronized double getTimeToTarget(double ambientTemperature, double targetTemperature) {
+		if (targetTemperature <= ambientTemperature) {
+			return 0;
+		}
+		double theta1 = getHeatingGain();
+		double theta2 = getTemperatureCoefficient();
+		double theta3 = getOffset();
+		if (theta2 < 0) {
+			double steadyState = -(theta1 + theta3) / theta2;
+			if (steadyState <= targetTemperature) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return Math.log((targetTemperature - steadyState) / (ambientTemperature - steadyState)) / theta2;
+		}
+		// Degenerate model without losses: linear drift
+		double rate = theta1 + theta2 * ambientTemperature + theta3;
+		return rate > 0 ? (targetTemperature - ambientTemperature) / rate : Double.POSITIVE_INFINITY;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "dT/dt = " + getHeatingGain() + " * u + " + getTemperatureCoefficient() + " * T + " + getOffset() +
+				(isConverged() ? "" : " (prior)") + ", " + observationCount + " observations";
+	}
+	
+	private void startInterval(long timestamp, float ambientTemperature) {
+		lastTimestamp = timestamp;
+		intervalStart = timestamp;
+		intervalStartTemperature = ambientTemperature;
+		intervalDemand = 0;
+	}
+	
+	/**
+	 * RLS update with the regressor in phi:
+	 * k = P φ / (λ + φ' P φ), θ = θ + k (y - φ' θ), P = (P - k φ' P) / λ
+	 */
+	private void update(double y) {
+		double trace = 0;
+		for (int i = 0; i < 3; ++i) {
+			trace += covariance[i][i];
+		}
+		// Stop discounting old observations if the covariance is large already
+		double lambda = trace > MAX_COVARIANCE_TRACE ? 1 : forgettingFactor;
+		
+		double denominator = lambda;
+		double error = y;
+		for (int i = 0; i < 3; ++i) {
+			double p = 0;
+			for (int j = 0; j < 3; ++j) {
+				p += covariance[i][j] * phi[j];
+			}
+			gain[i] = p;
+			denominator += phi[i] * p;
+			error -= phi[i] * theta[i];
+		}
+		for (int i = 0; i < 3; ++i) {
+			gain[i] /= denominator;
+			theta[i] += gain[i] * error;
+		}
+		// P φ is k * denominator and P is symmetric, so φ' P = (P φ)'
+		for (int i = 0; i < 3; ++i) {
+			for (int j = 0; j < 3; ++j) {
+				covariance[i][j] = (covariance[i][j] - gain[i] * gain[j] * denominator) / lambda;
+			}
+		}
+		++observationCount;
+	}
+}
@@ -0,0 +1,24 @@
+package com.thermostat.server.actuation.control;
+
+/**
+ * First-order thermal model of a zone: dT/dt = θ1 * u + θ2 * T + θ3
+ * where T is the ambient temperature in °C, t is measured in minutes and u is the heating demand in [0, 1].
+ * θ2 is negative for a stable zone: -1/θ2 is its time constant, -θ3/θ2 is its temperature without heating.
+ */
+public interface ThermalModel {
+
+	/**
+	 * @return θ1: temperature change in °C / minute caused by heating at full power
+	 */
+	double getHeatingGain();
+	
+	/**
+	 * @return θ2: temperature change in °C / minute per °C ambient temperature
+	 */
+	double getTemperatureCoefficient();
+	
+	/**
+	 * @return θ3: constant temperature change in °C / minute
+	 */
+	double getOffset();
+}
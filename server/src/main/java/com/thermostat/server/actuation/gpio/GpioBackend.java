@@ -0,0 +1,40 @@
+package com.thermostat.server.actuation.gpio;
+
+import java.io.IOException;
+
+/**
+ * Access to the GPIO ports of the device.
+ */
+public interface GpioBackend {
+
+	/**
+	 * Make a port available and set its direction.
+	 * 
+	 * @param id the GPIO port number
+	 * @param direction
+	 */
+	void open(int id, GpioDirection direction) throws IOException;
+	
+	/**
+	 * Set the output value of an open port.
+	 * 
+	 * @param id the GPIO port number
+	 * @param value true for high and false for low
+	 */
+	void write(int id, boolean value) throws IOException;
+	
+	/**
+	 * Read the value of an open port.
+	 * 
+	 * @param id the GPIO port number
+	 * @return true for high and false for low
+	 */
+	boolean read(int id) throws IOException;
+	
+	/**
+	 * Release resources held for a port.
+	 * 
+	 * @param id the GPIO port number
+	 */
+	void close(int id) throws IOException;
+}
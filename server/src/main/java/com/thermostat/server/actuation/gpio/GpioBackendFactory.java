@@ -0,0 +1,39 @@
+package com.thermostat.server.actuation.gpio;
+
+import java.util.logging.Logger;
+
+/**
+ * Creates the backend used by GPIO ports.
+ * 
+ * The backend is selected by the system property gpio.backend:
+ * - sysfs (default): GPIO ports of the device via /sys/class/gpio
+ * - memory: port values kept in memory, for running without GPIO hardware
+ */
+public class GpioBackendFactory {
+
+	private static Logger logger = Logger.getLogger(GpioBackendFactory.class.getSimpleName());
+
+	private static final String BACKEND_PROPERTY = "gpio.backend";
+	
+	private static final String BACKEND_SYSFS = "sysfs";
+	
+	private static final String BACKEND_MEMORY = "memory";
+	
+	private static GpioBackend backend = null;
+	
+	public static synchronized GpioBackend getBackend() {
+		if (backend == null) {
+			String type = System.getProperty(BACKEND_PROPERTY, BACKEND_SYSFS);
+			if (BACKEND_MEMORY.equals(type)) {
+				logger.info("Using in-memory GPIO ports");
+				backend = new MemoryGpioBackend();
+			} else {
+				if (!BACKEND_SYSFS.equals(type)) {
+					logger.warning("Unknown GPIO backend " + type + ", using sysfs");
+				}
+				backend = new SysfsGpioBackend();
+			}
+		}
+		return backend;
+	}
+}
@@ -1,43 +1,45 @@
 package com.thermostat.server.actuation.gpio;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 
 /**
  * Manages one given GPIO port. 
+ * Output values are written only when they change.
  */
 public class GpioPort {
 
-	private static final File BASE_PROC_DIR = new File("/sys/class/gpio");
-	
-	private File gpioDir;
+	private GpioBackend backend;
 	
 	private int id;
 	
 	private GpioDirection direction;
 	
+	/** The last value written to the port or null if the port has not been written yet */
+	private Boolean lastValue = null;
+	
 	/**
+	 * Open a port using the default backend
 	 * 
 	 * @param id
 	 * @param direction
 	 * @throws IOException
 	 */
 	public GpioPort(int id, GpioDirection direction) throws IOException {
+		this(GpioBackendFactory.getBackend(), id, direction);
+	}
+	
+	/**
+	 * 
+	 * @param backend
+	 * @param id
+	 * @param direction
+	 * @throws IOException
+	 */
+	public GpioPort(GpioBackend backend, int id, GpioDirection direction) throws IOException {
+		this.backend = backend;
 		this.id = id;
 		this.direction = direction;
-		
-		gpioDir = new File(BASE_PROC_DIR, "gpio" + id);
-		if (!gpioDir.exists()) {
-			// Export port if it has not been exported yet
-			PrintWriter portExporter = new PrintWriter(new File(BASE_PROC_DIR, "export"));
-			portExporter.print(id);
-			portExporter.close();
-		}
-		// Set port direction
-		PrintWriter directionSetter = new PrintWriter(new File(gpioDir, "direction"));
-		directionSetter.print(direction.getName());
-		directionSetter.close();
+		backend.open(id, direction);
 	}
 	
 	/**
@@ -45,16 +47,32 @@ public class GpioPort {
 	 * 
 	 * @param value true to turn on and false to turn off
 	 */
-	public void set(boolean value) throws IOException {
+	public synchronized void set(boolean value) throws IOException {
 		if (direction != GpioDirection.OUT) {
 			throw new IllegalArgumentException("GPIO direction has to be set to \"out\" before setting port output value");
 		}
-		PrintWriter valueSetter = new PrintWriter(new File(gpioDir, "value"));
-		valueSetter.print(value ? 1 : 0);
-		valueSetter.close();
+		if (lastValue != null && lastValue == value) {
+			return;
+		}
+		backend.write(id, value);
+		lastValue = value;
+	}
+	
+	/**
+	 * Get GPIO value
+	 * 
+	 * @return the input value or the output value last set
+	 */
+	public synchronized boolean get() throws IOException {
+		if (direction == GpioDirection.OUT && lastValue != null) {
+			return lastValue;
+		}
+		return backend.read(id);
+	}
+	
+	public synchronized void close() throws IOException {
+		backend.close(id);
 	}
-
-	// TODO: implement get()
 	
 	public int getId() {
 		return id;
@@ -0,0 +1,58 @@
+package com.thermostat.server.actuation.gpio;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps GPIO port values in memory, allowing actuators to run and be measured without GPIO hardware.
+ */
+public class MemoryGpioBackend implements GpioBackend {
+
+	/** Port number -> value */
+	private Map<Integer, Boolean> values = new ConcurrentHashMap<Integer, Boolean>();
+	
+	private AtomicLong writeCount = new AtomicLong();
+	
+	public void open(int id, GpioDirection direction) {
+		if (!values.containsKey(id)) {
+			values.put(id, false);
+		}
+	}
+
+	public void write(int id, boolean value) throws IOException {
+		checkOpen(id);
+		values.put(id, value);
+		writeCount.incrementAndGet();
+	}
+
+	public boolean read(int id) throws IOException {
+		checkOpen(id);
+		return values.get(id);
+	}
+
+	public void close(int id) {
+		values.remove(id);
+	}
+	
+	/**
+	 * Set the value of a port, e.g., to emulate an input signal.
+	 */
+	public void setValue(int id, boolean value) {
+		values.put(id, value);
+	}
+	
+	/**
+	 * @return the number of values written via {@link #write(int, boolean)}
+	 */
+	public long getWriteCount() {
+		return writeCount.get();
+	}
+	
+	private void checkOpen(int id) throws IOException {
+		if (!values.containsKey(id)) {
+			throw new IOException("GPIO port " + id + " is not open");
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.thermostat.server.actuation.gpio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accesses GPIO ports via the Linux sysfs interface (/sys/class/gpio).
+ * The value file of each open port is kept open, so reads and writes are a single system call.
+ */
+public class SysfsGpioBackend implements GpioBackend {
+
+	private static final File BASE_PROC_DIR = new File("/sys/class/gpio");
+	
+	private static final byte HIGH = '1';
+	
+	private static final byte LOW = '0';
+	
+	/** Port number -> value file */
+	private Map<Integer, FileChannel> channels = new ConcurrentHashMap<Integer, FileChannel>();
+	
+	public void open(int id, GpioDirection direction) throws IOException {
+		File gpioDir = new File(BASE_PROC_DIR, "gpio" + id);
+		if (!gpioDir.exists()) {
+			// Export port if it has not been exported yet
+			PrintWriter portExporter = new PrintWriter(new File(BASE_PROC_DIR, "export"));
+			portExporter.print(id);
+			portExporter.close();
+		}
+		// Set port direction
+		PrintWriter directionSetter = new PrintWriter(new File(gpioDir, "direction"));
+		directionSetter.print(direction.getName());
+		directionSetter.close();
+		
+		FileChannel channel = direction == GpioDirection.OUT ?
+				FileChannel.open(new File(gpioDir, "value").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+				FileChannel.open(new File(gpioDir, "value").toPath(), StandardOpenOption.READ);
+		FileChannel previous = channels.put(id, channel);
+		if (previous != null) {
+			previous.close();
+		}
+	}
+
+	public void write(int id, boolean value) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		buffer.put(0, value ? HIGH : LOW);
+		// Positional access: sysfs attributes are always read and written from the start
+		getChannel(id).write(buffer, 0);
+	}
+
+	public boolean read(int id) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		if (getChannel(id).read(buffer, 0) != 1) {
+			throw new IOException("Could not read value of GPIO port " + id);
+		}
+		return buffer.get(0) == HIGH;
+	}
+
+	public void close(int id) throws IOException {
+		FileChannel channel = channels.remove(id);
+		if (channel != null) {
+			channel.close();
+		}
+	}
+	
+	private FileChannel getChannel(int id) throws IOException {
+		FileChannel channel = channels.get(id);
+		if (channel == null) {
+			throw new IOException("GPIO port " + id + " is not open");
+		}
+		return channel;
+	}
+}
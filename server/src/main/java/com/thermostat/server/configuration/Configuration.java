@@ -53,6 +53,16 @@ public class Configuration {
 		return new File(logBaseDir, name);
 	}
 
+	/**
+	 * Get a numeric tuning parameter, which can be overridden by a Java system property.
+	 * 
+	 * @param name the name of the system property
+	 * @param defaultValue the value to use if the property is not set or is not a valid number
+	 */
+	public static final long getLongProperty(String name, long defaultValue) {
+		return Long.getLong(name, defaultValue);
+	}
+
 	private static class ThermostatLogFormatter extends Formatter {
 		
 		private static DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -0,0 +1,166 @@
+package com.thermostat.server.profile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel executing tasks at a given time with the precision of one tick.
+ * 
+ * Timeouts are hashed into a circular array of buckets by their deadline tick,
+ * so scheduling and cancelling take O(1) time regardless of the number of pending timeouts
+ * and only the bucket of the current tick is visited when the wheel advances.
+ * Tasks are executed on the timer thread and are expected to return quickly.
+ */
+public class HashedWheelTimer extends Thread {
+
+	private static Logger logger = Logger.getLogger(HashedWheelTimer.class.getSimpleName());
+
+	private long tickMs;
+
+	/** Heads of the doubly linked lists of timeouts in each bucket */
+	private Timeout[] wheel;
+
+	private int mask;
+
+	/** Time of tick 0 (Unix timestamp in ms) */
+	private long startTimeMs;
+
+	/** The next tick to be processed */
+	private long tick = 0;
+
+	/**
+	 * @param name the name of the timer thread
+	 * @param tickMs the length of one tick in milliseconds
+	 * @param wheelSize the number of buckets (rounded up to a power of two)
+	 */
+	public HashedWheelTimer(String name, long tickMs, int wheelSize) {
+		super(name);
+		setDaemon(true);
+		this.tickMs = tickMs;
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		wheel = new Timeout[size];
+		mask = size - 1;
+		startTimeMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * Schedule the execution of a task.
+	 * Tasks having a deadline in the past are executed at the next tick.
+	 * 
+	 * @param task the task to execute
+	 * @param deadlineMs Unix timestamp in milliseconds
+	 * @return a handle to cancel the execution
+	 */
+	public synchronized Timeout schedule(Runnable task, long deadlineMs) {
+		long deadlineTick = Math.max(tick, (deadlineMs - startTimeMs + tickMs - 1) / tickMs);
+		Timeout timeout = new Timeout(task, (int)(deadlineTick & mask), (deadlineTick - tick) / wheel.length);
+		timeout.next = wheel[timeout.bucket];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		wheel[timeout.bucket] = timeout;
+		return timeout;
+	}
+
+	@Override
+	public void run() {
+		List<Runnable> expired = new ArrayList<Runnable>();
+		while (true) {
+			long delay;
+			synchronized (this) {
+				delay = startTimeMs + tick * tickMs - System.currentTimeMillis();
+				if (delay <= 0) {
+					expire((int)(tick & mask), expired);
+					++tick;
+				}
+			}
+			if (delay > 0) {
+				try {
+					sleep(delay);
+				} catch (InterruptedException e) {
+					logger.log(Level.WARNING, "Interrupted while waiting for the next tick", e);
+				}
+				continue;
+			}
+			for (Runnable task : expired) {
+				try {
+					task.run();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Exception in timer task", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Remove timeouts due in the current round from a bucket
+	 * and count down the remaining rounds of the others.
+	 */
+	private void expire(int bucket, List<Runnable> expired) {
+		Timeout timeout = wheel[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.remainingRounds == 0) {
+				remove(timeout);
+				expired.add(timeout.task);
+			} else {
+				--timeout.remainingRounds;
+			}
+			timeout = next;
+		}
+	}
+
+	private void remove(Timeout timeout) {
+		if (timeout.previous == null) {
+			wheel[timeout.bucket] = timeout.next;
+		} else {
+			timeout.previous.next = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.cancelled = true;
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public class Timeout {
+
+		private Runnable task;
+
+		private int bucket;
+
+		/** Number of wheel revolutions before the timeout is due */
+		private long remainingRounds;
+
+		private Timeout previous = null;
+
+		private Timeout next = null;
+
+		/** Set when the timeout is cancelled or has expired */
+		private boolean cancelled = false;
+
+		private Timeout(Runnable task, int bucket, long remainingRounds) {
+			this.task = task;
+			this.bucket = bucket;
+			this.remainingRounds = remainingRounds;
+		}
+
+		/**
+		 * Cancel the execution of the task unless it has already been started.
+		 */
+		public void cancel() {
+			synchronized (HashedWheelTimer.this) {
+				if (!cancelled) {
+					remove(this);
+				}
+			}
+		}
+	}
+}
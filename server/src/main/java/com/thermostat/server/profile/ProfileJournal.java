@@ -0,0 +1,209 @@
+package com.thermostat.server.profile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.thermostat.protocol.data.ResidentState;
+import com.thermostat.server.configuration.Configuration;
+
+/**
+ * Write-behind journal of resident state changes.
+ *
+ * State updates are coalesced in memory (only the latest state of each resident is kept) and appended
+ * to the journal file periodically, so heartbeats never wait for the disk. The journal is compacted
+ * periodically by saving the changed profiles to their properties files and truncating the journal.
+ * At most {@link #FLUSH_PERIOD_MS} worth of state changes are lost if the process is killed.
+ */
+class ProfileJournal extends Thread {
+
+	private static Logger logger = Logger.getLogger(ProfileJournal.class.getSimpleName());
+
+	/** Period of appending pending state changes to the journal */
+	private static final long FLUSH_PERIOD_MS = Configuration.getLongProperty("profile.journal.flush.ms", 5 * 1000);
+
+	/** Period of compacting the journal into the properties files */
+	private static final long COMPACTION_PERIOD_MS = Configuration.getLongProperty("profile.journal.compaction.ms", 15 * 60 * 1000);
+
+	/** Journal size in bytes triggering compaction before the end of the period */
+	private static final long COMPACTION_SIZE = 1024 * 1024;
+
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private File file;
+
+	private PropertiesProfileStore store;
+
+	/** Fingerprint -> latest state not yet written to the journal */
+	private Map<String, ResidentProfile.StateSnapshot> pending = new LinkedHashMap<String, ResidentProfile.StateSnapshot>();
+
+	/** Serializes writes of the journal file */
+	private final Object writeLock = new Object();
+
+	/** Fingerprints of profiles journaled since the last compaction */
+	private Set<String> uncompacted = new HashSet<String>();
+
+	private long lastCompactionMs = System.currentTimeMillis();
+
+	/**
+	 * @param file the journal file
+	 * @param store the store saving compacted profiles
+	 */
+	ProfileJournal(File file, PropertiesProfileStore store) {
+		super("ProfileJournal");
+		setDaemon(true);
+		this.file = file;
+		this.store = store;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not flush profile journal " + ProfileJournal.this.file, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Record the new state of a profile to be journaled later.
+	 *
+	 * @param fingerprint the cryptographic ID of the resident
+	 * @param state the new state
+	 */
+	synchronized void record(String fingerprint, ResidentProfile.StateSnapshot state) {
+		pending.put(fingerprint, state);
+	}
+
+	/**
+	 * Drop pending state changes of a deleted profile.
+	 */
+	synchronized void forget(String fingerprint) {
+		pending.remove(fingerprint);
+	}
+
+	/**
+	 * Apply states journaled before the last shutdown to the loaded profiles.
+	 * Incomplete entries (e.g., the last line written when the process was killed) are skipped.
+	 */
+	void replay() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		int count = 0;
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String s[] = line.split(FIELD_SEPARATOR);
+				long timestampMs;
+				try {
+					timestampMs = s.length == 3 ? Long.parseLong(s[0]) : -1;
+				} catch (NumberFormatException e) {
+					timestampMs = -1;
+				}
+				if (timestampMs < 0) {
+					logger.warning("Invalid profile journal entry: " + line);
+					continue;
+				}
+				if (store.restoreState(s[1], new ResidentState(s[2]), timestampMs)) {
+					synchronized (writeLock) {
+						uncompacted.add(s[1]);
+					}
+					++count;
+				}
+			}
+		} finally {
+			br.close();
+		}
+		logger.info("Replayed " + count + " state changes from " + file);
+	}
+
+	/**
+	 * Append pending state changes to the journal.
+	 */
+	void flush() throws IOException {
+		Map<String, ResidentProfile.StateSnapshot> batch;
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			pending = new LinkedHashMap<String, ResidentProfile.StateSnapshot>();
+		}
+		try {
+			synchronized (writeLock) {
+				FileOutputStream fos = new FileOutputStream(file, true);
+				Writer out = new OutputStreamWriter(fos, "UTF-8");
+				try {
+					for (Entry<String, ResidentProfile.StateSnapshot> e : batch.entrySet()) {
+						out.write(e.getValue().getLastTimestampMs() + FIELD_SEPARATOR + e.getKey() +
+								FIELD_SEPARATOR + e.getValue().getLastState().getName() + "\n");
+					}
+					out.flush();
+					fos.getFD().sync();
+				} finally {
+					out.close();
+				}
+				uncompacted.addAll(batch.keySet());
+			}
+		} catch (IOException e) {
+			// Keep the changes for the next attempt unless they have been superseded
+			synchronized (this) {
+				for (Entry<String, ResidentProfile.StateSnapshot> entry : batch.entrySet()) {
+					if (!pending.containsKey(entry.getKey())) {
+						pending.put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Save profiles changed since the last compaction to their properties files and truncate the journal.
+	 */
+	void compact() throws IOException {
+		synchronized (writeLock) {
+			flush();
+			for (String fingerprint : uncompacted) {
+				store.saveProfile(fingerprint);
+			}
+			new FileOutputStream(file).close();
+			uncompacted.clear();
+			lastCompactionMs = System.currentTimeMillis();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(FLUSH_PERIOD_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				if (System.currentTimeMillis() - lastCompactionMs >= COMPACTION_PERIOD_MS || file.length() >= COMPACTION_SIZE) {
+					compact();
+				} else {
+					flush();
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not write profile journal " + file, e);
+			}
+		}
+	}
+}
@@ -3,13 +3,18 @@ package com.thermostat.server.profile;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.thermostat.protocol.data.ResidentState;
@@ -19,8 +24,10 @@ import com.thermostat.server.security.ThermostatServerSecurityManager;
 /**
  * Implements a resident profile store using properties files.
  * There is a separate properties file for each resident.
+ * Profiles are kept in concurrent maps so lookups from connection and zone threads never block.
  * 
- * TODO: add update operations
+ * State changes are persisted by a write-behind {@link ProfileJournal}, which is periodically compacted 
+ * into the properties files. Properties files are replaced atomically by renaming a temporary file.
  */
 public class PropertiesProfileStore extends ResidentProfileStore {
 
@@ -34,15 +41,32 @@ public class PropertiesProfileStore extends ResidentProfileStore {
 	
 	private static final String RESIDENT_CONF_DIR = "residents";
 	
+	private static final String JOURNAL_CONF = "residents.journal";
+	
+	private static final String PROPERTIES_FILE_EXTENSION = ".properties";
+	
+	private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+	
 	private static final String TEMPERATURE_PREFERENCES_CONF = "preferences.txt";
 
 	/** Cryptographic ID of the resident's smartphone -> resident's profile */
-	private Map<String, ResidentProfile> profiles = new HashMap<String, ResidentProfile>();
+	private Map<String, ResidentProfile> profiles = new ConcurrentHashMap<String, ResidentProfile>();
+
+	/** Read-only view of profiles */
+	private Map<String, ResidentProfile> unmodifiableProfiles = Collections.unmodifiableMap(profiles);
 
 	/** Cryptographic ID of the resident's smartphone -> properties */
-	private Map<String, Properties> properties = new HashMap<String, Properties>();
+	private Map<String, Properties> properties = new ConcurrentHashMap<String, Properties>();
+	
+	/** Cryptographic ID of the resident's smartphone -> properties file */
+	private Map<String, File> files = new ConcurrentHashMap<String, File>();
+	
+	private File baseDirectory;
 	
 	private ThermostatServerSecurityManager securityManager;
+	
+	/** Journal of state changes or null while loading profiles */
+	private volatile ProfileJournal journal = null;
 
 	/**
 	 * Load profiles from properties files.
@@ -53,7 +77,7 @@ public class PropertiesProfileStore extends ResidentProfileStore {
 	 */
 	public PropertiesProfileStore() throws IOException, NumberFormatException, GeneralSecurityException {
 		securityManager = ThermostatServerSecurityManager.getInstance();
-		File baseDirectory = Configuration.getConfigPath(RESIDENT_CONF_DIR);
+		baseDirectory = Configuration.getConfigPath(RESIDENT_CONF_DIR);
 		if (!baseDirectory.exists()) {
 			boolean result = baseDirectory.mkdir();
 			// TODO: check result
@@ -61,12 +85,24 @@ public class PropertiesProfileStore extends ResidentProfileStore {
 		
 		// Parse properties files for each resident
 		for (String id : baseDirectory.list()) {
+			if (id.endsWith(TEMPORARY_FILE_EXTENSION)) {
+				// Left over by an interrupted save
+				continue;
+			}
+			File file = new File(baseDirectory, id);
 			Properties p = new Properties();
-			p.load(new FileInputStream(new File(baseDirectory, id)));
+			InputStream is = new FileInputStream(file);
+			try {
+				p.load(is);
+			} finally {
+				is.close();
+			}
 			ResidentProfile profile = propertiesToProfile(p);
 			String fingerprint = securityManager.getPublicKeyFingerprint(profile.getPublicKeyString());
 			properties.put(fingerprint, p);
+			files.put(fingerprint, file);
 			profiles.put(fingerprint, profile);
+			profile.setProfileStore(this);
 			logger.info("Read profile info from " + id);
 		}
 		
@@ -92,6 +128,13 @@ public class PropertiesProfileStore extends ResidentProfileStore {
 			profile.setTemperaturePreference(s[1], new ResidentState(s[2]), Float.parseFloat(s[3]));
 		}
 		br.close();
+		
+		// Apply state changes not yet compacted before the last shutdown
+		ProfileJournal journal = new ProfileJournal(Configuration.getConfigPath(JOURNAL_CONF), this);
+		journal.replay();
+		journal.compact();
+		journal.start();
+		this.journal = journal;
 	}
 	
 	private ResidentProfile propertiesToProfile(Properties p) throws NumberFormatException {
@@ -105,14 +148,108 @@ public class PropertiesProfileStore extends ResidentProfileStore {
 	}
 	
 	public Map<String, ResidentProfile> getProfiles() {
-		return Collections.unmodifiableMap(profiles);
+		return unmodifiableProfiles;
 	}
 	
-	public void registerProfile(String publicKey) {
-		// TODO
+	@Override
+	public ResidentProfile getProfile(String id) {
+		return id == null ? null : profiles.get(id);
 	}
 	
-	public void deleteProfile(String id) {
-		// TODO
+	public synchronized void registerProfile(String publicKey) {
+		String fingerprint;
+		try {
+			fingerprint = securityManager.getPublicKeyFingerprint(publicKey);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Invalid public key, profile not registered", e);
+			return;
+		}
+		if (profiles.containsKey(fingerprint)) {
+			return;
+		}
+		ResidentProfile profile = new ResidentProfile(publicKey, null, null);
+		Properties p = new Properties();
+		p.setProperty(PROPERTY_NAME_PUBLIC_KEY, publicKey);
+		properties.put(fingerprint, p);
+		files.put(fingerprint, new File(baseDirectory, fingerprint + PROPERTIES_FILE_EXTENSION));
+		profiles.put(fingerprint, profile);
+		profile.setProfileStore(this);
+		try {
+			saveProfile(fingerprint);
+		} catch (IOException e) {
+			// Retried at the next compaction of the journal
+			logger.log(Level.WARNING, "Could not save profile " + fingerprint, e);
+			journal.record(fingerprint, profile.getStateSnapshot());
+		}
+		logger.info("Registered profile " + fingerprint);
+	}
+	
+	public synchronized void deleteProfile(String id) {
+		ResidentProfile profile = profiles.remove(id);
+		if (profile == null) {
+			return;
+		}
+		fireProfileRemoved(profile);
+		profile.setProfileStore(null);
+		properties.remove(id);
+		journal.forget(id);
+		File file = files.remove(id);
+		if (!file.delete()) {
+			logger.warning("Could not delete " + file);
+		}
+		logger.info("Deleted profile " + id);
+	}
+	
+	/**
+	 * Write the current state of a profile to its properties file.
+	 * The file is replaced atomically, so it is never left half-written.
+	 * 
+	 * @param id the cryptographic ID of the resident
+	 */
+	synchronized void saveProfile(String id) throws IOException {
+		ResidentProfile profile = profiles.get(id);
+		if (profile == null) {
+			// Deleted since the state change
+			return;
+		}
+		Properties p = properties.get(id);
+		File file = files.get(id);
+		ResidentProfile.StateSnapshot state = profile.getStateSnapshot();
+		p.setProperty(PROPERTY_NAME_LAST_STATE, state.getLastState().getName());
+		p.setProperty(PROPERTY_NAME_LAST_TIMESTAMP_MS, Long.toString(state.getLastTimestampMs()));
+		
+		File temporaryFile = new File(baseDirectory, file.getName() + TEMPORARY_FILE_EXTENSION);
+		FileOutputStream fos = new FileOutputStream(temporaryFile);
+		try {
+			p.store(fos, null);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(), 
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Apply a journaled state to a loaded profile.
+	 * 
+	 * @return true if the state has been applied
+	 */
+	boolean restoreState(String id, ResidentState state, long timestampMs) {
+		ResidentProfile profile = profiles.get(id);
+		return profile != null && profile.restoreState(state, timestampMs);
+	}
+	
+	@Override
+	protected void fireProfileChanged(ResidentProfile profile) {
+		super.fireProfileChanged(profile);
+		ProfileJournal journal = this.journal;
+		if (journal != null) {
+			try {
+				journal.record(securityManager.getPublicKeyFingerprint(profile.getPublicKeyString()), profile.getStateSnapshot());
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Could not journal state change", e);
+			}
+		}
 	}
 }
@@ -1,5 +1,6 @@
 package com.thermostat.server.profile;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -7,13 +8,61 @@ import java.util.Map;
 import com.thermostat.protocol.data.ResidentState;
 
 /**
- * Describes properties and states of a resident 
+ * Describes properties and states of a resident.
+ * 
+ * Readers never block: the state and the temperature preferences are immutable snapshots 
+ * replaced atomically by the (synchronized) writers.
  */
 public class ResidentProfile {
 
+	/**
+	 * Immutable snapshot of the state of a resident
+	 */
+	public static final class StateSnapshot {
+		
+		private final ResidentState lastState;
+		
+		private final long lastTimestampMs;
+		
+		private final ResidentState currentState;
+		
+		private StateSnapshot(ResidentState lastState, long lastTimestampMs, ResidentState currentState) {
+			this.lastState = lastState;
+			this.lastTimestampMs = lastTimestampMs;
+			this.currentState = currentState;
+		}
+		
+		/**
+		 * @return the resident's state at the time of the last successful handshake
+		 */
+		public ResidentState getLastState() {
+			return lastState;
+		}
+		
+		/**
+		 * @return the time of the last successful handshake (milliseconds since the epoch)
+		 */
+		public long getLastTimestampMs() {
+			return lastTimestampMs;
+		}
+		
+		/**
+		 * @return the resident's state taking the timeout into account
+		 */
+		public ResidentState getCurrentState() {
+			return currentState;
+		}
+	}
+
 	/** Default timeout in ms to be considered as having left the residence */
 	private static final long DEFAULT_TIMEOUT_MS = 10 * 60 * 1000;
 	
+	/** Precision of state expiry */
+	private static final long EXPIRY_TICK_MS = 1000;
+	
+	/** Timer switching residents to away state after the timeout */
+	private static HashedWheelTimer expiryTimer = null;
+	
 	/** Public key of the resident's smartphone used for authentication */
 	private String publicKey;
 	
@@ -22,22 +71,25 @@ public class ResidentProfile {
 	 * MAC address in hexadecimal format 
 	 * (using ":" separators but without trailing "0x").
 	 */
-	private String bluetoothAddress;
+	private volatile String bluetoothAddress;
 	
 	/** The human readable assigned name of the resident's Bluetooth adapter */
-	private String bluetoothName;
-	
-	/** Zone name -> State -> temperature preferences in degree Celsius. */
-	private Map<String, Map<ResidentState, Float>> temperaturePreferences;
-	
-	/** The resident's state at the time of the last successful handshake */
-	private ResidentState lastState;
+	private volatile String bluetoothName;
 	
 	/** 
-	 * The last successful handshake with the resident's smartphone.
-	 * In Unix timestamp (milliseconds since the epoch) 
+	 * Zone name -> State -> temperature preferences in degree Celsius.
+	 * Unmodifiable, replaced on every change.
 	 */
-	private long lastTimestampMs;
+	private volatile Map<String, Map<ResidentState, Float>> temperaturePreferences;
+	
+	/** The last state reported by the resident and the resulting current state */
+	private volatile StateSnapshot state;
+	
+	/** Pending switch to away state or null */
+	private HashedWheelTimer.Timeout expiryTimeout = null;
+	
+	/** The store notified about changes of this profile or null if the profile is not stored yet */
+	private volatile ResidentProfileStore store = null;
 	
 	protected ResidentProfile(String publicKey, 
 			String bluetoothName, 
@@ -53,9 +105,8 @@ public class ResidentProfile {
 		this.publicKey = publicKey;
 		this.bluetoothName = bluetoothName;
 		this.bluetoothAddress = bluetoothAddress;
-		this.lastTimestampMs = lastTimestampMs;
-		this.lastState = lastState;
-		temperaturePreferences = new HashMap<String, Map<ResidentState,Float>>();
+		temperaturePreferences = Collections.emptyMap();
+		scheduleExpiry(lastState, lastTimestampMs);
 	}
 	
 	public String getBluetoothAddress() {
@@ -71,18 +122,33 @@ public class ResidentProfile {
 	}
 	
 	public ResidentState getLastState() {
-		return lastState;
+		return state.getLastState();
 	}
 	
 	public long getLastTimestampMs() {
-		return lastTimestampMs;
+		return state.getLastTimestampMs();
 	}
 	
 	public ResidentState getCurrentState() {
-		long currentTimestampMs = (new Date()).getTime();
-		return (currentTimestampMs - lastTimestampMs > DEFAULT_TIMEOUT_MS) ?
-				ResidentState.AWAY :
-				lastState;
+		return state.getCurrentState();
+	}
+	
+	/**
+	 * Get a consistent view of the last and the current state
+	 * 
+	 * @return
+	 */
+	public StateSnapshot getStateSnapshot() {
+		return state;
+	}
+	
+	/**
+	 * Get all temperature preferences of the resident
+	 * 
+	 * @return an unmodifiable zone name -> state -> temperature Map
+	 */
+	public Map<String, Map<ResidentState, Float>> getTemperaturePreferences() {
+		return temperaturePreferences;
 	}
 	
 	public Map<ResidentState, Float> getTemperaturePreferences(String zoneName) {
@@ -101,12 +167,18 @@ public class ResidentProfile {
 	}
 	
 	public void setTemperaturePreference(String zoneName, ResidentState state, Float targetTemperature) {
-		Map<ResidentState, Float> zonePreferences = temperaturePreferences.get(zoneName);
-		if (zonePreferences == null) {
-			zonePreferences = new HashMap<ResidentState, Float>();
-			temperaturePreferences.put(zoneName, zonePreferences);
+		synchronized (this) {
+			Map<String, Map<ResidentState, Float>> preferences = 
+					new HashMap<String, Map<ResidentState, Float>>(temperaturePreferences);
+			Map<ResidentState, Float> zonePreferences = preferences.get(zoneName);
+			zonePreferences = zonePreferences == null ? 
+					new HashMap<ResidentState, Float>() : 
+					new HashMap<ResidentState, Float>(zonePreferences);
+			zonePreferences.put(state, targetTemperature);
+			preferences.put(zoneName, Collections.unmodifiableMap(zonePreferences));
+			temperaturePreferences = Collections.unmodifiableMap(preferences);
 		}
-		zonePreferences.put(state, targetTemperature);
+		fireProfileChanged();
 	}
 	
 	public void setBluetoothAddress(String bluetoothAddress) {
@@ -123,8 +195,83 @@ public class ResidentProfile {
 	 * @param state the current state of the resident
 	 */
 	public void updateState(ResidentState state) {
-		lastState = state;
-		lastTimestampMs = (new Date()).getTime();
+		scheduleExpiry(state, (new Date()).getTime());
+		fireProfileChanged();
+	}
+	
+	/**
+	 * Restore a previously persisted state without notifying the store.
+	 * 
+	 * @param state the last state reported by the resident
+	 * @param timestampMs the time the state was reported
+	 * @return true if the state is newer than the current one
+	 */
+	boolean restoreState(ResidentState state, long timestampMs) {
+		synchronized (this) {
+			if (timestampMs <= this.state.getLastTimestampMs()) {
+				return false;
+			}
+			scheduleExpiry(state, timestampMs);
+			return true;
+		}
+	}
+	
+	/**
+	 * Publish the new last state with the resulting current state and schedule the switch to away state after the timeout.
+	 */
+	private synchronized void scheduleExpiry(ResidentState lastState, long lastTimestampMs) {
+		if (expiryTimeout != null) {
+			expiryTimeout.cancel();
+			expiryTimeout = null;
+		}
+		long expiryTimeMs = lastTimestampMs + DEFAULT_TIMEOUT_MS + 1;
+		if (ResidentState.AWAY.equals(lastState) || expiryTimeMs <= System.currentTimeMillis()) {
+			state = new StateSnapshot(lastState, lastTimestampMs, ResidentState.AWAY);
+		} else {
+			state = new StateSnapshot(lastState, lastTimestampMs, lastState);
+			expiryTimeout = getExpiryTimer().schedule(new Runnable() {
+				public void run() {
+					expire();
+				}
+			}, expiryTimeMs);
+		}
+	}
+	
+	private void expire() {
+		synchronized (this) {
+			StateSnapshot state = this.state;
+			if (expiryTimeout == null || System.currentTimeMillis() <= state.getLastTimestampMs() + DEFAULT_TIMEOUT_MS) {
+				// Already expired or the state has been updated since the timeout was scheduled
+				return;
+			}
+			expiryTimeout = null;
+			this.state = new StateSnapshot(state.getLastState(), state.getLastTimestampMs(), ResidentState.AWAY);
+		}
+		fireProfileChanged();
+	}
+	
+	private static synchronized HashedWheelTimer getExpiryTimer() {
+		if (expiryTimer == null) {
+			expiryTimer = new HashedWheelTimer("ResidentExpiryTimer", EXPIRY_TICK_MS, 
+					(int)(DEFAULT_TIMEOUT_MS / EXPIRY_TICK_MS));
+			expiryTimer.start();
+		}
+		return expiryTimer;
+	}
+	
+	/**
+	 * Attach this profile to the store notified about its changes
+	 * 
+	 * @param store
+	 */
+	void setProfileStore(ResidentProfileStore store) {
+		this.store = store;
+	}
+	
+	private void fireProfileChanged() {
+		if (store != null) {
+			store.fireProfileChanged(this);
+		}
 	}
 	
 	/**
@@ -138,10 +285,7 @@ public class ResidentProfile {
 		if (zonePreferences == null) {
 			return null;
 		} else {
-			long currentTimestampMs = (new Date()).getTime();
-			ResidentState currentState = (currentTimestampMs - lastTimestampMs > DEFAULT_TIMEOUT_MS) ?
-					ResidentState.AWAY :
-					lastState;
+			ResidentState currentState = state.getCurrentState();
 			return currentState == ResidentState.AWAY ? 
 					null : 
 					zonePreferences.get(currentState);
@@ -0,0 +1,21 @@
+package com.thermostat.server.profile;
+
+/**
+ * Receives notifications about changes of resident profiles.
+ */
+public interface ResidentProfileListener {
+
+	/**
+	 * Called after the state or the temperature preferences of a resident changed.
+	 * 
+	 * @param profile the changed profile
+	 */
+	void profileChanged(ResidentProfile profile);
+	
+	/**
+	 * Called when a profile is deleted from the store, before it is detached from the store.
+	 * 
+	 * @param profile the deleted profile
+	 */
+	void profileRemoved(ResidentProfile profile);
+}
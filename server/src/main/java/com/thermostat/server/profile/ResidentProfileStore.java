@@ -1,6 +1,8 @@
 package com.thermostat.server.profile;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.thermostat.security.KeyHashStore;
 
@@ -9,6 +11,8 @@ import com.thermostat.security.KeyHashStore;
  */
 public abstract class ResidentProfileStore implements KeyHashStore {
 
+	private List<ResidentProfileListener> listeners = new CopyOnWriteArrayList<ResidentProfileListener>();
+
 	/**
 	 * Register profile for a new resident
 	 * 
@@ -40,6 +44,37 @@ public abstract class ResidentProfileStore implements KeyHashStore {
 		return getProfiles().get(id);
 	}
 	
+	/**
+	 * Register a listener to be notified about changes of profiles in this store.
+	 * 
+	 * @param listener
+	 */
+	public void addProfileListener(ResidentProfileListener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Notify listeners about the change of a profile in this store.
+	 * 
+	 * @param profile the changed profile
+	 */
+	protected void fireProfileChanged(ResidentProfile profile) {
+		for (ResidentProfileListener listener : listeners) {
+			listener.profileChanged(profile);
+		}
+	}
+	
+	/**
+	 * Notify listeners about the deletion of a profile from this store.
+	 * 
+	 * @param profile the deleted profile
+	 */
+	protected void fireProfileRemoved(ResidentProfile profile) {
+		for (ResidentProfileListener listener : listeners) {
+			listener.profileRemoved(profile);
+		}
+	}
+	
 	public String getPublicKey(String keyHash) {
 		ResidentProfile profile = getProfile(keyHash);
 		return profile == null ? null : profile.getPublicKeyString();
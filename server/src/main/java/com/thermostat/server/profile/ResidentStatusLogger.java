@@ -1,55 +1,359 @@
 package com.thermostat.server.profile;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import com.thermostat.protocol.data.BroadcastEvent;
 import com.thermostat.protocol.data.ResidentState;
 import com.thermostat.protocol.data.ResidentStatusInfo;
 import com.thermostat.server.configuration.Configuration;
+import com.thermostat.server.profile.telemetry.TelemetryReader;
+import com.thermostat.server.profile.telemetry.TelemetryWriter;
 
 /**
- * Logs resident status info received in state update messages. 
+ * Logs resident status info received in state update messages.
+ *
+ * Records are queued and written by a background thread in batches (group commit), so callers never wait
+ * for the disk. If the bounded queue is full, records are dropped and counted.
+ * The log file is rolled over when it exceeds a size or age limit, and rolled files are compressed with gzip.
+ *
+ * Records are logged as tab separated text (status.txt) or, if the system property status.log.format is "binary",
+ * in the compact telemetry format (status.tlm, see {@link TelemetryWriter}).
  */
 public class ResidentStatusLogger {
 
+	private static Logger logger = Logger.getLogger(ResidentStatusLogger.class.getSimpleName());
+
 	private static ResidentStatusLogger instance = null;
-	
-	private static final String LOG_FILE_NAME = "status.txt";
-	
+
+	private static final String LOG_FILE_PREFIX = "status";
+
+	private static final String TEXT_FILE_EXTENSION = ".txt";
+
+	private static final String TELEMETRY_FILE_EXTENSION = ".tlm";
+
+	private static final String BINARY_FORMAT = "binary";
+
+	private static final String COMPRESSED_FILE_EXTENSION = ".gz";
+
 	private static final String FIELD_SEPARATOR = "\t";
-	
-	private PrintStream stream;
-	
-	public static ResidentStatusLogger getInstance() throws IOException {
+
+	/** Maximum number of records waiting to be written */
+	private static final int QUEUE_CAPACITY = (int)Configuration.getLongProperty("status.log.queue", 4096);
+
+	/** Time to collect records written together */
+	private static final long COMMIT_PERIOD_MS = Configuration.getLongProperty("status.log.commit.ms", 1000);
+
+	/** Size of the log file triggering rollover */
+	private static final long MAX_FILE_SIZE = Configuration.getLongProperty("status.log.max.bytes", 10 * 1024 * 1024);
+
+	/** Age of the log file triggering rollover */
+	private static final long MAX_FILE_AGE_MS = Configuration.getLongProperty("status.log.max.age.ms", 24 * 60 * 60 * 1000);
+
+	private BlockingQueue<StatusEntry> queue = new ArrayBlockingQueue<StatusEntry>(QUEUE_CAPACITY);
+
+	private boolean binary;
+
+	private File file;
+
+	/** Writer of the text log or null if the binary format is used */
+	private Writer writer = null;
+
+	/** Writer of the binary log or null if the text format is used */
+	private TelemetryWriter telemetryWriter = null;
+
+	/** Time the log file was started */
+	private long fileStartMs;
+
+	private AtomicLong writtenCount = new AtomicLong();
+
+	private AtomicLong droppedCount = new AtomicLong();
+
+	private AtomicLong commitCount = new AtomicLong();
+
+	/** Highest number of records found waiting in the queue */
+	private AtomicLong maxQueueLength = new AtomicLong();
+
+	public static synchronized ResidentStatusLogger getInstance() throws IOException {
 		if (instance == null) {
 			instance = new ResidentStatusLogger();
 		}
 		return instance;
 	}
-	
+
 	public ResidentStatusLogger() throws IOException {
-		stream = new PrintStream(Configuration.getLogPath(LOG_FILE_NAME));
+		binary = BINARY_FORMAT.equals(System.getProperty("status.log.format"));
+		file = Configuration.getLogPath(LOG_FILE_PREFIX + getFileExtension());
+		open();
+		WriterThread writerThread = new WriterThread();
+		writerThread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					commit(new ArrayList<StatusEntry>());
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not write resident status log file", e);
+				}
+			}
+		});
 	}
-	
+
 	public void write(String fingerprint, ResidentStatusInfo status) {
-		long timestamp = status.getTimestamp();
-		// Write sensor data
-		for (Entry<String, Float> e : status.getSensorValues().entrySet()) {
-			stream.println(timestamp + FIELD_SEPARATOR + fingerprint + FIELD_SEPARATOR + e.getKey() + FIELD_SEPARATOR + e.getValue());
+		enqueue(new StatusEntry(fingerprint, status.getTimestamp(), status, null));
+	}
+
+	public void write(String fingerprint, ResidentState state) {
+		enqueue(new StatusEntry(fingerprint, (new Date()).getTime(), null, state));
+	}
+
+	/**
+	 * @return the number of records written to the log file
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * @return the number of records dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of batches written
+	 */
+	public long getCommitCount() {
+		return commitCount.get();
+	}
+
+	/**
+	 * @return the number of records waiting to be written
+	 */
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the highest number of records found waiting in the queue
+	 */
+	public long getMaxQueueLength() {
+		return maxQueueLength.get();
+	}
+
+	@Override
+	public String toString() {
+		return "written=" + getWrittenCount() + ", dropped=" + getDroppedCount() + ", commits=" + getCommitCount() +
+				", queued=" + getQueueLength() + ", maxQueued=" + getMaxQueueLength();
+	}
+
+	private void enqueue(StatusEntry entry) {
+		if (!queue.offer(entry)) {
+			droppedCount.incrementAndGet();
 		}
-		// Write broadcast event data
-		for (BroadcastEvent e : status.getEvents()) {
-			stream.println(e.timestamp + FIELD_SEPARATOR + fingerprint + FIELD_SEPARATOR + e.name);
+	}
+
+	/**
+	 * Write the given records and the ones waiting in the queue and flush the log file.
+	 */
+	private synchronized void commit(List<StatusEntry> batch) throws IOException {
+		queue.drainTo(batch);
+		if (batch.isEmpty()) {
+			return;
+		}
+		long max = maxQueueLength.get();
+		while (batch.size() > max && !maxQueueLength.compareAndSet(max, batch.size())) {
+			max = maxQueueLength.get();
+		}
+
+		for (StatusEntry entry : batch) {
+			if (binary) {
+				writeTelemetry(entry);
+			} else {
+				writeText(entry);
+			}
+		}
+		if (binary) {
+			telemetryWriter.flush();
+		} else {
+			writer.flush();
+		}
+		writtenCount.addAndGet(batch.size());
+		commitCount.incrementAndGet();
+
+		if (file.length() >= MAX_FILE_SIZE || System.currentTimeMillis() - fileStartMs >= MAX_FILE_AGE_MS) {
+			rollOver();
 		}
-		stream.flush();
 	}
 
-	public void write(String fingerprint, ResidentState state) {
-		long timestamp = (new Date()).getTime();
-		stream.println(timestamp + FIELD_SEPARATOR + fingerprint + FIELD_SEPARATOR + "state" + FIELD_SEPARATOR + state.getName());
-		stream.flush();
+	private void writeText(StatusEntry entry) throws IOException {
+		StringBuilder b = new StringBuilder();
+		if (entry.status != null) {
+			// Write sensor data
+			for (Entry<String, Float> e : entry.status.getSensorValues().entrySet()) {
+				b.append(entry.timestamp).append(FIELD_SEPARATOR).append(entry.fingerprint).append(FIELD_SEPARATOR)
+						.append(e.getKey()).append(FIELD_SEPARATOR).append(e.getValue()).append('\n');
+			}
+			// Write broadcast event data
+			for (BroadcastEvent e : entry.status.getEvents()) {
+				b.append(e.timestamp).append(FIELD_SEPARATOR).append(entry.fingerprint).append(FIELD_SEPARATOR)
+						.append(e.name).append('\n');
+			}
+		} else {
+			b.append(entry.timestamp).append(FIELD_SEPARATOR).append(entry.fingerprint).append(FIELD_SEPARATOR)
+					.append("state").append(FIELD_SEPARATOR).append(entry.state.getName()).append('\n');
+		}
+		writer.write(b.toString());
+	}
+
+	private void writeTelemetry(StatusEntry entry) {
+		if (entry.status != null) {
+			for (Entry<String, Float> e : entry.status.getSensorValues().entrySet()) {
+				telemetryWriter.addSensorValue(entry.timestamp, entry.fingerprint, e.getKey(), e.getValue());
+			}
+			for (BroadcastEvent e : entry.status.getEvents()) {
+				telemetryWriter.addEvent(e.timestamp, entry.fingerprint, e.name);
+			}
+		} else {
+			telemetryWriter.addState(entry.timestamp, entry.fingerprint, entry.state.getName());
+		}
+	}
+
+	private String getFileExtension() {
+		return binary ? TELEMETRY_FILE_EXTENSION : TEXT_FILE_EXTENSION;
+	}
+
+	private void open() throws IOException {
+		fileStartMs = System.currentTimeMillis();
+		if (binary) {
+			// Continue the dictionary of an existing file
+			List<String> dictionary = file.exists() ? TelemetryReader.recover(file) : new ArrayList<String>();
+			telemetryWriter = new TelemetryWriter(new FileOutputStream(file, true), dictionary);
+		} else {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		}
+	}
+
+	/**
+	 * Rename the log file, start a new one and compress the renamed file.
+	 */
+	private void rollOver() throws IOException {
+		if (binary) {
+			telemetryWriter.close();
+		} else {
+			writer.close();
+		}
+		String name = LOG_FILE_PREFIX + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		File rolled = new File(file.getParentFile(), name + getFileExtension());
+		for (int i = 1; rolled.exists() || new File(rolled.getPath() + COMPRESSED_FILE_EXTENSION).exists(); ++i) {
+			// Rolled over more than once within a second
+			rolled = new File(file.getParentFile(), name + "-" + i + getFileExtension());
+		}
+		if (!file.renameTo(rolled)) {
+			logger.warning("Could not roll over " + file);
+			rolled = null;
+		}
+		open();
+		if (rolled != null) {
+			compress(rolled);
+		}
+	}
+
+	private void compress(File rolled) {
+		File compressed = new File(rolled.getPath() + COMPRESSED_FILE_EXTENSION);
+		try {
+			InputStream in = new FileInputStream(rolled);
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed));
+				try {
+					byte[] buffer = new byte[8192];
+					int n;
+					while ((n = in.read(buffer)) > 0) {
+						out.write(buffer, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			if (!rolled.delete()) {
+				logger.warning("Could not delete " + rolled);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Could not compress " + rolled, e);
+			compressed.delete();
+		}
+	}
+
+	/**
+	 * Waits for records and commits them together with the ones arriving within the commit period.
+	 */
+	private class WriterThread extends Thread {
+
+		public WriterThread() {
+			super("ResidentStatusLogger");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<StatusEntry> batch = new ArrayList<StatusEntry>();
+			while (true) {
+				try {
+					batch.add(queue.take());
+					Thread.sleep(COMMIT_PERIOD_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					commit(batch);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not write resident status log file", e);
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Status info or state received from a resident, formatted by the writer thread
+	 */
+	private static class StatusEntry {
+
+		private String fingerprint;
+
+		private long timestamp;
+
+		/** Status info or null if this is a state entry */
+		private ResidentStatusInfo status;
+
+		private ResidentState state;
+
+		StatusEntry(String fingerprint, long timestamp, ResidentStatusInfo status, ResidentState state) {
+			this.fingerprint = fingerprint;
+			this.timestamp = timestamp;
+			this.status = status;
+			this.state = state;
+		}
 	}
 }
@@ -0,0 +1,98 @@
+package com.thermostat.server.profile.telemetry;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte array holding one column of a telemetry block.
+ * Integers are written as variable length quantities (7 bits per byte, least significant group first).
+ */
+class ByteColumn {
+
+	private byte[] bytes = new byte[256];
+
+	private int length = 0;
+
+	void writeByte(int b) {
+		if (length == bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		bytes[length++] = (byte)b;
+	}
+
+	void writeInt(int v) {
+		writeByte(v >>> 24);
+		writeByte(v >>> 16);
+		writeByte(v >>> 8);
+		writeByte(v);
+	}
+
+	/**
+	 * Write a non-negative value in as few bytes as possible.
+	 */
+	void writeVarLong(long v) {
+		while ((v & ~0x7FL) != 0) {
+			writeByte((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		writeByte((int)v);
+	}
+
+	/**
+	 * Write a signed value, small absolute values taking few bytes (zig-zag encoding).
+	 */
+	void writeSignedVarLong(long v) {
+		writeVarLong((v << 1) ^ (v >> 63));
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	void reset() {
+		length = 0;
+	}
+
+	/**
+	 * Reads a column written by {@link ByteColumn} from a block buffer.
+	 */
+	static class Reader {
+
+		private byte[] bytes;
+
+		private int position;
+
+		Reader(byte[] bytes, int offset) {
+			this.bytes = bytes;
+			this.position = offset;
+		}
+
+		int readByte() {
+			return bytes[position++] & 0xFF;
+		}
+
+		int readInt() {
+			return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+		}
+
+		long readVarLong() {
+			long v = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = bytes[position++];
+				v |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		long readSignedVarLong() {
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+}
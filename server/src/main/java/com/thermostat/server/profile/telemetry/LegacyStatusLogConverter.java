@@ -0,0 +1,92 @@
+package com.thermostat.server.profile.telemetry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts tab separated resident status logs (status.txt, optionally gzipped) to the binary telemetry format.
+ *
+ * Line formats:
+ * <pre>
+ * timestamp  fingerprint  sensor name  value
+ * timestamp  fingerprint  event name
+ * timestamp  fingerprint  "state"      state name
+ * </pre>
+ *
+ * Usage: LegacyStatusLogConverter &lt;text log&gt; &lt;telemetry file&gt;
+ */
+public class LegacyStatusLogConverter {
+
+	private static Logger logger = Logger.getLogger(LegacyStatusLogConverter.class.getSimpleName());
+
+	/** Number of records per block */
+	private static final int BLOCK_SIZE = 4096;
+
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private static final String STATE_FIELD = "state";
+
+	/**
+	 * Convert a text log file.
+	 *
+	 * @param textFile the legacy log file, gzipped if its name ends with .gz
+	 * @param telemetryFile the binary file to create
+	 * @return the number of converted records
+	 */
+	public static long convert(File textFile, File telemetryFile) throws IOException {
+		InputStream in = new FileInputStream(textFile);
+		if (textFile.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in);
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, TelemetryWriter.UTF_8));
+		TelemetryWriter writer = new TelemetryWriter(new FileOutputStream(telemetryFile));
+		long count = 0;
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String s[] = line.split(FIELD_SEPARATOR);
+				try {
+					if (s.length == 4 && STATE_FIELD.equals(s[2])) {
+						writer.addState(Long.parseLong(s[0]), s[1], s[3]);
+					} else if (s.length == 4) {
+						writer.addSensorValue(Long.parseLong(s[0]), s[1], s[2], Float.parseFloat(s[3]));
+					} else if (s.length == 3) {
+						writer.addEvent(Long.parseLong(s[0]), s[1], s[2]);
+					} else {
+						logger.warning("Invalid status log entry: " + line);
+						continue;
+					}
+				} catch (NumberFormatException e) {
+					logger.warning("Invalid status log entry: " + line);
+					continue;
+				}
+				++count;
+				if (writer.getCount() == BLOCK_SIZE) {
+					writer.flush();
+				}
+			}
+		} finally {
+			br.close();
+			writer.close();
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: " + LegacyStatusLogConverter.class.getSimpleName() + " <text log> <telemetry file>");
+			System.exit(-1);
+		}
+		File textFile = new File(args[0]);
+		File telemetryFile = new File(args[1]);
+		long count = convert(textFile, telemetryFile);
+		logger.info("Converted " + count + " records, " + textFile.length() + " -> " + telemetryFile.length() + " bytes");
+	}
+}
@@ -0,0 +1,192 @@
+package com.thermostat.server.profile.telemetry;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams resident telemetry records written by {@link TelemetryWriter}.
+ *
+ * Blocks are read one at a time into a reusable buffer and decoded record by record,
+ * so memory use does not depend on the size of the file.
+ * An incomplete last block (e.g., written when the process was killed) ends the stream.
+ *
+ * Usage:
+ * <pre>
+ * while (reader.next()) {
+ *     reader.getType(); reader.getTimestamp(); reader.getFingerprint(); ...
+ * }
+ * reader.close();
+ * </pre>
+ */
+public class TelemetryReader {
+
+	private static final TelemetryRecordType[] TYPES = TelemetryRecordType.values();
+
+	private DataInputStream input;
+
+	private List<String> dictionary = new ArrayList<String>();
+
+	/** Bytes of the complete blocks read so far */
+	private long position = 0;
+
+	private byte[] blockBytes = new byte[0];
+
+	/** Records remaining in the current block */
+	private int remaining = 0;
+
+	private ByteColumn.Reader[] columns = new ByteColumn.Reader[TelemetryWriter.COLUMN_COUNT];
+
+	private TelemetryRecordType type;
+
+	private long timestamp;
+
+	private String fingerprint;
+
+	private String name;
+
+	private float value;
+
+	public TelemetryReader(InputStream in) {
+		input = new DataInputStream(new BufferedInputStream(in));
+	}
+
+	/**
+	 * Read the dictionary of a telemetry file to continue writing it
+	 * and cut off an incomplete last block.
+	 *
+	 * @return the dictionary to pass to {@link TelemetryWriter#TelemetryWriter(java.io.OutputStream, List)}
+	 */
+	public static List<String> recover(File file) throws IOException {
+		TelemetryReader reader = new TelemetryReader(new FileInputStream(file));
+		try {
+			while (reader.readBlock(false)) {
+			}
+		} finally {
+			reader.close();
+		}
+		if (reader.position < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(reader.position);
+			} finally {
+				raf.close();
+			}
+		}
+		return reader.dictionary;
+	}
+
+	/**
+	 * Advance to the next record.
+	 *
+	 * @return true if a record is available, false at the end of the stream
+	 */
+	public boolean next() throws IOException {
+		while (remaining == 0) {
+			if (!readBlock(true)) {
+				return false;
+			}
+		}
+		--remaining;
+		type = TYPES[columns[0].readByte()];
+		timestamp += columns[1].readSignedVarLong();
+		fingerprint = dictionary.get((int)columns[2].readVarLong());
+		name = dictionary.get((int)columns[3].readVarLong());
+		value = type == TelemetryRecordType.SENSOR ? Float.intBitsToFloat(columns[4].readInt()) : Float.NaN;
+		return true;
+	}
+
+	public TelemetryRecordType getType() {
+		return type;
+	}
+
+	/**
+	 * @return the timestamp of the current record in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the cryptographic ID of the resident's smartphone
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return the sensor name, the event name or the state name depending on the type of the record
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the sensor value or NaN if the record is not a sensor record
+	 */
+	public float getValue() {
+		return value;
+	}
+
+	public void close() throws IOException {
+		remaining = 0;
+		input.close();
+	}
+
+	/**
+	 * Read the next block and add its entries to the dictionary.
+	 *
+	 * @param decode true to prepare decoding the records of the block, false to skip them
+	 * @return false if there are no more complete blocks
+	 */
+	private boolean readBlock(boolean decode) throws IOException {
+		try {
+			if (input.readInt() != TelemetryWriter.MAGIC) {
+				throw new IOException("Invalid telemetry block at offset " + position);
+			}
+			int count = input.readInt();
+			long firstTimestamp = input.readLong();
+			int entryCount = input.readInt();
+			long size = 4 + 4 + 8 + 4 + 4 * TelemetryWriter.COLUMN_COUNT;
+			List<String> entries = new ArrayList<String>(entryCount);
+			for (int i = 0; i < entryCount; ++i) {
+				byte[] bytes = new byte[input.readUnsignedShort()];
+				input.readFully(bytes);
+				entries.add(new String(bytes, TelemetryWriter.UTF_8));
+				size += 2 + bytes.length;
+			}
+			int[] lengths = new int[TelemetryWriter.COLUMN_COUNT];
+			int length = 0;
+			for (int c = 0; c < lengths.length; ++c) {
+				lengths[c] = input.readInt();
+				length += lengths[c];
+			}
+			if (blockBytes.length < length) {
+				blockBytes = new byte[length];
+			}
+			input.readFully(blockBytes, 0, length);
+
+			dictionary.addAll(entries);
+			position += size + length;
+			if (decode) {
+				int offset = 0;
+				for (int c = 0; c < lengths.length; ++c) {
+					columns[c] = new ByteColumn.Reader(blockBytes, offset);
+					offset += lengths[c];
+				}
+				timestamp = firstTimestamp;
+				remaining = count;
+			}
+			return true;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.thermostat.server.profile.telemetry;
+
+/**
+ * Kinds of resident telemetry records
+ */
+public enum TelemetryRecordType {
+
+	/** Average value of a phone sensor over the data collection period */
+	SENSOR,
+
+	/** Broadcast event captured by the phone */
+	EVENT,
+
+	/** State reported by the resident */
+	STATE;
+}
@@ -0,0 +1,162 @@
+package com.thermostat.server.profile.telemetry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes resident telemetry records in compact columnar blocks.
+ *
+ * Block layout:
+ * <pre>
+ * int   magic
+ * int   number of records
+ * long  timestamp of the first record (milliseconds since the epoch)
+ * int   number of dictionary entries introduced by the block
+ *       followed by the entries: short byte length + UTF-8 bytes
+ * int   byte length of each column: types, timestamps, fingerprints, names, values
+ * byte  column data in the same order
+ * </pre>
+ * Fingerprints, sensor, event and state names are replaced with their index in a dictionary, which is built
+ * up by the blocks of a file. Timestamps are stored as zig-zag encoded deltas to the previous record,
+ * dictionary indexes as variable length quantities. Only sensor records have a value (a 4 byte float).
+ */
+public class TelemetryWriter {
+
+	/** "RTB1" */
+	static final int MAGIC = 0x52544231;
+
+	static final int COLUMN_COUNT = 5;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private DataOutputStream out;
+
+	/** Dictionary entry -> index */
+	private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+	/** Dictionary entries introduced by the current block */
+	private List<String> newEntries = new ArrayList<String>();
+
+	private ByteColumn types = new ByteColumn();
+
+	private ByteColumn timestamps = new ByteColumn();
+
+	private ByteColumn fingerprints = new ByteColumn();
+
+	private ByteColumn names = new ByteColumn();
+
+	private ByteColumn values = new ByteColumn();
+
+	private int count = 0;
+
+	private long firstTimestamp;
+
+	private long previousTimestamp;
+
+	/**
+	 * Start writing a new telemetry file.
+	 */
+	public TelemetryWriter(OutputStream out) {
+		this(out, new ArrayList<String>());
+	}
+
+	/**
+	 * Continue writing a telemetry file.
+	 *
+	 * @param out the stream positioned at the end of the last complete block
+	 * @param dictionary the dictionary built up by the blocks already in the file (see {@link TelemetryReader#recover})
+	 */
+	public TelemetryWriter(OutputStream out, List<String> dictionary) {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		for (String entry : dictionary) {
+			this.dictionary.put(entry, this.dictionary.size());
+		}
+	}
+
+	public void addSensorValue(long timestamp, String fingerprint, String sensorName, float value) {
+		add(TelemetryRecordType.SENSOR, timestamp, fingerprint, sensorName);
+		values.writeInt(Float.floatToIntBits(value));
+	}
+
+	public void addEvent(long timestamp, String fingerprint, String eventName) {
+		add(TelemetryRecordType.EVENT, timestamp, fingerprint, eventName);
+	}
+
+	public void addState(long timestamp, String fingerprint, String stateName) {
+		add(TelemetryRecordType.STATE, timestamp, fingerprint, stateName);
+	}
+
+	/**
+	 * @return the number of records in the current block
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Write the current block (if any) and flush the underlying stream.
+	 */
+	public void flush() throws IOException {
+		if (count > 0) {
+			writeBlock();
+		}
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	private void add(TelemetryRecordType type, long timestamp, String fingerprint, String name) {
+		if (count == 0) {
+			firstTimestamp = timestamp;
+			previousTimestamp = timestamp;
+		}
+		types.writeByte(type.ordinal());
+		timestamps.writeSignedVarLong(timestamp - previousTimestamp);
+		fingerprints.writeVarLong(lookup(fingerprint));
+		names.writeVarLong(lookup(name));
+		previousTimestamp = timestamp;
+		++count;
+	}
+
+	private int lookup(String entry) {
+		Integer index = dictionary.get(entry);
+		if (index == null) {
+			index = dictionary.size();
+			dictionary.put(entry, index);
+			newEntries.add(entry);
+		}
+		return index;
+	}
+
+	private void writeBlock() throws IOException {
+		ByteColumn[] columns = { types, timestamps, fingerprints, names, values };
+		out.writeInt(MAGIC);
+		out.writeInt(count);
+		out.writeLong(firstTimestamp);
+		out.writeInt(newEntries.size());
+		for (String entry : newEntries) {
+			byte[] bytes = entry.getBytes(UTF_8);
+			out.writeShort(bytes.length);
+			out.write(bytes);
+		}
+		for (ByteColumn column : columns) {
+			out.writeInt(column.getLength());
+		}
+		for (ByteColumn column : columns) {
+			out.write(column.getBytes(), 0, column.getLength());
+			column.reset();
+		}
+		newEntries.clear();
+		count = 0;
+	}
+}
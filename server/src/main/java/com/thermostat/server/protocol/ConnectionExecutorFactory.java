@@ -0,0 +1,73 @@
+package com.thermostat.server.protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executor running blocking connection handlers and protocol input loops.
+ * 
+ * The executor is selected by the system property connection.executor:
+ * - platform (default): platform threads, reused for subsequent connections
+ * - virtual: a virtual thread per task (requires Java 21 or later, falls back to platform threads otherwise)
+ */
+public class ConnectionExecutorFactory {
+
+	private static Logger logger = Logger.getLogger(ConnectionExecutorFactory.class.getSimpleName());
+
+	private static final String EXECUTOR_PROPERTY = "connection.executor";
+	
+	private static final String EXECUTOR_PLATFORM = "platform";
+	
+	private static final String EXECUTOR_VIRTUAL = "virtual";
+	
+	private static ExecutorService executor = null;
+	
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			String type = System.getProperty(EXECUTOR_PROPERTY, EXECUTOR_PLATFORM);
+			if (EXECUTOR_VIRTUAL.equals(type)) {
+				executor = createVirtualThreadExecutor();
+			} else if (!EXECUTOR_PLATFORM.equals(type)) {
+				logger.warning("Unknown connection executor " + type + ", using platform threads");
+			}
+			if (executor == null) {
+				executor = createPlatformThreadExecutor();
+			}
+		}
+		return executor;
+	}
+	
+	private static ExecutorService createPlatformThreadExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "Connection-" + count.incrementAndGet());
+			}
+		});
+	}
+	
+	/**
+	 * Look up Executors.newVirtualThreadPerTaskExecutor() at runtime so that the server still runs on older Java versions.
+	 * 
+	 * @return the executor or null if virtual threads are not available
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			logger.info("Running connections on virtual threads");
+			return (ExecutorService)factoryMethod.invoke(null);
+		} catch (NoSuchMethodException e) {
+			logger.warning("Virtual threads are not available in Java " + System.getProperty("java.version") + 
+					", using platform threads");
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Could not create virtual thread executor, using platform threads", e);
+		}
+		return null;
+	}
+}
@@ -2,6 +2,11 @@ package com.thermostat.server.protocol;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,7 +15,6 @@ import com.thermostat.protocol.ThermostatMessageListener;
 import com.thermostat.protocol.ThermostatProtocol;
 import com.thermostat.protocol.data.ResidentState;
 import com.thermostat.protocol.data.ZoneData;
-import com.thermostat.protocol.message.CloseMessage;
 import com.thermostat.protocol.message.RegistrationMessage;
 import com.thermostat.protocol.message.StateUpdateMessage;
 import com.thermostat.protocol.message.ZoneActionMessage;
@@ -23,36 +27,44 @@ import com.thermostat.server.security.ThermostatServerSecurityManager;
 import com.thermostat.server.zone.ZoneManager;
 import com.thermostat.server.zone.ZoneRegistry;
 import com.thermostat.server.zone.ZoneRegistryFactory;
+import com.thermostat.server.zone.ZoneScheduler;
 
 /**
  * Manages communication between the thermostat server and the smartphone application. 
+ * 
+ * Clients opening a session (sending requests with request IDs) keep the connection open after each exchange
+ * and receive zone information pushed by the ZoneInfoPublisher when zones change.
+ * Other clients are served a single exchange per connection.
  */
 public class ThermostatServerProtocol extends ThermostatMessageListener {
 
 	private static Logger logger = Logger.getLogger(ThermostatServerProtocol.class.getSimpleName());
 
-	private ResidentProfileStore profileStore;
-	
-	private ZoneRegistry zoneRegistry;
+	/** Maximum time to wait for zone updates before replying to a state update */
+	private static final long ZONE_UPDATE_TIMEOUT_MS = 5000;
+
+	/** Timer replying to state updates whose zone updates did not complete in time, created when first needed */
+	private static Timer timer = null;
 
-	private ThermostatServerSecurityManager securityManager;
+	/* Shared by all connections and set before any instance is created: the input loop started by the superclass
+	 * constructor may deliver messages before the fields of this class are assigned */
+	private static final ResidentProfileStore profileStore = ResidentProfileStoreFactory.getResidentProfileStore();
 	
+	private static final ZoneRegistry zoneRegistry = ZoneRegistryFactory.getZoneRegistry();
+
 	private ThermostatServerState state;
 	
 	public ThermostatServerProtocol(ThermostatProtocol protocol) throws IOException, GeneralSecurityException {
 		super(protocol);
-		profileStore = ResidentProfileStoreFactory.getResidentProfileStore();
-		zoneRegistry = ZoneRegistryFactory.getZoneRegistry();
-		securityManager = ThermostatServerSecurityManager.getInstance();
 		state = ThermostatServerState.WAITING_FOR_FIRST_MESSAGE;
 	}
 
 	protected void receiveMessage(ThermostatMessage reply, ThermostatMessage request) {
 		logger.fine("Received message " + reply);
+		if (getProtocol().isSession()) {
+			ZoneInfoPublisher.getInstance().addSession(getProtocol());
+		}
 		switch (reply.getType()) {
-		case CLOSE:
-			getProtocol().close();
-			break;
 		case REGISTRATION:
 			handleRegistration((RegistrationMessage)reply);
 			break;
@@ -76,10 +88,10 @@ public class ThermostatServerProtocol extends ThermostatMessageListener {
 			if (state != ThermostatServerState.WAITING_FOR_FIRST_MESSAGE) {
 				throw new IllegalArgumentException("Received RegistrationMessage in " + state + " state.");
 			}
-			String ownPublicKey = securityManager.getPublicKeyString();
+			String ownPublicKey = ThermostatServerSecurityManager.getInstance().getPublicKeyString();
 			// TODO: fill in parameters in registration message
 			RegistrationMessage registrationReplyMessage = new RegistrationMessage(ownPublicKey, "thermostat", "", "", "");
-			getProtocol().send(registrationReplyMessage);
+			getProtocol().reply(registrationMessage, registrationReplyMessage);
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "IOException when handling registration message", e);
 		} catch (GeneralSecurityException e) {
@@ -99,25 +111,32 @@ public class ThermostatServerProtocol extends ThermostatMessageListener {
 			logger.log(Level.SEVERE, "Could not write resident status log file", e);
 		}
 		ResidentProfile profile = profileStore.getProfile(fingerprint);
-		if (profile != null) {
-			logger.info("State update sender Bluetooth address " + profile.getBluetoothName());
-			profile.updateState(state);
-			// Updates zones
-			for (ZoneManager zoneManager : zoneRegistry.getZoneManagers()) {
-				try {
-					zoneManager.update();
-				} catch (IOException e) {
-					logger.log(Level.SEVERE, "Error when aqpplying new zone settings", e);
-				}
-			}
+		Collection<ZoneManager> zoneManagers = zoneRegistry.getZoneManagers();
+		if (profile == null || zoneManagers.isEmpty()) {
+			replyZoneData(message);
+			return;
 		}
+		logger.info("State update sender Bluetooth address " + profile.getBluetoothName());
+		profile.updateState(state);
+		// Reply with up-to-date zone data once the zones are evaluated, without holding this thread meanwhile
+		new ZoneUpdateReply(message, zoneManagers);
+	}
+	
+	private void replyZoneData(ThermostatMessage request) {
 		try {
-			getProtocol().send(new ZoneDataMessage(zoneRegistry.getZoneData()));
+			getProtocol().reply(request, new ZoneDataMessage(zoneRegistry.getZoneData()));
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "Error when sending zone info message", e);
 		}
 	}
 	
+	private static synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("ZoneUpdateTimeout", true);
+		}
+		return timer;
+	}
+	
 	private void handleZoneAction(ZoneActionMessage message) {
 		String fingerprint = message.getFingerprint();
 		logger.info("Zone action message from " + fingerprint);
@@ -126,20 +145,70 @@ public class ThermostatServerProtocol extends ThermostatMessageListener {
 		ZoneManager zoneManager = zoneRegistry.getZoneConfiguration(zoneData.displayName);
 		if (zoneManager != null) {
 			zoneManager.setBoostTemperature(zoneData.boostTemperature);
-			try {
-				zoneManager.update();
-			} catch (IOException e) {
-				logger.log(Level.SEVERE, "Error when applying new zone settings", e);
-			}
+			ZoneScheduler.getInstance().requestUpdate(zoneManager);
 		} else {
 			logger.warning("Zone manager not found for zone " + zoneData.displayName);
 		}
 		
-		try {
-			getProtocol().send(new CloseMessage());
-		} catch (IOException e) {
-			logger.log(Level.SEVERE, "Error when sending close message", e);
+		if (getProtocol().isSession()) {
+			// Reply with the current zone data, updated data is pushed after the zone is evaluated
+			replyZoneData(message);
+			return;
 		}
 		getProtocol().close();
 	}
+	
+	/**
+	 * Replies to a state update when the requested zone evaluations are finished 
+	 * or with the previous zone data when they do not finish within ZONE_UPDATE_TIMEOUT_MS.
+	 * The reply is sent on the connection executor, so slow clients do not delay zone evaluations.
+	 */
+	private class ZoneUpdateReply extends TimerTask {
+		
+		private ThermostatMessage request;
+		
+		/** Number of zone evaluations not finished yet */
+		private AtomicInteger remaining;
+		
+		private AtomicBoolean replied = new AtomicBoolean(false);
+		
+		ZoneUpdateReply(ThermostatMessage request, Collection<ZoneManager> zoneManagers) {
+			this.request = request;
+			remaining = new AtomicInteger(zoneManagers.size());
+			getTimer().schedule(this, ZONE_UPDATE_TIMEOUT_MS);
+			Runnable completion = new Runnable() {
+				public void run() {
+					if (remaining.decrementAndGet() == 0) {
+						reply();
+					}
+				}
+			};
+			for (ZoneManager zoneManager : zoneManagers) {
+				ZoneScheduler.getInstance().requestUpdate(zoneManager, completion);
+			}
+		}
+		
+		/**
+		 * Called by the timer when zone updates did not complete in time
+		 */
+		@Override
+		public void run() {
+			if (!replied.get()) {
+				logger.warning("Zone updates did not complete in " + ZONE_UPDATE_TIMEOUT_MS + " ms, replying with previous zone data");
+			}
+			reply();
+		}
+		
+		private void reply() {
+			if (!replied.compareAndSet(false, true)) {
+				return;
+			}
+			cancel();
+			ConnectionExecutorFactory.getExecutor().execute(new Runnable() {
+				public void run() {
+					replyZoneData(request);
+				}
+			});
+		}
+	}
 }
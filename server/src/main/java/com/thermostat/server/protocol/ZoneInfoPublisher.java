@@ -0,0 +1,102 @@
+package com.thermostat.server.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.thermostat.protocol.ThermostatProtocol;
+import com.thermostat.protocol.data.ZoneData;
+import com.thermostat.protocol.message.ZoneDataMessage;
+import com.thermostat.server.zone.ZoneManager;
+import com.thermostat.server.zone.ZoneRegistry;
+import com.thermostat.server.zone.ZoneRegistryFactory;
+import com.thermostat.server.zone.ZoneScheduler;
+import com.thermostat.server.zone.ZoneUpdateListener;
+
+/**
+ * Pushes zone information to the clients having an open session whenever
+ * the data of a zone (ambient, target or boost temperature) changes.
+ * Messages are sent on the connection executor, so slow clients do not delay zone evaluations.
+ */
+public class ZoneInfoPublisher implements ZoneUpdateListener {
+
+	private static Logger logger = Logger.getLogger(ZoneInfoPublisher.class.getSimpleName());
+
+	private static ZoneInfoPublisher instance = null;
+
+	private ZoneRegistry zoneRegistry;
+
+	private List<ThermostatProtocol> sessions = new CopyOnWriteArrayList<ThermostatProtocol>();
+
+	/** Zone name -> the last published data */
+	private Map<String, ZoneData> published = new HashMap<String, ZoneData>();
+
+	public static synchronized ZoneInfoPublisher getInstance() {
+		if (instance == null) {
+			instance = new ZoneInfoPublisher();
+			ZoneScheduler.getInstance().addUpdateListener(instance);
+		}
+		return instance;
+	}
+
+	private ZoneInfoPublisher() {
+		zoneRegistry = ZoneRegistryFactory.getZoneRegistry();
+	}
+
+	/**
+	 * Register a session to receive zone information until it is closed.
+	 */
+	public void addSession(ThermostatProtocol protocol) {
+		if (!sessions.contains(protocol)) {
+			sessions.add(protocol);
+		}
+	}
+
+	public void zoneUpdated(ZoneManager zone) {
+		ZoneData data = zone.getZoneData();
+		synchronized (published) {
+			if (isSame(published.get(data.displayName), data)) {
+				return;
+			}
+			published.put(data.displayName, data);
+		}
+		if (sessions.isEmpty()) {
+			return;
+		}
+		ConnectionExecutorFactory.getExecutor().execute(new Runnable() {
+			public void run() {
+				publish();
+			}
+		});
+	}
+
+	private void publish() {
+		ArrayList<ZoneData> zoneData = zoneRegistry.getZoneData();
+		for (ThermostatProtocol session : sessions) {
+			if (session.isClosing()) {
+				sessions.remove(session);
+				continue;
+			}
+			try {
+				session.send(new ZoneDataMessage(zoneData));
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not push zone info to " + session, e);
+				sessions.remove(session);
+			}
+		}
+	}
+
+	private static boolean isSame(ZoneData a, ZoneData b) {
+		return a != null && isSame(a.currentTemperature, b.currentTemperature) && 
+				isSame(a.targetTemperature, b.targetTemperature) && isSame(a.boostTemperature, b.boostTemperature);
+	}
+
+	private static boolean isSame(Float a, Float b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
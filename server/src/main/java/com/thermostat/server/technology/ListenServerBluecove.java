@@ -76,7 +76,7 @@ public class ListenServerBluecove extends ThermostatListenServer {
 		@Override
 		public void run() {
 			try {
-				ThermostatProtocol protocol = new ThermostatProtocol(new ThermostatSocketBluecove(connection));
+				ThermostatProtocol protocol = new ThermostatProtocol(new ThermostatSocketBluecove(connection), false);
 				new ThermostatServerProtocol(protocol);
 			} catch (Exception e) {
 				logger.log(Level.SEVERE, "Error when handling incoming bluetooth connection", e);
@@ -1,23 +1,111 @@
 package com.thermostat.server.technology;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.thermostat.protocol.ThermostatMessage;
 import com.thermostat.protocol.ThermostatProtocol;
+import com.thermostat.protocol.ThermostatSocket;
+import com.thermostat.protocol.codec.BinaryCodec;
+import com.thermostat.protocol.codec.NegotiatingCodec;
+import com.thermostat.server.configuration.Configuration;
+import com.thermostat.server.protocol.ConnectionExecutorFactory;
 import com.thermostat.server.protocol.ThermostatListenServer;
 import com.thermostat.server.protocol.ThermostatServerProtocol;
 import com.thermostat.technology.GenericIPService;
 
+/**
+ * Listens for incoming IP connections.
+ * 
+ * By default, non-blocking I/O is used: a single selector thread accepts connections, reads and frames incoming messages and writes queued replies.
+ * Decoded messages are processed by ThermostatServerProtocol on a bounded pool of worker threads,
+ * messages of the same connection one at a time and in the order of arrival.
+ * A connection is closed if it sends a malformed frame or nothing for ip.server.idle milliseconds.
+ * Connections of clients using Java serialization are handed over to a blocking ThermostatProtocol.
+ * 
+ * Alternatively (system property ip.server.mode=blocking), each connection is served by a blocking ThermostatProtocol
+ * with the connection handler and the input loop running on the executor provided by ConnectionExecutorFactory.
+ */
 public class ListenServerIP extends ThermostatListenServer {
 
 	private static Logger logger = Logger.getLogger(ThermostatListenServer.class.getSimpleName());
 
+	/** System property to select non-blocking (nio) or blocking I/O */
+	private static final String MODE_PROPERTY = "ip.server.mode";
+	
+	private static final String MODE_BLOCKING = "blocking";
+	
+	/** System property to set the number of threads processing messages */
+	private static final String WORKERS_PROPERTY = "ip.server.workers";
+	
+	private static final int DEFAULT_WORKERS = 4;
+	
+	/** System property to set the number of connections which may wait for a worker thread */
+	private static final String QUEUE_SIZE_PROPERTY = "ip.server.queue";
+	
+	private static final int DEFAULT_QUEUE_SIZE = 64;
+	
+	private static final int INITIAL_BUFFER_SIZE = 2048;
+	
+	/** Maximum size of the read buffer of a connection, enough for an incomplete frame of maximum size */
+	private static final int MAX_BUFFER_SIZE = 128 * 1024;
+	
+	/** System property to set the time after which connections not receiving any data are closed */
+	private static final String IDLE_TIMEOUT_PROPERTY = "ip.server.idle";
+	
+	/** Longer than the idle timeout of sessions, which are closed by ThermostatProtocol */
+	private static final long DEFAULT_IDLE_TIMEOUT_MS = 2 * ThermostatProtocol.DEFAULT_SESSION_IDLE_TIMEOUT_MS;
+
 	private static ListenServerIP instance = null;
 
-	private ServerSocket serverSocket;
+	/** Server socket in blocking mode or null */
+	private ServerSocket serverSocket = null;
+	
+	private ServerSocketChannel serverChannel;
+	
+	private long idleTimeoutMs = Configuration.getLongProperty(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_MS);
+	
+	/** Time of the next check for idle connections */
+	private long nextIdleCheckMs = 0;
+	
+	private Selector selector;
+	
+	private ExecutorService workers;
+	
+	/** Connections having replies or close requests queued by worker threads */
+	private Queue<Connection> pendingConnections = new ConcurrentLinkedQueue<Connection>();
+	
+	/** Connections to be handed over to a blocking protocol after the current selection */
+	private List<Connection> handovers = new ArrayList<Connection>();
 	
 	public static ListenServerIP getInstance() throws IOException {
 		if (instance == null) {
@@ -27,17 +115,44 @@ public class ListenServerIP extends ThermostatListenServer {
 	}
 	
 	private ListenServerIP() throws IOException {
-		serverSocket = new ServerSocket(GenericIPService.THERMOSTAT_SERVER_TCP_PORT);
+		if (MODE_BLOCKING.equals(System.getProperty(MODE_PROPERTY))) {
+			serverSocket = new ServerSocket(GenericIPService.THERMOSTAT_SERVER_TCP_PORT);
+			return;
+		}
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(GenericIPService.THERMOSTAT_SERVER_TCP_PORT));
+		serverChannel.configureBlocking(false);
+		selector = Selector.open();
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		int poolSize = (int)Configuration.getLongProperty(WORKERS_PROPERTY, DEFAULT_WORKERS);
+		int queueSize = (int)Configuration.getLongProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+		workers = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, ListenServerIP.class.getSimpleName() + "-" + count.incrementAndGet());
+			}
+		});
 	}
 	
 	@Override
 	public void run() {
+		if (serverSocket != null) {
+			runBlocking();
+		} else {
+			runSelector();
+		}
+	}
+	
+	private void runBlocking() {
 		while (true) {
 			try {
 				Socket socket = serverSocket.accept();
 				logger.info("Incoming IP connection from " + socket.getInetAddress());
-				ClientHandlerThread t = new ClientHandlerThread(socket);
-				t.start();
+				socket.setSoTimeout((int)idleTimeoutMs);
+				ConnectionExecutorFactory.getExecutor().execute(new ClientHandler(socket));
 			} catch (IOException e) {
 				logger.log(Level.SEVERE, "Error when accepting incoming IP connection", e);
 				// Wait some time to prevent infinite log flooding
@@ -48,23 +163,402 @@ public class ListenServerIP extends ThermostatListenServer {
 		}
 	}
 	
-	private class ClientHandlerThread extends Thread {
+	private void runSelector() {
+		while (true) {
+			try {
+				selector.select(idleTimeoutMs / 4);
+				Connection pending;
+				while ((pending = pendingConnections.poll()) != null) {
+					pending.updateInterest();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection)key.attachment();
+					try {
+						if (key.isWritable()) {
+							connection.write();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+					} catch (IOException e) {
+						connection.fail(e);
+					} catch (RuntimeException e) {
+						// A malformed frame must not stop serving the other connections
+						connection.fail(e);
+					}
+				}
+				if (!handovers.isEmpty()) {
+					// Complete deregistration of cancelled keys before switching channels to blocking mode
+					selector.selectNow();
+					for (Connection connection : handovers) {
+						connection.handOver();
+					}
+					handovers.clear();
+				}
+				closeIdleConnections();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Error when selecting IP connections", e);
+				// Wait some time to prevent infinite log flooding
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {}
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "Error when serving IP connections", e);
+			}
+		}
+	}
+	
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		if (idleTimeoutMs <= 0 || now < nextIdleCheckMs) {
+			return;
+		}
+		nextIdleCheckMs = now + idleTimeoutMs / 4;
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (key.isValid() && attachment instanceof Connection) {
+				Connection connection = (Connection)attachment;
+				if (now - connection.lastReadMs > idleTimeoutMs) {
+					connection.fail(new SocketTimeoutException("No data received for " + idleTimeoutMs + " ms"));
+				}
+			}
+		}
+	}
+	
+	private void accept() {
+		try {
+			SocketChannel channel = serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			logger.info("Incoming IP connection from " + channel.socket().getInetAddress());
+			channel.configureBlocking(false);
+			new Connection(channel);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Error when accepting incoming IP connection", e);
+		}
+	}
+	
+	private class ClientHandler implements Runnable {
 
 		private Socket socket;
 		
-		public ClientHandlerThread(Socket socket) {
+		public ClientHandler(Socket socket) {
 			this.socket = socket;
 		}
 		
-		@Override
 		public void run() {
 			try {
-				ThermostatProtocol protocol = new ThermostatProtocol(new ThermostatSocketIP(socket));
+				ThermostatProtocol protocol = new ThermostatProtocol(new ThermostatSocketIP(socket), false);
 				new ThermostatServerProtocol(protocol);
 			} catch (Exception e) {
 				logger.log(Level.SEVERE, "Error when serving incoming IP connection", e);
 			}
 		}
-	}	
+	}
+	
+	/**
+	 * State of a connection using the binary format.
+	 * Reading, writing and closing the channel are performed by the selector thread,
+	 * messages are processed by worker threads.
+	 */
+	private class Connection implements ThermostatSocket, Runnable {
+		
+		private SocketChannel channel;
+		
+		private SelectionKey key;
+		
+		private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		
+		/** Time of the last read of data or of accepting the connection */
+		private long lastReadMs = System.currentTimeMillis();
+		
+		/** Encoded replies waiting to be written */
+		private Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		
+		private ReplyOutputStream output = new ReplyOutputStream();
+		
+		private BinaryCodec codec = null;
+		
+		private ThermostatProtocol protocol = null;
+		
+		/** Set when the channel should be closed once all replies are written */
+		private volatile boolean closeRequested = false;
+		
+		private volatile boolean closed = false;
+		
+		/** Received messages and errors waiting to be processed by a worker */
+		private Queue<Runnable> events = new LinkedList<Runnable>();
+		
+		/** true if a worker is processing events of this connection */
+		private boolean dispatching = false;
+		
+		Connection(SocketChannel channel) throws ClosedChannelException {
+			this.channel = channel;
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+		
+		/**
+		 * Read available bytes and dispatch complete messages.
+		 */
+		void read() throws IOException {
+			if (!readBuffer.hasRemaining()) {
+				if (readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+					throw new StreamCorruptedException("Incomplete frame exceeds " + MAX_BUFFER_SIZE + " bytes");
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(2 * readBuffer.capacity());
+				readBuffer.flip();
+				buffer.put(readBuffer);
+				readBuffer = buffer;
+			}
+			int n = channel.read(readBuffer);
+			if (n < 0) {
+				endOfStream();
+				return;
+			}
+			if (n > 0) {
+				lastReadMs = System.currentTimeMillis();
+			}
+			byte[] data = readBuffer.array();
+			int limit = readBuffer.position();
+			int position = 0;
+			if (codec == null) {
+				if (limit < 2) {
+					return;
+				}
+				if (NegotiatingCodec.isSerializationHeader(data, 0)) {
+					key.cancel();
+					handovers.add(this);
+					return;
+				}
+				if (limit < NegotiatingCodec.PREAMBLE_LENGTH) {
+					return;
+				}
+				int version = Math.min(NegotiatingCodec.parsePreamble(data, 0), BinaryCodec.VERSION);
+				writeQueue.add(ByteBuffer.wrap(NegotiatingCodec.createPreamble()));
+				updateInterest();
+				codec = new BinaryCodec(null, output, version);
+				protocol = new ThermostatProtocol(this, codec);
+				dispatch(new Runnable() {
+					public void run() {
+						try {
+							new ThermostatServerProtocol(protocol);
+						} catch (Exception e) {
+							logger.log(Level.SEVERE, "Error when serving incoming IP connection", e);
+							close();
+						}
+					}
+				});
+				position = NegotiatingCodec.PREAMBLE_LENGTH;
+			}
+			while (position < limit && !closed) {
+				int frameLength = BinaryCodec.getFrameLength(data, position, limit - position);
+				if (frameLength < 0 || frameLength > limit - position) {
+					break;
+				}
+				final ThermostatMessage message = codec.decodeFrame(data, position, frameLength);
+				position += frameLength;
+				dispatch(new Runnable() {
+					public void run() {
+						if (!closed) {
+							protocol.receive(message);
+						}
+					}
+				});
+			}
+			// Keep the beginning of an incomplete frame
+			readBuffer.limit(limit);
+			readBuffer.position(position);
+			readBuffer.compact();
+		}
+		
+		/**
+		 * Write queued replies.
+		 */
+		void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					return;
+				}
+				writeQueue.poll();
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeRequested) {
+				closeNow();
+			}
+		}
+		
+		/**
+		 * Apply changes requested by workers.
+		 */
+		void updateInterest() {
+			if (!key.isValid()) {
+				return;
+			}
+			if (!writeQueue.isEmpty()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			} else if (closeRequested) {
+				closeNow();
+			}
+		}
+		
+		void fail(final Exception e) {
+			closeNow();
+			if (protocol != null) {
+				dispatch(new Runnable() {
+					public void run() {
+						protocol.receiveFailure(e);
+					}
+				});
+			} else {
+				logger.log(Level.WARNING, "Error on IP connection", e);
+			}
+		}
+		
+		private void endOfStream() {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			if (protocol != null) {
+				// Reported after processing the messages received before, which may have closed the sequence
+				dispatch(new Runnable() {
+					public void run() {
+						protocol.receiveFailure(new EOFException("Connection closed by peer"));
+					}
+				});
+			} else {
+				close();
+				updateInterest();
+			}
+		}
+		
+		/**
+		 * Switch a connection of a client using Java serialization to a blocking ThermostatProtocol.
+		 */
+		void handOver() {
+			try {
+				channel.configureBlocking(true);
+				channel.socket().setSoTimeout((int)idleTimeoutMs);
+				byte[] prefix = new byte[readBuffer.position()];
+				System.arraycopy(readBuffer.array(), 0, prefix, 0, prefix.length);
+				final ThermostatSocketIP socket = new ThermostatSocketIP(channel.socket(), prefix);
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							ThermostatProtocol protocol = new ThermostatProtocol(socket, false);
+							new ThermostatServerProtocol(protocol);
+						} catch (Exception e) {
+							logger.log(Level.SEVERE, "Error when serving incoming IP connection", e);
+						}
+					}
+				});
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Error when handing over IP connection using Java serialization", e);
+				closeNow();
+			}
+		}
+		
+		private void dispatch(Runnable event) {
+			synchronized (events) {
+				events.add(event);
+				if (dispatching) {
+					return;
+				}
+				dispatching = true;
+			}
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				logger.warning("All workers busy, closing IP connection from " + channel.socket().getInetAddress());
+				synchronized (events) {
+					events.clear();
+					dispatching = false;
+				}
+				closeNow();
+			}
+		}
+		
+		/**
+		 * Process queued events on a worker thread.
+		 */
+		public void run() {
+			while (true) {
+				Runnable event;
+				synchronized (events) {
+					event = events.poll();
+					if (event == null) {
+						dispatching = false;
+						return;
+					}
+				}
+				try {
+					event.run();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Error when processing message", e);
+				}
+			}
+		}
+		
+		private void closeNow() {
+			closed = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {}
+		}
+		
+		public InputStream getInputStream() throws IOException {
+			throw new IOException("Input of IP connections is read by " + ListenServerIP.class.getSimpleName());
+		}
 
+		public OutputStream getOutputStream() throws IOException {
+			return output;
+		}
+
+		/**
+		 * Close the connection once all queued replies are written.
+		 */
+		public void close() {
+			closed = true;
+			closeRequested = true;
+			pendingConnections.add(this);
+			selector.wakeup();
+		}
+		
+		@Override
+		public String toString() {
+			return "IP connection from " + channel.socket().getInetAddress();
+		}
+		
+		/**
+		 * Queues written bytes for the selector thread when flushed.
+		 */
+		private class ReplyOutputStream extends ByteArrayOutputStream {
+			
+			@Override
+			public synchronized void flush() {
+				if (size() > 0) {
+					writeQueue.add(ByteBuffer.wrap(toByteArray()));
+					reset();
+					pendingConnections.add(Connection.this);
+					selector.wakeup();
+				}
+			}
+			
+			@Override
+			public void close() {
+				flush();
+			}
+		}
+	}
 }
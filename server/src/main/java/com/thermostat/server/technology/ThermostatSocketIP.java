@@ -1,8 +1,10 @@
 package com.thermostat.server.technology;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 
 import com.thermostat.protocol.ThermostatSocket;
@@ -14,14 +16,27 @@ public class ThermostatSocketIP implements ThermostatSocket {
 	private InputStream inputStream = null;
 	
 	private OutputStream outputStream = null;
+	
+	/** Bytes already read from the connection, returned before the rest of the input stream */
+	private byte[] prefix;
 
 	public ThermostatSocketIP(Socket connection) throws IOException {
+		this(connection, null);
+	}
+
+	/**
+	 * @param connection a connected socket in blocking mode
+	 * @param prefix bytes already read from the connection or null
+	 */
+	public ThermostatSocketIP(Socket connection, byte[] prefix) throws IOException {
 		this.socket = connection;
+		this.prefix = prefix;
 	}
 
 	public InputStream getInputStream() throws IOException {
 		if (inputStream == null) {
-			inputStream = socket.getInputStream();
+			inputStream = prefix == null ? socket.getInputStream() : 
+				new SequenceInputStream(new ByteArrayInputStream(prefix), socket.getInputStream());
 		}
 		return inputStream;
 	}
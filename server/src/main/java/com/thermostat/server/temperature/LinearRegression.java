@@ -0,0 +1,96 @@
+package com.thermostat.server.temperature;
+
+/**
+ * Streaming simple linear regression of y on x supporting both addition and removal of samples.
+ *
+ * Means and centred second moments are updated in double precision using Welford's method,
+ * so the result does not suffer from catastrophic cancellation when x values are large
+ * compared to their spread (e.g., Unix timestamps of samples taken a few minutes apart).
+ */
+public class LinearRegression {
+
+	private long n = 0;
+
+	private double meanX = 0;
+
+	private double meanY = 0;
+
+	/** Sum of squared deviations of x from its mean */
+	private double m2X = 0;
+
+	/** Sum of products of x and y deviations from their means */
+	private double coMomentXY = 0;
+
+	/**
+	 * Add a sample to the regression.
+	 */
+	public void add(double x, double y) {
+		++n;
+		double dx = x - meanX;
+		meanX += dx / n;
+		meanY += (y - meanY) / n;
+		m2X += dx * (x - meanX);
+		coMomentXY += dx * (y - meanY);
+	}
+
+	/**
+	 * Remove a previously added sample from the regression.
+	 */
+	public void remove(double x, double y) {
+		if (n == 0) {
+			throw new IllegalStateException("No samples to remove");
+		}
+		if (n == 1) {
+			reset();
+			return;
+		}
+		double dx = x - meanX;
+		--n;
+		meanX -= dx / n;
+		meanY -= (y - meanY) / n;
+		m2X -= dx * (x - meanX);
+		coMomentXY -= dx * (y - meanY);
+		if (m2X < 0) {
+			// Rounding errors must not turn the variance negative
+			m2X = 0;
+		}
+	}
+
+	public void reset() {
+		n = 0;
+		meanX = 0;
+		meanY = 0;
+		m2X = 0;
+		coMomentXY = 0;
+	}
+
+	public long getCount() {
+		return n;
+	}
+
+	public double getMeanX() {
+		return meanX;
+	}
+
+	public double getMeanY() {
+		return meanY;
+	}
+
+	/**
+	 * Get the slope (beta coefficient) of the fitted line.
+	 *
+	 * @return the change of y per unit of x or NaN if x values do not have any spread
+	 */
+	public double getSlope() {
+		return m2X > 0 ? coMomentXY / m2X : Double.NaN;
+	}
+
+	/**
+	 * Get the intercept (alpha coefficient) of the fitted line.
+	 *
+	 * @return the value of y at x = 0 or NaN if x values do not have any spread
+	 */
+	public double getIntercept() {
+		return meanY - getSlope() * meanX;
+	}
+}
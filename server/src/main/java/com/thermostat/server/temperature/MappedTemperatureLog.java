@@ -0,0 +1,155 @@
+package com.thermostat.server.temperature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Persists temperature samples of a zone in a memory-mapped file of fixed-width records.
+ *
+ * The file is used as a circular buffer: a small header is followed by a fixed number of record slots
+ * which are overwritten in a round-robin manner. Each record contains the timestamp, ambient temperature,
+ * target temperature and actuator status of one sample plus a check value to detect records torn by a power cut.
+ * The write position is not stored, it is recovered at startup by looking for the most recent record.
+ */
+public class MappedTemperatureLog {
+
+	private static Logger logger = Logger.getLogger(MappedTemperatureLog.class.getSimpleName());
+
+	/** "THL1" */
+	private static final int MAGIC = 0x54484C31;
+
+	/** magic, record size, capacity (all int) */
+	private static final int HEADER_SIZE = 12;
+
+	/** timestamp (long), ambient, target, actuator status (float), check value (int) */
+	private static final int RECORD_SIZE = 24;
+
+	private File file;
+
+	private RandomAccessFile raf;
+
+	private MappedByteBuffer buffer;
+
+	private int capacity;
+
+	/** Slot to write the next record to */
+	private int next = 0;
+
+	/**
+	 * Opens (or creates) a log file with the given number of record slots.
+	 * An existing file with a different layout is re-initialized.
+	 *
+	 * @param file the file to store records in
+	 * @param capacity the number of records to keep
+	 */
+	public MappedTemperatureLog(File file, int capacity) throws IOException {
+		this.file = file;
+		this.capacity = capacity;
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+		raf = new RandomAccessFile(file, "rw");
+		boolean valid = raf.length() == size;
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		if (valid && buffer.getInt(0) == MAGIC && buffer.getInt(4) == RECORD_SIZE && buffer.getInt(8) == capacity) {
+			next = findNextSlot();
+		} else {
+			logger.info("Initializing temperature log " + file);
+			for (int i = 0; i < size; ++i) {
+				buffer.put(i, (byte)0);
+			}
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, RECORD_SIZE);
+			buffer.putInt(8, capacity);
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Append a record, overwriting the oldest one if all slots are used.
+	 * The record is flushed to the storage device before returning.
+	 */
+	public synchronized void append(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus) {
+		int offset = offset(next);
+		buffer.putLong(offset, timestamp);
+		buffer.putFloat(offset + 8, ambientTemperature);
+		buffer.putFloat(offset + 12, targetTemperature);
+		buffer.putFloat(offset + 16, actuatorStatus);
+		buffer.putInt(offset + 20, check(timestamp, ambientTemperature, targetTemperature, actuatorStatus));
+		buffer.force();
+		next = (next + 1) % capacity;
+	}
+
+	/**
+	 * Add stored records to the given history in chronological order.
+	 *
+	 * @param history the history to add records to
+	 * @param since only records having a more recent timestamp are replayed
+	 * @return the number of replayed records
+	 */
+	public synchronized int replay(TemperatureHistory history, long since) {
+		int n = 0;
+		long lastTimestamp = Long.MIN_VALUE;
+		for (int k = 0; k < capacity; ++k) {
+			int offset = offset((next + k) % capacity);
+			long timestamp = buffer.getLong(offset);
+			if (!isValid(offset) || timestamp <= since || timestamp < lastTimestamp) {
+				continue;
+			}
+			history.add(timestamp, buffer.getFloat(offset + 8), buffer.getFloat(offset + 12), buffer.getFloat(offset + 16));
+			lastTimestamp = timestamp;
+			++n;
+		}
+		return n;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void close() throws IOException {
+		buffer.force();
+		raf.close();
+	}
+
+	/**
+	 * Find the slot following the most recent valid record.
+	 */
+	private int findNextSlot() {
+		long maxTimestamp = Long.MIN_VALUE;
+		int slot = 0;
+		for (int i = 0; i < capacity; ++i) {
+			int offset = offset(i);
+			long timestamp = buffer.getLong(offset);
+			if (isValid(offset) && timestamp > maxTimestamp) {
+				maxTimestamp = timestamp;
+				slot = (i + 1) % capacity;
+			}
+		}
+		return slot;
+	}
+
+	private boolean isValid(int offset) {
+		long timestamp = buffer.getLong(offset);
+		return timestamp != 0 && buffer.getInt(offset + 20) == check(timestamp,
+				buffer.getFloat(offset + 8), buffer.getFloat(offset + 12), buffer.getFloat(offset + 16));
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	private static int check(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus) {
+		int h = (int)(timestamp ^ (timestamp >>> 32));
+		h = 31 * h + Float.floatToIntBits(ambientTemperature);
+		h = 31 * h + Float.floatToIntBits(targetTemperature);
+		h = 31 * h + Float.floatToIntBits(actuatorStatus);
+		return h ^ MAGIC;
+	}
+}
@@ -1,78 +1,126 @@
 package com.thermostat.server.temperature;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
 import com.thermostat.protocol.data.ResidentState;
 import com.thermostat.server.profile.ResidentProfile;
+import com.thermostat.server.profile.ResidentProfileListener;
+import com.thermostat.server.profile.ResidentProfileStore;
 import com.thermostat.server.profile.ResidentProfileStoreFactory;
 import com.thermostat.server.zone.ZoneManager;
+import com.thermostat.server.zone.ZoneRegistry;
+import com.thermostat.server.zone.ZoneRegistryFactory;
+import com.thermostat.server.zone.ZoneScheduler;
 
 /**
  * Derives target temperature for a given zone based on current state and temperature preferences of residents.
+ * 
+ * Preferences are aggregated per zone and the aggregates are only updated if the state or the preferences
+ * of a resident change (including the expiry of the state when the resident is considered as having left).
+ * Such changes also trigger the evaluation of the affected zones.
  */
 public class TargetTemperatureCalculator {
 
 	private static Logger logger = Logger.getLogger(TargetTemperatureCalculator.class.getSimpleName());
 
+	/** Zone name -> aggregated preferences of residents */
+	private static Map<String, ZoneTargetIndex> indexes = new HashMap<String, ZoneTargetIndex>();
+
+	private static boolean listening = false;
+
 	public static final float getTargetTemperature(ZoneManager zone, boolean considerBoost) {
-		String zoneName = zone.getZoneName();
-		Collection<ResidentProfile> profiles = ResidentProfileStoreFactory.getResidentProfileStore().getProfiles().values();
-		
-		List<Float> homePreferences = new ArrayList<Float>(profiles.size());
-		List<Float> awayPreferences = new ArrayList<Float>(profiles.size());
-		
-		logger.fine("Calculating target temperature for zone " + zoneName);
-		
-		for (ResidentProfile profile : profiles) {
-			Map<ResidentState, Float> preferences = profile.getTemperaturePreferences(zoneName);
-			if (preferences == null) {
-				// No preferences defined for this zone by this resident
-				continue;
+		float homeMax;
+		synchronized (TargetTemperatureCalculator.class) {
+			ZoneTargetIndex index = getIndex(zone.getZoneName());
+			if (!index.hasHomePreferences()) {
+				/* If nobody is at home then use the average of away temperatures */
+				return index.getAverageAwayPreference();
 			}
-			ResidentState state = profile.getCurrentState();
-			// Register current preferred temperature
-			if (!state.equals(ResidentState.AWAY)) {
-				Float homePreference = preferences.get(state);
-				if (homePreference != null) {
-					homePreferences.add(homePreference);
-				}				
+			homeMax = index.getMaxHomePreference();
+		}
+		/* Otherwise, use the max of home temperature preferences among residents being at home or the boost temperature */
+		Float boostTemperature = zone.getBoostTemperature();
+		return considerBoost && boostTemperature != null ? boostTemperature : homeMax;
+	}
+
+	/**
+	 * Get the index of a zone, building it at first use.
+	 * Must be called while holding the class lock.
+	 */
+	private static ZoneTargetIndex getIndex(String zoneName) {
+		ResidentProfileStore store = ResidentProfileStoreFactory.getResidentProfileStore();
+		if (!listening) {
+			store.addProfileListener(new ResidentProfileListener() {
+				@Override
+				public void profileChanged(ResidentProfile profile) {
+					TargetTemperatureCalculator.profileChanged(profile, false);
+				}
+
+				@Override
+				public void profileRemoved(ResidentProfile profile) {
+					TargetTemperatureCalculator.profileChanged(profile, true);
+				}
+			});
+			listening = true;
+		}
+		ZoneTargetIndex index = indexes.get(zoneName);
+		if (index == null) {
+			logger.fine("Building target temperature index for zone " + zoneName);
+			index = new ZoneTargetIndex();
+			indexes.put(zoneName, index);
+			for (ResidentProfile profile : store.getProfiles().values()) {
+				update(index, zoneName, profile);
 			}
-			Float awayPreference = preferences.get(state);
-			if (awayPreference != null) {
-				awayPreferences.add(awayPreference);
+		}
+		return index;
+	}
+
+	/**
+	 * Update the aggregates of all zones and request the evaluation of zones the resident has preferences for.
+	 * 
+	 * @param removed true if the profile was deleted, its contributions are removed from all zones
+	 */
+	private static void profileChanged(ResidentProfile profile, boolean removed) {
+		List<String> affectedZones = new ArrayList<String>();
+		synchronized (TargetTemperatureCalculator.class) {
+			for (Map.Entry<String, ZoneTargetIndex> entry : indexes.entrySet()) {
+				if (removed) {
+					entry.getValue().remove(profile);
+				} else {
+					update(entry.getValue(), entry.getKey(), profile);
+				}
+				if (profile.getTemperaturePreferences(entry.getKey()) != null) {
+					affectedZones.add(entry.getKey());
+				}
 			}
 		}
-		
-		if (homePreferences.isEmpty()) {
-			/* If nobody is at home then use the average of away temperatures */
-			return average(awayPreferences);
-		} else {
-			/* Otherwise, use the max of home temperature preferences among residents being at home or the boost temperature */
-			Float boostTemperature = zone.getBoostTemperature();
-			return considerBoost && boostTemperature != null ? boostTemperature : max(homePreferences);
+		ZoneRegistry zoneRegistry = ZoneRegistryFactory.getZoneRegistry();
+		for (String zoneName : affectedZones) {
+			ZoneScheduler.getInstance().requestUpdate(zoneRegistry.getZoneConfiguration(zoneName));
 		}
 	}
-	
-	private static final float average(List<Float> temperaturePreferences) {
-		float sum = 0.0f;
-		for (float t : temperaturePreferences) {
-			sum += t;
+
+	/**
+	 * Update the contribution of a resident to the aggregated preferences of a zone.
+	 */
+	private static void update(ZoneTargetIndex index, String zoneName, ResidentProfile profile) {
+		Map<ResidentState, Float> preferences = profile.getTemperaturePreferences(zoneName);
+		if (preferences == null) {
+			// No preferences defined for this zone by this resident
+			index.remove(profile);
+			return;
 		}
-		return sum / temperaturePreferences.size();		
-	}
-	
-	private static final float max(List<Float> temperaturePreferences) {
-		float max = 0.0f;
-		for (float t : temperaturePreferences) {
-			if (t > max) {
-				max = t;
-			}
+		ResidentState state = profile.getCurrentState();
+		Float preference = preferences.get(state);
+		if (state.equals(ResidentState.AWAY)) {
+			index.update(profile, null, preference);
+		} else {
+			index.update(profile, preference, null);
 		}
-		return max;		
 	}
 
 }
@@ -0,0 +1,122 @@
+package com.thermostat.server.temperature;
+
+/**
+ * Fixed-capacity circular buffer of ambient temperature aggregates (minimum, maximum, sum and count)
+ * over consecutive time buckets of the same length.
+ * Buckets leaving the tier are rolled up into the next, coarser tier (if any).
+ */
+class TemperatureAggregateTier {
+
+	/** Length of one bucket in seconds */
+	private long bucketSec;
+
+	/** Start timestamps (Unix seconds) of the stored buckets */
+	private long[] starts;
+
+	private float[] mins;
+
+	private float[] maxs;
+
+	private float[] sums;
+
+	private int[] counts;
+
+	/** Index of the oldest stored bucket */
+	private int head = 0;
+
+	/** Number of stored buckets */
+	private int size = 0;
+
+	/** The tier receiving evicted buckets or null if evicted buckets are discarded */
+	private TemperatureAggregateTier next;
+
+	/**
+	 * @param bucketSec the length of one bucket in seconds
+	 * @param retentionSec the time period covered by this tier
+	 * @param next the tier receiving evicted buckets or null if evicted buckets are discarded
+	 */
+	TemperatureAggregateTier(long bucketSec, long retentionSec, TemperatureAggregateTier next) {
+		this.bucketSec = bucketSec;
+		this.next = next;
+		int capacity = (int)Math.max(1, retentionSec / bucketSec);
+		starts = new long[capacity];
+		mins = new float[capacity];
+		maxs = new float[capacity];
+		sums = new float[capacity];
+		counts = new int[capacity];
+	}
+
+	/**
+	 * Add a group of samples taken at the given time.
+	 * Samples older than the most recent bucket are merged into the most recent bucket.
+	 */
+	void add(long timestamp, float min, float max, float sum, int count) {
+		long start = timestamp - timestamp % bucketSec;
+		if (size > 0) {
+			int last = index(size - 1);
+			if (start <= starts[last]) {
+				mins[last] = Math.min(mins[last], min);
+				maxs[last] = Math.max(maxs[last], max);
+				sums[last] += sum;
+				counts[last] += count;
+				return;
+			}
+		}
+
+		// Roll up buckets outside the retention period and make room for the new bucket
+		while (size > 0 && starts[head] <= start - starts.length * bucketSec) {
+			evictOldest();
+		}
+		if (size == starts.length) {
+			evictOldest();
+		}
+
+		int i = index(size);
+		starts[i] = start;
+		mins[i] = min;
+		maxs[i] = max;
+		sums[i] = sum;
+		counts[i] = count;
+		++size;
+	}
+
+	/**
+	 * Merge aggregates of buckets starting within the given period into the given statistics.
+	 *
+	 * @param from start of the period (Unix seconds, inclusive)
+	 * @param to end of the period (Unix seconds, exclusive)
+	 */
+	void aggregate(long from, long to, TemperatureStatistics statistics) {
+		// Binary search for the first bucket starting at or after from
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[index(mid)] < from) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int k = lo; k < size; ++k) {
+			int i = index(k);
+			if (starts[i] >= to) {
+				break;
+			}
+			statistics.add(mins[i], maxs[i], sums[i], counts[i]);
+		}
+	}
+
+	private int index(int k) {
+		int i = head + k;
+		return i < starts.length ? i : i - starts.length;
+	}
+
+	private void evictOldest() {
+		if (next != null) {
+			next.add(starts[head], mins[head], maxs[head], sums[head], counts[head]);
+		}
+		head = index(1);
+		--size;
+	}
+}
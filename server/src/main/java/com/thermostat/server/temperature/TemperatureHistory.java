@@ -1,170 +1,460 @@
 package com.thermostat.server.temperature;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.thermostat.server.temperature.archive.TemperatureArchive;
+
 /**
  * Holds temperature history for a given zone.
+ *
+ * Samples are stored in a fixed-capacity circular buffer of parallel primitive arrays,
+ * so that storing and querying samples does not allocate any objects.
+ * The buffer is sized from the history length assuming a minimum sample period.
+ * If samples arrive more frequently, the oldest samples are overwritten before they leave the history window.
+ *
+ * Streaming regression statistics are maintained for a set of registered windows (see {@link #registerWindow(long)}),
+ * so that trend and average queries for these windows are answered in constant time.
+ *
+ * Samples leaving the history window are rolled up into coarser aggregate tiers
+ * (1 minute buckets for a week, then 15 minute buckets for a year) which can be queried by
+ * {@link #getStatistics(long, long)}. Memory use is bounded by the fixed capacity of each tier.
+ *
+ * Optionally, raw samples are also persisted in a memory-mapped file (see {@link #persistTo(File)}),
+ * so that the history survives restarts of the server, and samples leaving the history window
+ * are stored in a compressed archive for long-term analysis (see {@link #archiveTo(TemperatureArchive)}).
  */
 public class TemperatureHistory {
 
 	private static final long DEFAULT_MAX_HISTORY_SEC = 60*60*24;
 
+	/** Minimum expected time between consecutive samples, used to size the circular buffer */
+	private static final long DEFAULT_MIN_SAMPLE_PERIOD_SEC = 10;
+
+	/** Statistics windows (in minutes) registered by default: 10 minutes, 1 hour and 24 hours */
+	private static final long[] DEFAULT_STATISTICS_WINDOWS_MIN = {10, 60, 60*24};
+
+	/** Bucket length of the first aggregate tier */
+	private static final long MINUTE_TIER_BUCKET_SEC = 60;
+
+	/** Time period covered by the first aggregate tier */
+	private static final long MINUTE_TIER_RETENTION_SEC = 60*60*24*7;
+
+	/** Bucket length of the second aggregate tier */
+	private static final long QUARTER_HOUR_TIER_BUCKET_SEC = 60*15;
+
+	/** Time period covered by the second aggregate tier */
+	private static final long QUARTER_HOUR_TIER_RETENTION_SEC = 60*60*24*365;
+
 	private static Logger logger = Logger.getLogger(TemperatureHistory.class.getSimpleName());
 
 	private long maxHistorySec;
-	
-	private TemperatureRecord lastRecord = null;
-	
-	public TemperatureHistory(long maxHistorySec) {
+
+	/** Unix timestamps (in seconds) of the stored samples */
+	private long[] timestamps;
+
+	/** Ambient temperatures of the stored samples */
+	private float[] ambientTemperatures;
+
+	/** Target temperatures of the stored samples */
+	private float[] targetTemperatures;
+
+	/** Actuator status (see {@link com.thermostat.server.actuation.Actuator#getStatus()}) of the stored samples */
+	private float[] actuatorStatuses;
+
+	/** Index of the oldest stored sample */
+	private int head = 0;
+
+	/** Number of stored samples */
+	private int size = 0;
+
+	/** Sequence number of the oldest stored sample (incremented on each eviction) */
+	private long firstSequence = 0;
+
+	/** Reusable regression for queries on windows which are not registered */
+	private LinearRegression scanRegression = new LinearRegression();
+
+	/** Registered statistics windows maintained incrementally */
+	private WindowStatistics[] windows = new WindowStatistics[0];
+
+	/** Aggregate tiers from the finest to the coarsest one, evicted samples go to the first tier */
+	private TemperatureAggregateTier[] tiers;
+
+	/** Persistent copy of the samples or null if the history is kept in memory only */
+	private MappedTemperatureLog log = null;
+
+	/** Archive of samples evicted from the history or null if evicted samples are not archived */
+	private TemperatureArchive archive = null;
+
+	/** Listeners notified of live samples, an array replaced on registration so notifying does not allocate */
+	private volatile TemperatureHistoryListener[] listeners = new TemperatureHistoryListener[0];
+
+	public TemperatureHistory(long maxHistorySec, long minSamplePeriodSec) {
+		if (maxHistorySec <= 0 || minSamplePeriodSec <= 0) {
+			throw new IllegalArgumentException("History length and sample period must be positive");
+		}
 		this.maxHistorySec = maxHistorySec;
+		int capacity = (int)Math.min(Integer.MAX_VALUE - 1, maxHistorySec / minSamplePeriodSec) + 1;
+		timestamps = new long[capacity];
+		ambientTemperatures = new float[capacity];
+		targetTemperatures = new float[capacity];
+		actuatorStatuses = new float[capacity];
+		TemperatureAggregateTier quarterHourTier = new TemperatureAggregateTier(QUARTER_HOUR_TIER_BUCKET_SEC, QUARTER_HOUR_TIER_RETENTION_SEC, null);
+		TemperatureAggregateTier minuteTier = new TemperatureAggregateTier(MINUTE_TIER_BUCKET_SEC, MINUTE_TIER_RETENTION_SEC, quarterHourTier);
+		tiers = new TemperatureAggregateTier[] {minuteTier, quarterHourTier};
+		logger.fine("Temperature history capacity: " + capacity + " samples");
+		for (long periodMin : DEFAULT_STATISTICS_WINDOWS_MIN) {
+			if (periodMin*60 <= maxHistorySec) {
+				registerWindow(periodMin);
+			}
+		}
+	}
+
+	public TemperatureHistory(long maxHistorySec) {
+		this(maxHistorySec, DEFAULT_MIN_SAMPLE_PERIOD_SEC);
 	}
-	
+
 	public TemperatureHistory() {
 		this(DEFAULT_MAX_HISTORY_SEC);
 	}
-	
-	/** minute start timestamp -> list of temperature readings from this minute */
-	private SortedMap<Long, List<TemperatureRecord>> history = new TreeMap<Long, List<TemperatureRecord>>();
-	
+
+	/**
+	 * Register a statistics window whose trend and average are maintained incrementally.
+	 * Registering an already registered window has no effect.
+	 *
+	 * @param periodMin the number of minutes to look back
+	 */
+	public synchronized void registerWindow(long periodMin) {
+		if (getWindow(periodMin) != null) {
+			return;
+		}
+		WindowStatistics window = new WindowStatistics(periodMin);
+		// Initialize running sums from already stored samples
+		window.rebuild(System.currentTimeMillis()/1000);
+
+		WindowStatistics[] w = new WindowStatistics[windows.length + 1];
+		System.arraycopy(windows, 0, w, 0, windows.length);
+		w[windows.length] = window;
+		windows = w;
+	}
+
+	/**
+	 * Persist samples in the given file from now on.
+	 * Samples already stored in the file and still within the history window are loaded first.
+	 *
+	 * @param file the memory-mapped file to store samples in
+	 */
+	public synchronized void persistTo(File file) throws IOException {
+		if (log != null) {
+			throw new IllegalStateException("Temperature history is already persisted to " + log.getFile());
+		}
+		MappedTemperatureLog l = new MappedTemperatureLog(file, timestamps.length);
+		int n = l.replay(this, System.currentTimeMillis()/1000 - maxHistorySec);
+		logger.info("Loaded " + n + " temperature records from " + file);
+		log = l;
+	}
+
+	/**
+	 * Store samples leaving the history window in the given archive from now on.
+	 *
+	 * @param archive the archive to store evicted samples in
+	 */
+	public synchronized void archiveTo(TemperatureArchive archive) {
+		this.archive = archive;
+	}
+
+	/**
+	 * Notify the given listener of samples added from now on.
+	 * Samples loaded from the persistent log are not notified.
+	 */
+	public synchronized void addListener(TemperatureHistoryListener listener) {
+		TemperatureHistoryListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+		newListeners[listeners.length] = listener;
+		listeners = newListeners;
+	}
+
 	/**
 	 * Store recorded temperature values.
-	 * 
+	 *
 	 * @param ambientTemperature current ambient temperature for the given zone
 	 * @param targetTemperature current target temperature for the given zone
+	 * @param actuatorStatus the actuator status while reaching the current ambient temperature
+	 */
+	public synchronized void add(float ambientTemperature, float targetTemperature, float actuatorStatus) {
+		long timestamp = System.currentTimeMillis()/1000;
+		add(timestamp, ambientTemperature, targetTemperature, actuatorStatus);
+		if (log != null) {
+			log.append(timestamp, ambientTemperature, targetTemperature, actuatorStatus);
+		}
+		for (TemperatureHistoryListener listener : listeners) {
+			listener.sampleAdded(timestamp, ambientTemperature, targetTemperature, actuatorStatus);
+		}
+	}
+
+	/**
+	 * Store temperature values recorded at the given time.
+	 * Timestamps are expected to be added in chronological order.
 	 */
-	public synchronized void add(float ambientTemperature, float targetTemperature) {
-		long timestampSecond = new Date().getTime()/1000;
-		long timestampMinute = timestampSecond-timestampSecond%60;
-		List<TemperatureRecord> l = history.get(timestampMinute);
-		if (l == null) {
-			l = new ArrayList<TemperatureRecord>();
-			history.put(timestampMinute, l);
-		}
-		lastRecord = new TemperatureRecord(timestampSecond, ambientTemperature, targetTemperature);
-		l.add(lastRecord);
-		
+	synchronized void add(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus) {
 		// Remove old entries outside the history window
-		while (timestampMinute - history.firstKey() > maxHistorySec) {
-			history.remove(history.firstKey());
+		while (size > 0 && timestamp - timestamps[head] > maxHistorySec) {
+			evictOldest();
+		}
+		// Overwrite the oldest entry if the buffer is full
+		if (size == timestamps.length) {
+			evictOldest();
+		}
+
+		int i = index(size);
+		timestamps[i] = timestamp;
+		ambientTemperatures[i] = ambientTemperature;
+		targetTemperatures[i] = targetTemperature;
+		actuatorStatuses[i] = actuatorStatus;
+		++size;
+
+		for (WindowStatistics window : windows) {
+			window.add(i);
+			window.expire(timestamp);
 		}
 	}
-	
+
 	/**
 	 * Get temperature trends for the specified time period.
 	 * Temperature difference is calculated by simple linear regression of samples
 	 * between now and periodMin minutes ago.
-	 * 
+	 *
 	 * @param periodMin the number of minutes to look back
 	 * @return average temperature changes in °C / minute
 	 */
 	public synchronized float getTrend(long periodMin) {
-		if (lastRecord == null) {
+		if (size == 0) {
 			throw new IllegalStateException("No historical records available yet");
 		}
 
-		return getTrend(getRecentRecords(periodMin));
+		WindowStatistics window = getWindow(periodMin);
+		if (window != null) {
+			window.expire(System.currentTimeMillis()/1000);
+			return window.getTrend();
+		}
+
+		long since = System.currentTimeMillis()/1000 - periodMin*60;
+		scanRegression.reset();
+		for (int k = size - 1; k >= 0; --k) {
+			int i = index(k);
+			if (timestamps[i] <= since) {
+				break;
+			}
+			scanRegression.add(timestamps[i], ambientTemperatures[i]);
+		}
+		return getTrend(scanRegression);
 	}
 
 	/**
 	 * Compute average ambient temperature for the specified time period
-	 * 
+	 *
 	 * @param periodMin the number of minutes to look back
 	 * @return average temperature °C for the given period
 	 */
 	public synchronized float getAverage(long periodMin) {
-		if (lastRecord == null) {
+		if (size == 0) {
 			throw new IllegalStateException("No historical records available yet");
 		}
 
-		return getAverage(getRecentRecords(periodMin));
+		WindowStatistics window = getWindow(periodMin);
+		if (window != null) {
+			window.expire(System.currentTimeMillis()/1000);
+			return window.getAverage();
+		}
+
+		long since = System.currentTimeMillis()/1000 - periodMin*60;
+		int n = 0;
+		float sum = 0;
+		for (int k = size - 1; k >= 0; --k) {
+			int i = index(k);
+			if (timestamps[i] <= since) {
+				break;
+			}
+			sum += ambientTemperatures[i];
+			++n;
+		}
+		if (n < 1) {
+			throw new IllegalArgumentException("At least 1 record is required to compute average");
+		}
+		return sum / n;
+	}
+
+	/**
+	 * Compute ambient temperature statistics for the given period using raw samples and aggregate tiers.
+	 * Aggregated buckets are included if they start within the period.
+	 *
+	 * @param fromSec start of the period (Unix seconds, inclusive)
+	 * @param toSec end of the period (Unix seconds, exclusive)
+	 * @return statistics of the samples within the given period
+	 */
+	public synchronized TemperatureStatistics getStatistics(long fromSec, long toSec) {
+		TemperatureStatistics statistics = new TemperatureStatistics();
+		for (TemperatureAggregateTier tier : tiers) {
+			tier.aggregate(fromSec, toSec, statistics);
+		}
+
+		// Binary search for the first raw sample at or after fromSec
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (timestamps[index(mid)] < fromSec) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int k = lo; k < size; ++k) {
+			int i = index(k);
+			if (timestamps[i] >= toSec) {
+				break;
+			}
+			statistics.add(ambientTemperatures[i], ambientTemperatures[i], ambientTemperatures[i], 1);
+		}
+		return statistics;
 	}
 
-	public Float getCurrentAmbientTemperature() {
-		return lastRecord == null ? null : lastRecord.ambientTemperature;
+	public synchronized Float getCurrentAmbientTemperature() {
+		return size == 0 ? null : ambientTemperatures[index(size - 1)];
 	}
-	
-	public Float getCurrentTargetTemperature() {
-		return lastRecord == null ? null : lastRecord.targetTemperature;
+
+	public synchronized Float getCurrentTargetTemperature() {
+		return size == 0 ? null : targetTemperatures[index(size - 1)];
 	}
-	
-	private List<TemperatureRecord> getRecords(long minute) {
-		List<TemperatureRecord> readings = history.get(minute);
-		return readings == null ? new ArrayList<TemperatureRecord>() : Collections.unmodifiableList(readings);
+
+	public synchronized Float getCurrentActuatorStatus() {
+		return size == 0 ? null : actuatorStatuses[index(size - 1)];
 	}
-	
+
 	/**
-	 * Get temperature records from the past periodMin minutes.
-	 * 
-	 * @param periodMin the number of minutes to look back
-	 * @return a list of temperature records
+	 * Map the k-th oldest stored sample to its position in the circular buffer
 	 */
-	private List<TemperatureRecord> getRecentRecords(long periodMin) {
-		List<TemperatureRecord> records = new ArrayList<TemperatureRecord>();
-		long currentTimestamp = new Date().getTime()/1000;
-		long currentMinute = currentTimestamp-currentTimestamp%60;
-		for (long min = currentMinute-periodMin*60; min<=currentMinute; min+=60) {
-			List<TemperatureRecord> l = getRecords(min);
-			if (l != null) {
-				for (TemperatureRecord r : l) {
-					if (r.timestamp > currentTimestamp-periodMin*60) {
-						records.add(r);
-					}
-				}
-			}
+	private int index(int k) {
+		int i = head + k;
+		return i < timestamps.length ? i : i - timestamps.length;
+	}
+
+	private static float getTrend(LinearRegression regression) {
+		if (regression.getCount() < 2) {
+			throw new IllegalArgumentException("At least 2 records are required to compute beta coefficient of simple linear regression");
 		}
-		return records;
+		return (float)(regression.getSlope()*60);
 	}
-	
-	private float getAverage(Collection<TemperatureRecord> records) {
-		if (records.size() < 1) {
-			throw new IllegalArgumentException("At least 1 record is required to compute average");
+
+	private WindowStatistics getWindow(long periodMin) {
+		for (WindowStatistics window : windows) {
+			if (window.periodMin == periodMin) {
+				return window;
+			}
 		}
+		return null;
+	}
 
-		int n = records.size();
-		float sum = 0;
-		for (TemperatureRecord r : records) {
-			sum += r.ambientTemperature;
+	private void evictOldest() {
+		// Windows still covering the evicted sample lose it as well
+		for (WindowStatistics window : windows) {
+			if (window.start == firstSequence) {
+				window.remove(head);
+				++window.start;
+			}
 		}
-		return sum / n;
+		float t = ambientTemperatures[head];
+		tiers[0].add(timestamps[head], t, t, t, 1);
+		if (archive != null) {
+			try {
+				archive.append(timestamps[head], t, targetTemperatures[head], actuatorStatuses[head]);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Could not archive temperature sample", e);
+			}
+		}
+		head = index(1);
+		--size;
+		++firstSequence;
 	}
-	
-	private float getTrend(Collection<TemperatureRecord> records) {
-		if (records.size() < 2) {
-			throw new IllegalArgumentException("At least 2 records are required to compute beta coefficient of simple linear regression");
+
+	/**
+	 * Regression statistics of the samples within one statistics window.
+	 */
+	private class WindowStatistics {
+
+		/** Number of incremental removals after which statistics are recomputed from the stored samples */
+		private static final int REBUILD_INTERVAL = 4096;
+
+		long periodMin;
+
+		/** Sequence number of the oldest sample within the window */
+		long start;
+
+		LinearRegression regression = new LinearRegression();
+
+		/** Number of incremental removals since the last rebuild */
+		int removals = 0;
+
+		public WindowStatistics(long periodMin) {
+			this.periodMin = periodMin;
+		}
+
+		void add(int i) {
+			regression.add(timestamps[i], ambientTemperatures[i]);
+		}
+
+		void remove(int i) {
+			regression.remove(timestamps[i], ambientTemperatures[i]);
+			++removals;
+		}
+
+		/**
+		 * Remove samples which are not within the window anymore at the given time.
+		 */
+		void expire(long timestamp) {
+			long since = timestamp - periodMin*60;
+			long end = firstSequence + size;
+			while (start < end) {
+				int i = index((int)(start - firstSequence));
+				if (timestamps[i] > since) {
+					break;
+				}
+				remove(i);
+				++start;
+			}
+			if (removals >= REBUILD_INTERVAL) {
+				// Get rid of rounding errors accumulated by incremental removals
+				rebuild(timestamp);
+			}
 		}
-		
-		int n = records.size();
-		float corrXY = 0;
-		float sumX = 0;
-		float sumY = 0;
-		float sqrSumX = 0;
-		for (TemperatureRecord r : records) {
-			corrXY += r.timestamp*r.ambientTemperature;
-			sumX += r.timestamp;
-			sumY += r.ambientTemperature;
-			sqrSumX += r.timestamp*r.timestamp;
-		}
-		return (corrXY-sumX*sumY/n)/(sqrSumX-sumX*sumX/n)*60; 
-	}
-
-	
-	private class TemperatureRecord {
-		
-		long timestamp;
-		float ambientTemperature;
-		float targetTemperature;
-		
-		public TemperatureRecord(long timestamp, float ambientTemperature, float targetTemperature) {
-			this.timestamp = timestamp;
-			this.ambientTemperature = ambientTemperature;
-			this.targetTemperature = targetTemperature;
+
+		/**
+		 * Recompute statistics from the stored samples within the window at the given time.
+		 */
+		void rebuild(long timestamp) {
+			long since = timestamp - periodMin*60;
+			regression.reset();
+			removals = 0;
+			start = firstSequence + size;
+			while (start > firstSequence && timestamps[index((int)(start - 1 - firstSequence))] > since) {
+				--start;
+			}
+			for (long s = start; s < firstSequence + size; ++s) {
+				add(index((int)(s - firstSequence)));
+			}
+		}
+
+		float getAverage() {
+			if (regression.getCount() < 1) {
+				throw new IllegalArgumentException("At least 1 record is required to compute average");
+			}
+			return (float)regression.getMeanY();
+		}
+
+		float getTrend() {
+			return TemperatureHistory.getTrend(regression);
 		}
 	}
 }
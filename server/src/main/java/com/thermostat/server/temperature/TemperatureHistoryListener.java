@@ -0,0 +1,16 @@
+package com.thermostat.server.temperature;
+
+/**
+ * Receives samples as they are added to a {@link TemperatureHistory}.
+ * Called while the history is locked, so implementations must return quickly.
+ */
+public interface TemperatureHistoryListener {
+
+	/**
+	 * @param timestamp Unix timestamp of the sample in seconds
+	 * @param ambientTemperature ambient temperature of the zone
+	 * @param targetTemperature target temperature of the zone
+	 * @param actuatorStatus the actuator status while reaching the ambient temperature
+	 */
+	void sampleAdded(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus);
+}
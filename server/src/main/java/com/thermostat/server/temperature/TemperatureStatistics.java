@@ -0,0 +1,66 @@
+package com.thermostat.server.temperature;
+
+/**
+ * Summary statistics (minimum, maximum and average) of ambient temperatures over a period of time.
+ */
+public class TemperatureStatistics {
+
+	private float min = Float.POSITIVE_INFINITY;
+
+	private float max = Float.NEGATIVE_INFINITY;
+
+	private double sum = 0;
+
+	private long count = 0;
+
+	/**
+	 * Merge statistics of a group of samples.
+	 *
+	 * @param min the minimum temperature in the group
+	 * @param max the maximum temperature in the group
+	 * @param sum the sum of temperatures in the group
+	 * @param count the number of samples in the group
+	 */
+	void add(float min, float max, double sum, long count) {
+		if (count == 0) {
+			return;
+		}
+		this.min = Math.min(this.min, min);
+		this.max = Math.max(this.max, max);
+		this.sum += sum;
+		this.count += count;
+	}
+
+	/**
+	 * @return the number of samples covered by these statistics
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the minimum temperature in °C or null if there are no samples
+	 */
+	public Float getMin() {
+		return count == 0 ? null : min;
+	}
+
+	/**
+	 * @return the maximum temperature in °C or null if there are no samples
+	 */
+	public Float getMax() {
+		return count == 0 ? null : max;
+	}
+
+	/**
+	 * @return the average temperature in °C or null if there are no samples
+	 */
+	public Float getAverage() {
+		return count == 0 ? null : (float)(sum / count);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", min=" + getMin() + ", max=" + getMax() + ", average=" + getAverage();
+	}
+}
@@ -0,0 +1,217 @@
+package com.thermostat.server.temperature;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.thermostat.server.profile.ResidentProfile;
+
+/**
+ * Aggregates of the temperature preferences of residents for a single zone:
+ * an indexed max-heap of the preferences of residents being at home and
+ * a running sum of the preferences of residents being away.
+ * 
+ * Each resident is assigned a slot when first seen and its contributions are replaced in place,
+ * so updates take O(log n) time and lookups O(1) time, without allocation once all slots are assigned.
+ */
+class ZoneTargetIndex {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	/** Resident profile -> slot */
+	private Map<ResidentProfile, Integer> slots = new HashMap<ResidentProfile, Integer>();
+
+	/** Slot -> resident profile */
+	private ResidentProfile[] residents = new ResidentProfile[INITIAL_CAPACITY];
+
+	/** Slot -> home temperature preference (valid if the slot is in the heap) */
+	private float[] homePreferences = new float[INITIAL_CAPACITY];
+
+	/** Slot -> away temperature preference (valid if hasAwayPreference is set) */
+	private float[] awayPreferences = new float[INITIAL_CAPACITY];
+
+	private boolean[] hasAwayPreference = new boolean[INITIAL_CAPACITY];
+
+	/** Heap of slots ordered by decreasing home temperature preference */
+	private int[] heap = new int[INITIAL_CAPACITY];
+
+	/** Slot -> position in the heap or -1 if the slot has no home temperature preference */
+	private int[] heapPositions = new int[INITIAL_CAPACITY];
+
+	private int heapSize = 0;
+
+	private double awaySum = 0;
+
+	private int awayCount = 0;
+
+	/**
+	 * Replace the contributions of a resident.
+	 * 
+	 * @param profile the resident's profile
+	 * @param homePreference the preferred temperature if the resident is at home or null
+	 * @param awayPreference the preferred temperature if the resident is away or null
+	 */
+	void update(ResidentProfile profile, Float homePreference, Float awayPreference) {
+		int slot = getSlot(profile);
+
+		// Away preferences
+		if (hasAwayPreference[slot]) {
+			awaySum -= awayPreferences[slot];
+			--awayCount;
+		}
+		hasAwayPreference[slot] = awayPreference != null;
+		if (awayPreference != null) {
+			awayPreferences[slot] = awayPreference;
+			awaySum += awayPreference;
+			++awayCount;
+		}
+		if (awayCount == 0) {
+			// Do not let rounding errors accumulate
+			awaySum = 0;
+		}
+
+		// Home preferences
+		int position = heapPositions[slot];
+		if (homePreference == null) {
+			if (position >= 0) {
+				removeFromHeap(position);
+			}
+		} else if (position < 0) {
+			homePreferences[slot] = homePreference;
+			heap[heapSize] = slot;
+			heapPositions[slot] = heapSize;
+			siftUp(heapSize++);
+		} else {
+			float previous = homePreferences[slot];
+			homePreferences[slot] = homePreference;
+			if (homePreference > previous) {
+				siftUp(position);
+			} else {
+				siftDown(position);
+			}
+		}
+	}
+
+	/**
+	 * Remove all contributions of a resident and release its slot.
+	 * The last slot is moved to the released one, so slots stay contiguous.
+	 */
+	void remove(ResidentProfile profile) {
+		if (!slots.containsKey(profile)) {
+			return;
+		}
+		update(profile, null, null);
+		int slot = slots.remove(profile);
+		int last = slots.size();
+		if (slot != last) {
+			ResidentProfile moved = residents[last];
+			residents[slot] = moved;
+			slots.put(moved, slot);
+			homePreferences[slot] = homePreferences[last];
+			awayPreferences[slot] = awayPreferences[last];
+			hasAwayPreference[slot] = hasAwayPreference[last];
+			int position = heapPositions[last];
+			heapPositions[slot] = position;
+			if (position >= 0) {
+				heap[position] = slot;
+			}
+		}
+		residents[last] = null;
+	}
+
+	boolean hasHomePreferences() {
+		return heapSize > 0;
+	}
+
+	/**
+	 * @return the maximum of home temperature preferences (undefined if there are none)
+	 */
+	float getMaxHomePreference() {
+		return homePreferences[heap[0]];
+	}
+
+	/**
+	 * @return the average of away temperature preferences or NaN if there are none
+	 */
+	float getAverageAwayPreference() {
+		return (float)(awaySum / awayCount);
+	}
+
+	private int getSlot(ResidentProfile profile) {
+		Integer slot = slots.get(profile);
+		if (slot != null) {
+			return slot;
+		}
+		int newSlot = slots.size();
+		if (newSlot == heap.length) {
+			int capacity = 2 * heap.length;
+			homePreferences = Arrays.copyOf(homePreferences, capacity);
+			awayPreferences = Arrays.copyOf(awayPreferences, capacity);
+			hasAwayPreference = Arrays.copyOf(hasAwayPreference, capacity);
+			heap = Arrays.copyOf(heap, capacity);
+			heapPositions = Arrays.copyOf(heapPositions, capacity);
+			residents = Arrays.copyOf(residents, capacity);
+		}
+		heapPositions[newSlot] = -1;
+		hasAwayPreference[newSlot] = false;
+		residents[newSlot] = profile;
+		slots.put(profile, newSlot);
+		return newSlot;
+	}
+
+	private void removeFromHeap(int position) {
+		int slot = heap[position];
+		heapPositions[slot] = -1;
+		--heapSize;
+		if (position == heapSize) {
+			return;
+		}
+		int last = heap[heapSize];
+		heap[position] = last;
+		heapPositions[last] = position;
+		if (position > 0 && homePreferences[last] > homePreferences[heap[(position - 1) / 2]]) {
+			siftUp(position);
+		} else {
+			siftDown(position);
+		}
+	}
+
+	private void siftUp(int position) {
+		int slot = heap[position];
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (homePreferences[heap[parent]] >= homePreferences[slot]) {
+				break;
+			}
+			move(parent, position);
+			position = parent;
+		}
+		heap[position] = slot;
+		heapPositions[slot] = position;
+	}
+
+	private void siftDown(int position) {
+		int slot = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && homePreferences[heap[child + 1]] > homePreferences[heap[child]]) {
+				++child;
+			}
+			if (homePreferences[heap[child]] <= homePreferences[slot]) {
+				break;
+			}
+			move(child, position);
+			position = child;
+		}
+		heap[position] = slot;
+		heapPositions[slot] = position;
+	}
+
+	private void move(int from, int to) {
+		heap[to] = heap[from];
+		heapPositions[heap[to]] = to;
+	}
+}
@@ -0,0 +1,51 @@
+package com.thermostat.server.temperature.archive;
+
+import java.io.EOFException;
+
+/**
+ * Reads values of arbitrary bit length from a byte array (most significant bit first).
+ */
+class BitReader {
+
+	private byte[] bytes;
+
+	private int offset;
+
+	private long bitLimit;
+
+	private long position = 0;
+
+	/**
+	 * @param bytes the array to read from
+	 * @param offset the index of the first byte to read
+	 * @param length the number of bytes which can be read
+	 */
+	BitReader(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.bitLimit = (long)length << 3;
+	}
+
+	/**
+	 * Read n bits as an unsigned value.
+	 *
+	 * @param n the number of bits to read (0..64)
+	 */
+	long read(int n) throws EOFException {
+		long value = 0;
+		for (int i = 0; i < n; ++i) {
+			value = (value << 1) | (readBit() ? 1 : 0);
+		}
+		return value;
+	}
+
+	boolean readBit() throws EOFException {
+		if (position >= bitLimit) {
+			throw new EOFException("Unexpected end of encoded column");
+		}
+		int b = bytes[offset + (int)(position >>> 3)];
+		boolean bit = (b & (0x80 >>> (position & 7))) != 0;
+		++position;
+		return bit;
+	}
+}
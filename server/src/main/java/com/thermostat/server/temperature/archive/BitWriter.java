@@ -0,0 +1,53 @@
+package com.thermostat.server.temperature.archive;
+
+import java.util.Arrays;
+
+/**
+ * Writes values of arbitrary bit length into a growable byte array (most significant bit first).
+ */
+class BitWriter {
+
+	private byte[] bytes = new byte[256];
+
+	/** Number of bits written so far */
+	private long bitCount = 0;
+
+	/**
+	 * Write the lowest n bits of the given value.
+	 *
+	 * @param value the value whose lowest bits are written
+	 * @param n the number of bits to write (0..64)
+	 */
+	void write(long value, int n) {
+		for (int i = n - 1; i >= 0; --i) {
+			writeBit(((value >>> i) & 1) != 0);
+		}
+	}
+
+	void writeBit(boolean bit) {
+		int byteIndex = (int)(bitCount >>> 3);
+		if (byteIndex == bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		if (bit) {
+			bytes[byteIndex] |= 0x80 >>> (bitCount & 7);
+		}
+		++bitCount;
+	}
+
+	/**
+	 * @return the number of bytes needed to hold the written bits
+	 */
+	int getByteCount() {
+		return (int)((bitCount + 7) >>> 3);
+	}
+
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	void reset() {
+		Arrays.fill(bytes, 0, getByteCount(), (byte)0);
+		bitCount = 0;
+	}
+}
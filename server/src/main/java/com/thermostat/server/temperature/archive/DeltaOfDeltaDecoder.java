@@ -0,0 +1,38 @@
+package com.thermostat.server.temperature.archive;
+
+import java.io.EOFException;
+
+/**
+ * Decodes timestamps encoded by {@link DeltaOfDeltaEncoder}.
+ */
+class DeltaOfDeltaDecoder {
+
+	private BitReader reader;
+
+	private long previousTimestamp;
+
+	private long previousDelta = 0;
+
+	DeltaOfDeltaDecoder(BitReader reader, long firstTimestamp) {
+		this.reader = reader;
+		this.previousTimestamp = firstTimestamp;
+	}
+
+	long decode() throws EOFException {
+		long dod;
+		if (!reader.readBit()) {
+			dod = 0;
+		} else if (!reader.readBit()) {
+			dod = reader.read(7) - 63;
+		} else if (!reader.readBit()) {
+			dod = reader.read(9) - 255;
+		} else if (!reader.readBit()) {
+			dod = reader.read(12) - 2047;
+		} else {
+			dod = (int)reader.read(32);
+		}
+		previousDelta += dod;
+		previousTimestamp += previousDelta;
+		return previousTimestamp;
+	}
+}
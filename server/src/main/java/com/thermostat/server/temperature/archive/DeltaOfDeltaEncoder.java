@@ -0,0 +1,51 @@
+package com.thermostat.server.temperature.archive;
+
+/**
+ * Encodes a series of timestamps as variable length delta-of-delta values.
+ * Regularly sampled series cost a single bit per timestamp.
+ * The first timestamp is not encoded, it is stored in the block header.
+ *
+ * Encoding of the difference between consecutive deltas:
+ * <ul>
+ * <li>0: '0'</li>
+ * <li>[-63, 64]: '10' + 7 bits</li>
+ * <li>[-255, 256]: '110' + 9 bits</li>
+ * <li>[-2047, 2048]: '1110' + 12 bits</li>
+ * <li>otherwise: '1111' + 32 bits</li>
+ * </ul>
+ */
+class DeltaOfDeltaEncoder {
+
+	private BitWriter writer;
+
+	private long previousTimestamp;
+
+	private long previousDelta = 0;
+
+	DeltaOfDeltaEncoder(BitWriter writer, long firstTimestamp) {
+		this.writer = writer;
+		this.previousTimestamp = firstTimestamp;
+	}
+
+	void encode(long timestamp) {
+		long delta = timestamp - previousTimestamp;
+		long dod = delta - previousDelta;
+		if (dod == 0) {
+			writer.writeBit(false);
+		} else if (dod >= -63 && dod <= 64) {
+			writer.write(0x2, 2);
+			writer.write(dod + 63, 7);
+		} else if (dod >= -255 && dod <= 256) {
+			writer.write(0x6, 3);
+			writer.write(dod + 255, 9);
+		} else if (dod >= -2047 && dod <= 2048) {
+			writer.write(0xE, 4);
+			writer.write(dod + 2047, 12);
+		} else {
+			writer.write(0xF, 4);
+			writer.write(dod, 32);
+		}
+		previousTimestamp = timestamp;
+		previousDelta = delta;
+	}
+}
@@ -0,0 +1,194 @@
+package com.thermostat.server.temperature.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compressed on-disk archive of the temperature samples of one zone.
+ *
+ * Samples are appended in chronological order and stored in columnar compressed blocks
+ * (see {@link TemperatureBlockWriter}). There is one file per (UTC) day in the archive directory,
+ * each one containing the blocks of that day. A block is written when it spans {@link #BLOCK_PERIOD_SEC},
+ * when the day changes or when the JVM shuts down, so at most one block worth of samples is kept in memory
+ * (and lost if the process is killed).
+ */
+public class TemperatureArchive {
+
+	private static Logger logger = Logger.getLogger(TemperatureArchive.class.getSimpleName());
+
+	/** Maximum time period covered by one block */
+	public static final long BLOCK_PERIOD_SEC = 60*60*6;
+
+	static final String FILE_EXTENSION = ".tsa";
+
+	private static final long DAY_SEC = 60*60*24;
+
+	private File directory;
+
+	private TemperatureBlockWriter block = new TemperatureBlockWriter();
+
+	/** Timestamp of the last archived sample */
+	private long lastTimestamp = Long.MIN_VALUE;
+
+	/**
+	 * Opens (or creates) an archive in the given directory.
+	 * Pending samples are written when the JVM shuts down.
+	 *
+	 * @param directory the directory holding the daily archive files
+	 */
+	public TemperatureArchive(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create archive directory " + directory);
+		}
+		lastTimestamp = readLastTimestamp();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not flush temperature archive " + TemperatureArchive.this.directory, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Append a sample to the archive.
+	 * Samples which are not newer than the last archived sample are ignored.
+	 */
+	public synchronized void append(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus) throws IOException {
+		if (timestamp <= lastTimestamp) {
+			return;
+		}
+		if (block.getCount() > 0 && (timestamp - block.getFirstTimestamp() >= BLOCK_PERIOD_SEC ||
+				timestamp / DAY_SEC != block.getFirstTimestamp() / DAY_SEC)) {
+			flush();
+		}
+		block.add(timestamp, ambientTemperature, targetTemperature, actuatorStatus);
+		lastTimestamp = timestamp;
+	}
+
+	/**
+	 * Write pending samples to the archive file of their day.
+	 */
+	public synchronized void flush() throws IOException {
+		if (block.getCount() == 0) {
+			return;
+		}
+		File file = getFile(block.getFirstTimestamp());
+		FileOutputStream fos = new FileOutputStream(file, true);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			block.writeTo(out);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Open a streaming reader on archived samples within the given period.
+	 * Samples not yet flushed are not included.
+	 *
+	 * @param fromSec start of the period (Unix seconds, inclusive)
+	 * @param toSec end of the period (Unix seconds, exclusive)
+	 */
+	public TemperatureArchiveReader read(long fromSec, long toSec) {
+		return new TemperatureArchiveReader(directory, fromSec, toSec);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private File getFile(long timestamp) {
+		return new File(directory, getDayFormat().format(new Date(timestamp * 1000)) + FILE_EXTENSION);
+	}
+
+	static DateFormat getDayFormat() {
+		DateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+	/**
+	 * Find the timestamp of the last archived sample by reading block headers of the most recent file.
+	 * An incomplete or invalid tail of the file (e.g., a block cut off by a power loss) is truncated,
+	 * so that new blocks are appended after the last complete one.
+	 */
+	private long readLastTimestamp() throws IOException {
+		String[] names = directory.list();
+		if (names == null) {
+			logger.warning("Could not list archive directory " + directory);
+			return Long.MIN_VALUE;
+		}
+		Arrays.sort(names);
+		for (int i = names.length - 1; i >= 0; --i) {
+			if (!names[i].endsWith(FILE_EXTENSION)) {
+				continue;
+			}
+			File file = new File(directory, names[i]);
+			long fileLength = file.length();
+			long last = Long.MIN_VALUE;
+			/* End of the last complete block */
+			long position = 0;
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				while (true) {
+					if (in.readInt() != TemperatureBlockWriter.MAGIC) {
+						logger.warning("Invalid block in archive file " + file + " at offset " + position);
+						break;
+					}
+					in.readInt();
+					in.readLong();
+					long blockLast = in.readLong();
+					long length = 0;
+					for (int c = 0; c < TemperatureBlockWriter.COLUMN_COUNT; ++c) {
+						length += in.readInt();
+					}
+					long end = position + TemperatureBlockWriter.HEADER_SIZE + length;
+					if (length < 0 || end > fileLength) {
+						break;
+					}
+					TemperatureArchiveReader.skipFully(in, length);
+					position = end;
+					last = blockLast;
+				}
+			} catch (EOFException e) {
+				// End of file reached
+			} finally {
+				in.close();
+			}
+			if (position < fileLength) {
+				logger.warning("Truncating incomplete block of archive file " + file + " at offset " + position);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(position);
+				} finally {
+					raf.close();
+				}
+			}
+			if (last != Long.MIN_VALUE) {
+				return last;
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+}
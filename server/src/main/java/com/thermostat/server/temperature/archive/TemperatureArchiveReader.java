@@ -0,0 +1,220 @@
+package com.thermostat.server.temperature.archive;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streams archived samples within a time period in chronological order.
+ *
+ * Only the daily files overlapping the period are opened and only blocks overlapping the period are decoded,
+ * one block at a time. Other blocks are skipped using the lengths stored in their header.
+ *
+ * Usage:
+ * <pre>
+ * while (reader.next()) {
+ *     reader.getTimestamp(); reader.getAmbientTemperature(); ...
+ * }
+ * reader.close();
+ * </pre>
+ */
+public class TemperatureArchiveReader {
+
+	private long fromSec;
+
+	private long toSec;
+
+	/** Files still to be read */
+	private List<File> files = new ArrayList<File>();
+
+	private DataInputStream input = null;
+
+	private byte[] blockBytes = new byte[0];
+
+	/** Samples remaining in the current block */
+	private int remaining = 0;
+
+	private DeltaOfDeltaDecoder timestampDecoder;
+
+	private XorFloatDecoder ambientDecoder;
+
+	private XorFloatDecoder targetDecoder;
+
+	private XorFloatDecoder statusDecoder;
+
+	/** True if the first sample of the current block has not been decoded yet */
+	private boolean firstInBlock;
+
+	private long blockFirstTimestamp;
+
+	private long timestamp;
+
+	private float ambientTemperature;
+
+	private float targetTemperature;
+
+	private float actuatorStatus;
+
+	TemperatureArchiveReader(File directory, long fromSec, long toSec) {
+		this.fromSec = fromSec;
+		this.toSec = toSec;
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		Arrays.sort(names);
+		// Daily files are named after the UTC day of their samples
+		String first = TemperatureArchive.getDayFormat().format(new Date(fromSec * 1000));
+		String last = TemperatureArchive.getDayFormat().format(new Date((toSec - 1) * 1000));
+		for (String name : names) {
+			if (!name.endsWith(TemperatureArchive.FILE_EXTENSION)) {
+				continue;
+			}
+			String day = name.substring(0, name.length() - TemperatureArchive.FILE_EXTENSION.length());
+			if (day.compareTo(first) >= 0 && day.compareTo(last) <= 0) {
+				files.add(new File(directory, name));
+			}
+		}
+	}
+
+	/**
+	 * Advance to the next sample within the period.
+	 *
+	 * @return true if a sample is available, false if there are no more samples within the period
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			while (remaining == 0) {
+				if (!nextBlock()) {
+					return false;
+				}
+			}
+			--remaining;
+			timestamp = firstInBlock ? blockFirstTimestamp : timestampDecoder.decode();
+			firstInBlock = false;
+			ambientTemperature = ambientDecoder.decode();
+			targetTemperature = targetDecoder.decode();
+			actuatorStatus = statusDecoder.decode();
+			if (timestamp >= toSec) {
+				close();
+				return false;
+			}
+			if (timestamp >= fromSec) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the timestamp of the current sample in Unix seconds
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public float getAmbientTemperature() {
+		return ambientTemperature;
+	}
+
+	public float getTargetTemperature() {
+		return targetTemperature;
+	}
+
+	public float getActuatorStatus() {
+		return actuatorStatus;
+	}
+
+	public void close() throws IOException {
+		files.clear();
+		remaining = 0;
+		if (input != null) {
+			input.close();
+			input = null;
+		}
+	}
+
+	/**
+	 * Skip the given number of bytes or throw an exception if the stream ends before.
+	 */
+	static void skipFully(DataInputStream in, long n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				throw new EOFException("Truncated temperature archive block");
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * Load the next block overlapping the period.
+	 *
+	 * @return false if there are no more blocks
+	 */
+	private boolean nextBlock() throws IOException {
+		while (true) {
+			if (input == null) {
+				if (files.isEmpty()) {
+					return false;
+				}
+				input = new DataInputStream(new BufferedInputStream(new FileInputStream(files.remove(0))));
+			}
+
+			int count;
+			long firstTimestamp;
+			long lastTimestamp;
+			int[] lengths = new int[TemperatureBlockWriter.COLUMN_COUNT];
+			try {
+				if (input.readInt() != TemperatureBlockWriter.MAGIC) {
+					throw new IOException("Invalid temperature archive block");
+				}
+				count = input.readInt();
+				firstTimestamp = input.readLong();
+				lastTimestamp = input.readLong();
+				for (int c = 0; c < lengths.length; ++c) {
+					lengths[c] = input.readInt();
+				}
+			} catch (EOFException e) {
+				input.close();
+				input = null;
+				continue;
+			}
+
+			int length = 0;
+			for (int l : lengths) {
+				length += l;
+			}
+			if (lastTimestamp < fromSec || firstTimestamp >= toSec) {
+				// Block is outside the period
+				skipFully(input, length);
+				continue;
+			}
+
+			if (blockBytes.length < length) {
+				blockBytes = new byte[length];
+			}
+			input.readFully(blockBytes, 0, length);
+			int offset = 0;
+			BitReader[] readers = new BitReader[lengths.length];
+			for (int c = 0; c < lengths.length; ++c) {
+				readers[c] = new BitReader(blockBytes, offset, lengths[c]);
+				offset += lengths[c];
+			}
+			timestampDecoder = new DeltaOfDeltaDecoder(readers[0], firstTimestamp);
+			ambientDecoder = new XorFloatDecoder(readers[1]);
+			targetDecoder = new XorFloatDecoder(readers[2]);
+			statusDecoder = new XorFloatDecoder(readers[3]);
+			blockFirstTimestamp = firstTimestamp;
+			firstInBlock = true;
+			remaining = count;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.thermostat.server.temperature.archive;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Accumulates temperature samples of one archive block in compressed columnar form.
+ *
+ * Block layout:
+ * <pre>
+ * int   magic
+ * int   number of samples
+ * long  first timestamp (Unix seconds)
+ * long  last timestamp (Unix seconds)
+ * int   byte length of each column: timestamps, ambient temperatures, target temperatures, actuator statuses
+ * byte  column data in the same order
+ * </pre>
+ * Timestamps are delta-of-delta encoded, other columns are XOR encoded.
+ */
+class TemperatureBlockWriter {
+
+	/** "TSB1" */
+	static final int MAGIC = 0x54534231;
+
+	/** Size of the fixed block header in bytes */
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 * 4;
+
+	static final int COLUMN_COUNT = 4;
+
+	private BitWriter[] columns = new BitWriter[COLUMN_COUNT];
+
+	private DeltaOfDeltaEncoder timestampEncoder;
+
+	private XorFloatEncoder ambientEncoder;
+
+	private XorFloatEncoder targetEncoder;
+
+	private XorFloatEncoder statusEncoder;
+
+	private int count = 0;
+
+	private long firstTimestamp;
+
+	private long lastTimestamp;
+
+	TemperatureBlockWriter() {
+		for (int i = 0; i < COLUMN_COUNT; ++i) {
+			columns[i] = new BitWriter();
+		}
+	}
+
+	void add(long timestamp, float ambientTemperature, float targetTemperature, float actuatorStatus) {
+		if (count == 0) {
+			firstTimestamp = timestamp;
+			timestampEncoder = new DeltaOfDeltaEncoder(columns[0], timestamp);
+			ambientEncoder = new XorFloatEncoder(columns[1]);
+			targetEncoder = new XorFloatEncoder(columns[2]);
+			statusEncoder = new XorFloatEncoder(columns[3]);
+		} else {
+			timestampEncoder.encode(timestamp);
+		}
+		ambientEncoder.encode(ambientTemperature);
+		targetEncoder.encode(targetTemperature);
+		statusEncoder.encode(actuatorStatus);
+		lastTimestamp = timestamp;
+		++count;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Write the block and start a new, empty one.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(count);
+		out.writeLong(firstTimestamp);
+		out.writeLong(lastTimestamp);
+		for (BitWriter column : columns) {
+			out.writeInt(column.getByteCount());
+		}
+		for (BitWriter column : columns) {
+			out.write(column.getBytes(), 0, column.getByteCount());
+		}
+		for (BitWriter column : columns) {
+			column.reset();
+		}
+		count = 0;
+	}
+}
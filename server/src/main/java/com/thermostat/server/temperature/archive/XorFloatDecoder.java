@@ -0,0 +1,40 @@
+package com.thermostat.server.temperature.archive;
+
+import java.io.EOFException;
+
+/**
+ * Decodes float values encoded by {@link XorFloatEncoder}.
+ */
+class XorFloatDecoder {
+
+	private BitReader reader;
+
+	private int previousBits;
+
+	private boolean first = true;
+
+	private int previousLeading = 0;
+
+	private int previousTrailing = 0;
+
+	XorFloatDecoder(BitReader reader) {
+		this.reader = reader;
+	}
+
+	float decode() throws EOFException {
+		if (first) {
+			previousBits = (int)reader.read(32);
+			first = false;
+		} else if (reader.readBit()) {
+			if (reader.readBit()) {
+				previousLeading = (int)reader.read(5);
+				int meaningful = (int)reader.read(5) + 1;
+				previousTrailing = 32 - previousLeading - meaningful;
+			}
+			int meaningful = 32 - previousLeading - previousTrailing;
+			int xor = (int)reader.read(meaningful) << previousTrailing;
+			previousBits ^= xor;
+		}
+		return Float.intBitsToFloat(previousBits);
+	}
+}
@@ -0,0 +1,62 @@
+package com.thermostat.server.temperature.archive;
+
+/**
+ * Encodes a series of float values by XOR-ing each value with the previous one (Gorilla-style).
+ * Repeated values cost a single bit, slowly changing values only a few more.
+ *
+ * Encoding of each value after the first one (which is written as 32 raw bits):
+ * <ul>
+ * <li>'0': same as the previous value</li>
+ * <li>'10' + meaningful bits: the meaningful bits of the XOR fit into the previous leading / trailing zero window</li>
+ * <li>'11' + 5 bits leading zeros + 5 bits (meaningful bit count - 1) + meaningful bits</li>
+ * </ul>
+ */
+class XorFloatEncoder {
+
+	private BitWriter writer;
+
+	private int previousBits;
+
+	private boolean first = true;
+
+	private int previousLeading = -1;
+
+	private int previousTrailing = 0;
+
+	XorFloatEncoder(BitWriter writer) {
+		this.writer = writer;
+	}
+
+	void encode(float value) {
+		int bits = Float.floatToIntBits(value);
+		if (first) {
+			writer.write(bits, 32);
+			previousBits = bits;
+			first = false;
+			return;
+		}
+
+		int xor = bits ^ previousBits;
+		previousBits = bits;
+		if (xor == 0) {
+			writer.writeBit(false);
+			return;
+		}
+		writer.writeBit(true);
+
+		int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+		int trailing = Integer.numberOfTrailingZeros(xor);
+		if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+			writer.writeBit(false);
+			writer.write(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+		} else {
+			int meaningful = 32 - leading - trailing;
+			writer.writeBit(true);
+			writer.write(leading, 5);
+			writer.write(meaningful - 1, 5);
+			writer.write(xor >>> trailing, meaningful);
+			previousLeading = leading;
+			previousTrailing = trailing;
+		}
+	}
+}
@@ -2,22 +2,24 @@ package com.thermostat.server.zone;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.thermostat.protocol.data.ZoneData;
 import com.thermostat.server.actuation.Actuator;
+import com.thermostat.server.actuation.control.FixedThermalModel;
+import com.thermostat.server.actuation.control.RlsThermalModel;
 import com.thermostat.server.temperature.TargetTemperatureCalculator;
 import com.thermostat.server.temperature.TemperatureSensor;
 import com.thermostat.server.temperature.TemperatureHistory;
 
 /**
  * Manages ambient temperature of a given zone following a dynamically adjustable target temperature. 
- * Periodically checks on a separate thread the ambient temperature sensor and controls the HVAC actuator accordingly.  
+ * Periodically (and on demand) evaluated by the {@link ZoneScheduler} to check the ambient temperature sensor
+ * and control the HVAC actuator accordingly.
  * 
  * TODO: handle both heating and cooling (currently, only heating is supported).
  */
-public class ZoneManager extends Thread {
+public class ZoneManager {
 
 	private static Logger logger = Logger.getLogger(ZoneManager.class.getSimpleName());
 
@@ -31,7 +33,10 @@ public class ZoneManager extends Thread {
 	
 	private TemperatureSensor sensor;
 	
-	private TemperatureHistory history = new TemperatureHistory();
+	private TemperatureHistory history;
+	
+	/** Thermal model identified from the history */
+	private RlsThermalModel thermalModel;
 	
 	private long updatePeriod;
 	
@@ -49,20 +54,29 @@ public class ZoneManager extends Thread {
 	/** Unix timestamp when boostTemperature had been set for the last time */
 	private long lastBoostSetting = 0;
 	
-	private boolean running = true;
-	
-	public ZoneManager(String zoneName, Actuator actuator, TemperatureSensor sensor, long updatePeriod) throws IOException {
+	public ZoneManager(String zoneName, Actuator actuator, TemperatureSensor sensor, TemperatureHistory history, RlsThermalModel thermalModel, long updatePeriod) throws IOException {
 		this.zoneName = zoneName;
 		this.actuator = actuator;
 		this.sensor = sensor;
+		this.history = history;
+		this.thermalModel = thermalModel;
 		this.updatePeriod = updatePeriod;
+		history.addListener(thermalModel);
 		
 		ambientTemperature = sensor.getTemperature();
 		lastSensorReading = (new Date()).getTime();
 	}
 	
+	public ZoneManager(String zoneName, Actuator actuator, TemperatureSensor sensor, TemperatureHistory history, RlsThermalModel thermalModel) throws IOException {
+		this(zoneName, actuator, sensor, history, thermalModel, DEFAULT_UPDATE_PERIOD_SEC);
+	}
+	
+	public ZoneManager(String zoneName, Actuator actuator, TemperatureSensor sensor, TemperatureHistory history) throws IOException {
+		this(zoneName, actuator, sensor, history, new RlsThermalModel(new FixedThermalModel()));
+	}
+
 	public ZoneManager(String zoneName, Actuator actuator, TemperatureSensor sensor) throws IOException {
-		this(zoneName, actuator, sensor, DEFAULT_UPDATE_PERIOD_SEC);
+		this(zoneName, actuator, sensor, new TemperatureHistory());
 	}
 	
 	public synchronized void update() throws IOException {
@@ -74,32 +88,30 @@ public class ZoneManager extends Thread {
 		 * 		1) there are changes in resident states or 
 		 * 		2) more than updatePeriod SEC elapsed since the last update 
 		 */ 
-		if (lastSensorReading + updatePeriod*1000 < timestamp || previousActuationTemperature != actuationTemperature) {
+		if (lastSensorReading + updatePeriod*1000 <= timestamp || previousActuationTemperature != actuationTemperature) {
 			targetTemperature = TargetTemperatureCalculator.getTargetTemperature(this, false);
 			ambientTemperature = sensor.getTemperature();
-			history.add(ambientTemperature, actuationTemperature);
+			history.add(ambientTemperature, actuationTemperature, (float)actuator.getStatus());
 			actuator.update(history);
 			lastSensorReading = timestamp;
 			logger.info(zoneName + "\t" + ambientTemperature + "\t" + actuationTemperature + "\t" + actuator.getStatus());
 		}
 	}
 	
-	@Override
-	public void run() {
-		while (running) {
-			try {
-				update();
-			} catch (IOException e) {
-				logger.log(Level.SEVERE, "Exception when performing zone update", e);
-			}
-			
-			// Sleep 
-			try {
-				Thread.sleep(updatePeriod*1000);
-			} catch (InterruptedException e) {
-				logger.warning("Sleep interrupted: " + e.getMessage());
-			}
-		}
+	/**
+	 * Get the time when the next periodic update is due.
+	 * 
+	 * @return Unix timestamp in milliseconds
+	 */
+	public synchronized long getNextUpdateTime() {
+		return lastSensorReading + updatePeriod*1000;
+	}
+	
+	/**
+	 * @return the period of updates in seconds
+	 */
+	public long getUpdatePeriod() {
+		return updatePeriod;
 	}
 	
 	public void setBoostTemperature(Float boostTemparature) {
@@ -107,6 +119,20 @@ public class ZoneManager extends Thread {
 		lastBoostSetting = (new Date()).getTime();
 	}
 	
+	/**
+	 * Predict the time needed to reach the current target temperature heating at full power.
+	 * 
+	 * @return the time in minutes, 0 if the target is already reached
+	 *         or positive infinity if the target cannot be reached according to the thermal model
+	 */
+	public synchronized double getTimeToTarget() {
+		return thermalModel.getTimeToTarget(ambientTemperature, actuationTemperature);
+	}
+	
+	public RlsThermalModel getThermalModel() {
+		return thermalModel;
+	}
+	
 	public String getZoneName() {
 		return zoneName;
 	}
@@ -17,11 +17,15 @@ import com.thermostat.protocol.data.ZoneData;
 import com.thermostat.server.actuation.Actuator;
 import com.thermostat.server.actuation.GpioRelayActuator;
 import com.thermostat.server.actuation.GpioMotorizedValveActuator;
+import com.thermostat.server.actuation.control.ControlLawFactory;
+import com.thermostat.server.actuation.control.RlsThermalModel;
 import com.thermostat.server.configuration.Configuration;
 import com.thermostat.server.configuration.ConfigurationException;
 import com.thermostat.server.temperature.OneWireTemperatureSensor;
 import com.thermostat.server.temperature.SensorTagTemperatureSensor;
+import com.thermostat.server.temperature.TemperatureHistory;
 import com.thermostat.server.temperature.TemperatureSensor;
+import com.thermostat.server.temperature.archive.TemperatureArchive;
 
 /**
  * Zone registry implementation using configuration in properties file. 
@@ -43,6 +47,16 @@ public class ZoneRegistryPropertiesFile implements ZoneRegistry {
 	private static final String ZONE_SENSOR_ID_PROPERTY_NAME = "sensor.id";
 	
 	private static final String ZONE_SENSOR_CORRECTION_PROPERTY_NAME = "sensor.correction";
+
+	private static final String ZONE_HISTORY_PERSISTENT_PROPERTY_NAME = "history.persistent";
+
+	private static final String ZONE_HISTORY_ARCHIVE_PROPERTY_NAME = "history.archive";
+
+	private static final String HISTORY_FILE_PREFIX = "history_";
+
+	private static final String HISTORY_ARCHIVE_DIR = "archive";
+
+	private static final String HISTORY_FILE_EXTENSION = ".dat";
 	
 	private static final String ACTUATOR_TYPE_GPIO_RELAY = "GPIO_RELAY";
 
@@ -83,7 +97,6 @@ public class ZoneRegistryPropertiesFile implements ZoneRegistry {
 				} else if (actuatorType.equalsIgnoreCase(ACTUATOR_TYPE_GPIO_MOTORIZED_VALVE)) {
 					actuator = new GpioMotorizedValveActuator();
 				}
-				
 				// Read temperature sensor configuration
 				TemperatureSensor sensor = null;
 				String sensorId = p.getProperty(ZONE_SENSOR_ID_PROPERTY_NAME);
@@ -101,7 +114,23 @@ public class ZoneRegistryPropertiesFile implements ZoneRegistry {
 					sensor = new SensorTagTemperatureSensor(sensorId);
 				}
 
-				ZoneManager zoneManager = new ZoneManager(name, actuator, sensor);
+				// Read temperature history configuration
+				TemperatureHistory history = new TemperatureHistory();
+				String baseName = zoneConfFile.replaceFirst("\\.[^.]*$", "");
+				if (Boolean.parseBoolean(p.getProperty(ZONE_HISTORY_PERSISTENT_PROPERTY_NAME))) {
+					history.persistTo(Configuration.getLogPath(HISTORY_FILE_PREFIX + baseName + HISTORY_FILE_EXTENSION));
+				}
+				if (Boolean.parseBoolean(p.getProperty(ZONE_HISTORY_ARCHIVE_PROPERTY_NAME))) {
+					history.archiveTo(new TemperatureArchive(new File(Configuration.getLogPath(HISTORY_ARCHIVE_DIR), baseName)));
+				}
+
+				// Identify the thermal model of the zone starting from the configured one
+				RlsThermalModel thermalModel = new RlsThermalModel(ControlLawFactory.createThermalModel(p));
+				if (actuator != null) {
+					actuator.setControlLaw(ControlLawFactory.createControlLaw(p, thermalModel));
+				}
+
+				ZoneManager zoneManager = new ZoneManager(name, actuator, sensor, history, thermalModel);
 				zoneConfigMap.put(zoneManager.getZoneName(), zoneManager);
 				logger.info("Started zone manager for zone " + name + ", sensorId = " + sensorId + ", actuator = " + actuator);
 			} catch (Exception e) {
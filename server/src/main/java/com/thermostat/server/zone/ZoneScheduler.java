@@ -0,0 +1,228 @@
+package com.thermostat.server.zone;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.thermostat.server.configuration.Configuration;
+
+/**
+ * Multiplexes the evaluation of all zones on a small shared thread pool.
+ *
+ * Each zone is evaluated when its update period elapses (per-zone deadline)
+ * and shortly after an update is requested, e.g., because resident states changed.
+ * Requested evaluations are delayed by a short debounce window: all requests for the same zone
+ * arriving before the evaluation starts (e.g., simultaneous heartbeats of several phones)
+ * are coalesced into a single evaluation.
+ */
+public class ZoneScheduler {
+
+	private static Logger logger = Logger.getLogger(ZoneScheduler.class.getSimpleName());
+
+	/** System property to set the number of threads evaluating zones */
+	private static final String POOL_SIZE_PROPERTY = "zone.scheduler.threads";
+
+	private static final int DEFAULT_POOL_SIZE = 2;
+
+	/** System property to set the time window in which update requests are coalesced */
+	private static final String DEBOUNCE_PROPERTY = "zone.update.debounce.ms";
+
+	private static final long DEFAULT_DEBOUNCE_MS = 200;
+
+	private static final long STATISTICS_LOG_PERIOD_MIN = 60;
+
+	private static ZoneScheduler instance = null;
+
+	private ScheduledExecutorService executor;
+
+	/** Zone manager -> its scheduling state */
+	private Map<ZoneManager, ZoneTask> tasks = new HashMap<ZoneManager, ZoneTask>();
+
+	private long debounceMs;
+
+	private List<ZoneUpdateListener> listeners = new CopyOnWriteArrayList<ZoneUpdateListener>();
+
+	/** Number of update requests */
+	private AtomicLong requestCount = new AtomicLong();
+
+	/** Number of update requests merged into an already pending evaluation */
+	private AtomicLong coalescedCount = new AtomicLong();
+
+	/** Number of performed zone evaluations (including periodic ones) */
+	private AtomicLong evaluationCount = new AtomicLong();
+
+	public static synchronized ZoneScheduler getInstance() {
+		if (instance == null) {
+			instance = new ZoneScheduler((int)Configuration.getLongProperty(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE),
+					Configuration.getLongProperty(DEBOUNCE_PROPERTY, DEFAULT_DEBOUNCE_MS));
+		}
+		return instance;
+	}
+
+	private ZoneScheduler(int poolSize, long debounceMs) {
+		this.debounceMs = debounceMs;
+		executor = new ScheduledThreadPoolExecutor(poolSize, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, ZoneScheduler.class.getSimpleName() + "-" + count.incrementAndGet());
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				logger.info("Zone update requests: " + getRequestCount() + ", coalesced: " + getCoalescedCount() + 
+						", evaluations: " + getEvaluationCount());
+			}
+		}, STATISTICS_LOG_PERIOD_MIN, STATISTICS_LOG_PERIOD_MIN, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Start periodic evaluation of the given zones.
+	 * The first evaluation of each zone is performed immediately.
+	 */
+	public synchronized void start(Collection<ZoneManager> zones) {
+		for (ZoneManager zone : zones) {
+			if (!tasks.containsKey(zone)) {
+				ZoneTask task = new ZoneTask(zone);
+				tasks.put(zone, task);
+				task.request(0, null);
+			}
+		}
+	}
+
+	/**
+	 * Request an evaluation of the given zone after the debounce window.
+	 *
+	 * @return a Future completing when the requested evaluation is finished
+	 */
+	public Future<?> requestUpdate(ZoneManager zone) {
+		return requestUpdate(zone, null);
+	}
+
+	/**
+	 * Request an evaluation of the given zone after the debounce window
+	 * and call the given callback on a scheduler thread when the evaluation is finished.
+	 *
+	 * @param callback the callback or null
+	 * @return a Future completing when the requested evaluation is finished
+	 */
+	public Future<?> requestUpdate(ZoneManager zone, Runnable callback) {
+		ZoneTask task;
+		synchronized (this) {
+			task = tasks.get(zone);
+		}
+		if (task == null) {
+			throw new IllegalArgumentException("Zone " + zone.getZoneName() + " is not scheduled");
+		}
+		requestCount.incrementAndGet();
+		return task.request(debounceMs, callback);
+	}
+
+	/**
+	 * Register a listener called on the scheduler threads after each evaluation of a zone.
+	 */
+	public void addUpdateListener(ZoneUpdateListener listener) {
+		listeners.add(listener);
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getEvaluationCount() {
+		return evaluationCount.get();
+	}
+
+	/**
+	 * Scheduling state of one zone.
+	 */
+	private class ZoneTask implements Runnable {
+
+		private ZoneManager zone;
+
+		/** Next periodic evaluation */
+		private ScheduledFuture<?> deadline = null;
+
+		/** Requested evaluation which has not started yet */
+		private Future<?> pendingUpdate = null;
+
+		/** Callbacks of the requested evaluation */
+		private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+		public ZoneTask(ZoneManager zone) {
+			this.zone = zone;
+		}
+
+		synchronized Future<?> request(long delayMs, Runnable callback) {
+			if (pendingUpdate == null) {
+				pendingUpdate = executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+			} else {
+				coalescedCount.incrementAndGet();
+			}
+			if (callback != null) {
+				callbacks.add(callback);
+			}
+			return pendingUpdate;
+		}
+
+		public void run() {
+			List<Runnable> completed;
+			synchronized (this) {
+				// Requests arriving from now on need a new evaluation
+				pendingUpdate = null;
+				completed = callbacks;
+				callbacks = new ArrayList<Runnable>();
+			}
+
+			evaluationCount.incrementAndGet();
+			long nextUpdateTime;
+			try {
+				zone.update();
+				nextUpdateTime = zone.getNextUpdateTime();
+			} catch (Exception e) {
+				logger.log(Level.SEVERE, "Exception when performing update of zone " + zone.getZoneName(), e);
+				// The periodic update is still due, retry after a full period instead of immediately
+				nextUpdateTime = System.currentTimeMillis() + zone.getUpdatePeriod() * 1000;
+			}
+			for (ZoneUpdateListener listener : listeners) {
+				try {
+					listener.zoneUpdated(zone);
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Exception when notifying about update of zone " + zone.getZoneName(), e);
+				}
+			}
+			for (Runnable callback : completed) {
+				try {
+					callback.run();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Exception when completing update request of zone " + zone.getZoneName(), e);
+				}
+			}
+
+			synchronized (this) {
+				if (deadline != null) {
+					deadline.cancel(false);
+				}
+				long delay = Math.max(0, nextUpdateTime - System.currentTimeMillis());
+				deadline = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.thermostat.server.zone;
+
+/**
+ * Receives notifications about evaluations of zones.
+ */
+public interface ZoneUpdateListener {
+
+	/**
+	 * Called after a zone was evaluated (periodically or on request).
+	 * 
+	 * @param zone the evaluated zone
+	 */
+	void zoneUpdated(ZoneManager zone);
+}
@@ -0,0 +1,126 @@
+package com.thermostat.server.actuation;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.thermostat.server.actuation.gpio.GpioDirection;
+import com.thermostat.server.actuation.gpio.GpioPort;
+import com.thermostat.server.actuation.gpio.MemoryGpioBackend;
+import com.thermostat.server.temperature.TemperatureHistory;
+
+/**
+ * Measures actuation latency off-device on in-memory GPIO ports:
+ * the cost of setting a GPIO port (written or skipped because the value is unchanged)
+ * and the time from updating GpioMotorizedValveActuator until a valve step has been played.
+ * A step plays 4 port transitions, each followed by the 50 ms turn knob emulation timer,
+ * so the step latency exceeds 200 ms by the overhead of the actuator and the ports.
+ *
+ * Usage: GpioActuationBenchmark [JMH options]
+ */
+@Fork(1)
+public class GpioActuationBenchmark {
+
+	private static final int GPIO_PORT = 17;
+
+	private static final float AMBIENT_TEMPERATURE = 20;
+
+	/** Temperature change unit of the valve */
+	private static final float TEMPERATURE_STEP = 0.5f;
+
+	/** Time between checks whether a requested step has been played */
+	private static final long POLL_PERIOD_NS = 100 * 1000;
+
+	@State(Scope.Thread)
+	public static class PortState {
+
+		private GpioPort port;
+
+		private boolean value = false;
+
+		@Setup
+		public void setUp() throws IOException {
+			port = new GpioPort(new MemoryGpioBackend(), GPIO_PORT, GpioDirection.OUT);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ValveState {
+
+		private GpioMotorizedValveActuator actuator;
+
+		private TemperatureHistory history = new TemperatureHistory(3600);
+
+		/** true if the next step turns the valve up */
+		private boolean up = true;
+
+		@Setup
+		public void setUp() throws IOException {
+			Logger.getLogger("").setLevel(Level.WARNING);
+			actuator = new GpioMotorizedValveActuator(new MemoryGpioBackend(), 0);
+			// The valve position is assumed to match the ambient temperature at the first update
+			history.add(AMBIENT_TEMPERATURE, AMBIENT_TEMPERATURE, 0);
+			actuator.update(history);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public void portSet(PortState state) throws IOException {
+		state.value = !state.value;
+		state.port.set(state.value);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public void portSetUnchanged(PortState state) throws IOException {
+		state.port.set(true);
+	}
+
+	/**
+	 * Turn the valve one step up or down, alternately, and wait until the step has been played.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 5, batchSize = 1)
+	@Measurement(iterations = 20, batchSize = 1)
+	public double valveStep(ValveState state) throws IOException {
+		float targetTemperature = state.up ? AMBIENT_TEMPERATURE + TEMPERATURE_STEP : AMBIENT_TEMPERATURE;
+		state.up = !state.up;
+		double status = state.actuator.getStatus();
+		state.history.add(AMBIENT_TEMPERATURE, targetTemperature, (float)status);
+		state.actuator.update(state.history);
+		while (state.actuator.getStatus() == status) {
+			LockSupport.parkNanos(POLL_PERIOD_NS);
+		}
+		return state.actuator.getStatus();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(GpioActuationBenchmark.class.getSimpleName())
+				.parent(new CommandLineOptions(args)).build()).run();
+	}
+}
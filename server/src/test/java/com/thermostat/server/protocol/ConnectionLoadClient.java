@@ -0,0 +1,244 @@
+package com.thermostat.server.protocol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.thermostat.protocol.ThermostatMessage;
+import com.thermostat.protocol.ThermostatMessageListener;
+import com.thermostat.protocol.ThermostatProtocol;
+import com.thermostat.protocol.data.BroadcastEvent;
+import com.thermostat.protocol.data.ResidentState;
+import com.thermostat.protocol.data.ResidentStatusInfo;
+import com.thermostat.protocol.message.StateUpdateMessage;
+import com.thermostat.server.profile.ResidentProfileStoreFactory;
+import com.thermostat.server.profile.ResidentStatusLogger;
+import com.thermostat.server.security.ThermostatServerSecurityManager;
+import com.thermostat.server.technology.ListenServerIP;
+import com.thermostat.server.technology.ThermostatSocketIP;
+import com.thermostat.server.zone.ZoneRegistryFactory;
+import com.thermostat.technology.GenericIPService;
+
+/**
+ * Load test of the IP listen server: opens many concurrent simulated smartphone sessions and reports
+ * accept-to-reply latency percentiles for each combination of ip.server.mode (nio, blocking)
+ * and connection.executor (platform, virtual).
+ *
+ * Each session connects, starts a session and sends a state update. The latency is measured from connecting
+ * until the zone data reply is received. Sessions are kept open until all of them are replied, then closed.
+ *
+ * Each configuration is served by a separate server JVM (the listen server and the executors are singletons)
+ * using temporary conf and log directories, so no resident profiles or zones are configured.
+ * Virtual threads require Java 21, older runtimes fall back to platform threads.
+ *
+ * Usage: ConnectionLoadClient [sessions]
+ */
+public class ConnectionLoadClient {
+
+	private static final int DEFAULT_SESSIONS = 2000;
+
+	/** Threads opening sessions, sessions are replied on their own input threads */
+	private static final int CONNECTOR_THREADS = 64;
+
+	private static final long KEEPALIVE_MS = 60 * 1000;
+
+	private static final long REPLY_TIMEOUT_MS = 120 * 1000;
+
+	private static final int CONNECT_TIMEOUT_MS = 30 * 1000;
+
+	private static final String SERVER_ARGUMENT = "server";
+
+	/** Printed by the server JVM when it accepts connections */
+	private static final String READY = "READY";
+
+	private static final String[][] CONFIGURATIONS = {
+		{"-Dip.server.mode=nio", "-Dconnection.executor=platform"},
+		{"-Dip.server.mode=nio", "-Dconnection.executor=virtual"},
+		{"-Dip.server.mode=blocking", "-Dconnection.executor=platform"},
+		{"-Dip.server.mode=blocking", "-Dconnection.executor=virtual"},
+	};
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && SERVER_ARGUMENT.equals(args[0])) {
+			runServer();
+			return;
+		}
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SESSIONS;
+		for (String[] configuration : CONFIGURATIONS) {
+			Process server = startServer(configuration);
+			try {
+				report(Arrays.toString(configuration), runSessions(sessions));
+			} finally {
+				// The server exits when its standard input is closed
+				server.getOutputStream().close();
+				server.waitFor();
+			}
+		}
+	}
+
+	/**
+	 * Serve connections in this JVM until the standard input is closed.
+	 */
+	private static void runServer() throws Exception {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		ThermostatProtocol.setInputExecutor(ConnectionExecutorFactory.getExecutor());
+		// Create singletons (e.g., the server key pair) before the first connection
+		ResidentProfileStoreFactory.getResidentProfileStore();
+		ThermostatServerSecurityManager.getInstance();
+		ZoneRegistryFactory.getZoneRegistry();
+		ResidentStatusLogger.getInstance();
+		ListenServerIP server = ListenServerIP.getInstance();
+		server.setDaemon(true);
+		server.start();
+		System.out.println(READY);
+		System.out.flush();
+		while (System.in.read() >= 0) {
+		}
+		System.exit(0);
+	}
+
+	private static Process startServer(String[] configuration) throws IOException {
+		File directory = File.createTempFile("thermostat-load", "");
+		if (!directory.delete() || !new File(directory, "conf/zones").mkdirs() || !new File(directory, "conf/residents").mkdirs() ||
+				!new File(directory, "log").mkdirs() || !new File(directory, "conf/preferences.txt").createNewFile()) {
+			throw new IOException("Could not create temporary directory " + directory);
+		}
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-Dpath.conf=" + new File(directory, "conf"));
+		command.add("-Dpath.log=" + new File(directory, "log"));
+		command.addAll(Arrays.asList(configuration));
+		command.add(ConnectionLoadClient.class.getName());
+		command.add(SERVER_ARGUMENT);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = output.readLine()) != null && !line.equals(READY)) {
+		}
+		if (line == null) {
+			throw new IOException("Server JVM terminated before accepting connections");
+		}
+		return process;
+	}
+
+	/**
+	 * Open the given number of concurrent sessions.
+	 *
+	 * @return the latencies of the replied sessions in microseconds
+	 */
+	private static long[] runSessions(int sessions) throws InterruptedException {
+		final long[] latencies = new long[sessions];
+		final ThermostatProtocol[] protocols = new ThermostatProtocol[sessions];
+		final CountDownLatch done = new CountDownLatch(sessions);
+		final AtomicInteger failures = new AtomicInteger();
+		ExecutorService connectors = Executors.newFixedThreadPool(CONNECTOR_THREADS);
+		for (int i = 0; i < sessions; ++i) {
+			final int session = i;
+			connectors.execute(new Runnable() {
+				public void run() {
+					final long start = System.nanoTime();
+					try {
+						Socket socket = new Socket();
+						socket.connect(new InetSocketAddress("localhost", GenericIPService.THERMOSTAT_SERVER_TCP_PORT), CONNECT_TIMEOUT_MS);
+						ThermostatProtocol protocol = new ThermostatProtocol(new ThermostatSocketIP(socket));
+						protocols[session] = protocol;
+						new ThermostatMessageListener(protocol) {
+							@Override
+							protected void receiveMessage(ThermostatMessage reply, ThermostatMessage request) {
+								synchronized (latencies) {
+									if (latencies[session] == 0) {
+										latencies[session] = Math.max(1, (System.nanoTime() - start) / 1000);
+										done.countDown();
+									}
+								}
+							}
+
+							@Override
+							protected void failure(Exception e, ThermostatMessage request) {
+								synchronized (latencies) {
+									if (latencies[session] == 0) {
+										latencies[session] = -1;
+										failures.incrementAndGet();
+										done.countDown();
+									}
+								}
+							}
+						};
+						protocol.startSession(KEEPALIVE_MS);
+						protocol.request(new StateUpdateMessage("load-" + session, ResidentState.HOME_AWAKE,
+								new ResidentStatusInfo(new ArrayList<BroadcastEvent>(), new HashMap<String, Float>())));
+					} catch (IOException e) {
+						synchronized (latencies) {
+							if (latencies[session] == 0) {
+								latencies[session] = -1;
+								failures.incrementAndGet();
+								done.countDown();
+							}
+						}
+					}
+				}
+			});
+		}
+		connectors.shutdown();
+		if (!done.await(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			System.out.println("Timed out waiting for " + done.getCount() + " replies");
+		}
+		connectors.awaitTermination(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		for (ThermostatProtocol protocol : protocols) {
+			if (protocol != null) {
+				protocol.close();
+			}
+		}
+
+		long[] replied = new long[sessions];
+		int n = 0;
+		synchronized (latencies) {
+			for (long latency : latencies) {
+				if (latency > 0) {
+					replied[n++] = latency;
+				}
+			}
+		}
+		if (failures.get() > 0) {
+			System.out.println(failures.get() + " sessions failed");
+		}
+		return Arrays.copyOf(replied, n);
+	}
+
+	private static void report(String configuration, long[] latencies) {
+		Arrays.sort(latencies);
+		System.out.println(configuration + ": " + latencies.length + " sessions replied, latency p50 " + percentile(latencies, 0.5) +
+				" ms, p95 " + percentile(latencies, 0.95) + " ms, p99 " + percentile(latencies, 0.99) + " ms, max " +
+				percentile(latencies, 1) + " ms");
+	}
+
+	/**
+	 * @param sorted latencies in microseconds in ascending order
+	 * @return the latency in milliseconds below which the given fraction of the latencies is
+	 */
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int i = (int)Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1000.0;
+	}
+}
@@ -0,0 +1,141 @@
+package com.thermostat.server.temperature;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the streaming regression with an exact BigDecimal reference on epoch-second timestamps.
+ */
+public class LinearRegressionTest extends TestCase {
+
+	/** 2023-11-15 00:00:00 UTC */
+	private static final long EPOCH_START = 1700006400L;
+
+	private static final double SLOPE_TOLERANCE = 1e-6;
+
+	private static final double INTERCEPT_TOLERANCE = 1e-6;
+
+	public void testRampWithNoise() {
+		long[] x = new long[1000];
+		float[] y = new float[x.length];
+		fill(x, y, 10, new Random(1));
+		LinearRegression regression = new LinearRegression();
+		for (int i = 0; i < x.length; ++i) {
+			regression.add(x[i], y[i]);
+		}
+		assertEquals(x.length, regression.getCount());
+		assertMatchesReference(regression, x, y, 0, x.length);
+	}
+
+	public void testSlidingWindow() {
+		long[] x = new long[20000];
+		float[] y = new float[x.length];
+		fill(x, y, 10, new Random(2));
+		int window = 60;
+		LinearRegression regression = new LinearRegression();
+		for (int i = 0; i < x.length; ++i) {
+			regression.add(x[i], y[i]);
+			if (i >= window) {
+				regression.remove(x[i - window], y[i - window]);
+			}
+			if (i >= window && i % 1000 == 0) {
+				assertMatchesReference(regression, x, y, i - window + 1, i + 1);
+			}
+		}
+	}
+
+	public void testRemoveAll() {
+		LinearRegression regression = new LinearRegression();
+		regression.add(EPOCH_START, 20);
+		regression.add(EPOCH_START + 60, 21);
+		regression.remove(EPOCH_START, 20);
+		regression.remove(EPOCH_START + 60, 21);
+		assertEquals(0, regression.getCount());
+		assertTrue(Double.isNaN(regression.getSlope()));
+	}
+
+	/**
+	 * Registered windows of the history are updated incrementally and rebuilt every 4096 removals.
+	 */
+	public void testHistoryWindowsAcrossRebuild() {
+		long periodSec = 60;
+		long[] x = new long[4*24*60];
+		float[] y = new float[x.length];
+		// The last sample is half a period before now, so the window boundaries fall between two samples
+		long last = System.currentTimeMillis()/1000 - periodSec/2;
+		Random random = new Random(3);
+		for (int i = 0; i < x.length; ++i) {
+			x[i] = last - (x.length - 1 - i) * periodSec;
+			y[i] = (float)(20 + 2 * Math.sin(i / 300.0) + random.nextGaussian() * 0.05);
+		}
+		TemperatureHistory history = new TemperatureHistory(x.length * periodSec, periodSec);
+		for (int i = 0; i < x.length; ++i) {
+			history.add(x[i], y[i], 21, 0);
+		}
+
+		// More than 4096 samples have left each window, so each one has been rebuilt
+		long[] windowsMin = {10, 60, 60*24};
+		for (long periodMin : windowsMin) {
+			int from = (int)(x.length - periodMin * 60 / periodSec);
+			BigDecimal[] reference = reference(x, y, from, x.length);
+			assertEquals("Trend of " + periodMin + " minutes", reference[0].doubleValue() * 60, history.getTrend(periodMin),
+					Math.abs(reference[0].doubleValue() * 60) * SLOPE_TOLERANCE);
+			assertEquals("Average of " + periodMin + " minutes", mean(y, from, x.length), history.getAverage(periodMin), 1e-4);
+		}
+	}
+
+	/**
+	 * Samples taken every periodSec seconds: a slow ramp with a daily cycle and sensor noise.
+	 */
+	private static void fill(long[] x, float[] y, long periodSec, Random random) {
+		for (int i = 0; i < x.length; ++i) {
+			x[i] = EPOCH_START + i * periodSec;
+			y[i] = (float)(18 + 0.0001 * i * periodSec + Math.sin(i * periodSec * 2 * Math.PI / 86400) + random.nextGaussian() * 0.1);
+		}
+	}
+
+	private static void assertMatchesReference(LinearRegression regression, long[] x, float[] y, int from, int to) {
+		BigDecimal[] reference = reference(x, y, from, to);
+		double slope = reference[0].doubleValue();
+		double intercept = reference[1].doubleValue();
+		assertEquals("Slope of samples " + from + ".." + to, slope, regression.getSlope(), Math.abs(slope) * SLOPE_TOLERANCE + 1e-15);
+		assertEquals("Intercept of samples " + from + ".." + to, intercept, regression.getIntercept(),
+				Math.abs(intercept) * INTERCEPT_TOLERANCE);
+	}
+
+	/**
+	 * Exact least squares fit: slope = (n Sxy - Sx Sy) / (n Sxx - Sx Sx), intercept = (Sy - slope Sx) / n
+	 *
+	 * @return slope and intercept
+	 */
+	private static BigDecimal[] reference(long[] x, float[] y, int from, int to) {
+		BigDecimal n = BigDecimal.valueOf(to - from);
+		BigDecimal sumX = BigDecimal.ZERO;
+		BigDecimal sumY = BigDecimal.ZERO;
+		BigDecimal sumXX = BigDecimal.ZERO;
+		BigDecimal sumXY = BigDecimal.ZERO;
+		for (int i = from; i < to; ++i) {
+			BigDecimal bx = BigDecimal.valueOf(x[i]);
+			BigDecimal by = new BigDecimal(y[i]);
+			sumX = sumX.add(bx);
+			sumY = sumY.add(by);
+			sumXX = sumXX.add(bx.multiply(bx));
+			sumXY = sumXY.add(bx.multiply(by));
+		}
+		BigDecimal slope = n.multiply(sumXY).subtract(sumX.multiply(sumY))
+				.divide(n.multiply(sumXX).subtract(sumX.multiply(sumX)), MathContext.DECIMAL128);
+		BigDecimal intercept = sumY.subtract(slope.multiply(sumX)).divide(n, MathContext.DECIMAL128);
+		return new BigDecimal[] {slope, intercept};
+	}
+
+	private static double mean(float[] y, int from, int to) {
+		BigDecimal sum = BigDecimal.ZERO;
+		for (int i = from; i < to; ++i) {
+			sum = sum.add(new BigDecimal(y[i]));
+		}
+		return sum.divide(BigDecimal.valueOf(to - from), MathContext.DECIMAL128).doubleValue();
+	}
+}